@@ -0,0 +1,54 @@
+/**
+ * One measured operation. `setup` runs once in the JVM running the benchmark, then `run` is called in batches for the
+ * warmup and measurement iterations, each of which may be prepared by `setupIteration`. The value `run` returns is
+ * folded into a sink, so the JIT cannot drop the work.
+ */
+public abstract class Benchmark {
+    private final String name;
+
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Build the inputs, not measured
+     */
+    public void setup() throws Exception {
+    }
+
+    /**
+     * Called before every warmup and measured iteration, not measured
+     */
+    public void setupIteration() throws Exception {
+    }
+
+    /**
+     * The most operations of one iteration, for benchmarks whose state changes with every operation
+     */
+    public long getMaxOperations() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Whether an operation must not allocate once warmed up. The runner measures the bytes each operation allocates
+     * and fails the run if such a benchmark allocates.
+     */
+    public boolean isAllocationFree() {
+        return false;
+    }
+
+    /**
+     * One operation
+     */
+    public abstract long run() throws Exception;
+
+    /**
+     * Release what `setup` built, not measured
+     */
+    public void teardown() throws Exception {
+    }
+}
@@ -0,0 +1,401 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the benchmarks of the server classes, in the manner of JMH: every benchmark runs in fresh JVMs (forks) so the
+ * profile one leaves behind cannot skew the next, each fork does warmup iterations before the measured ones, and the
+ * score is the mean time per operation over all measured iterations with its 99.9% confidence interval. The bytes
+ * allocated per operation over the measured iterations are reported next to it.
+ * <p>
+ * Compile it with the server sources and run it from the directory of `out`:
+ * <pre>
+ * javac -d out ../Simple-SignUp-SignIn-Server/src/*.java src/*.java
+ * java -cp out BenchmarkRunner [options] [regex...]
+ * </pre>
+ * Options are `-f forks`, `-wi warmupIterations`, `-i iterations`, `-r iterationMillis`, `-jvmArgs "args"`,
+ * `-o results.csv` to save the scores, `-baseline results.csv` to compare against saved scores, `-threshold fraction`
+ * for how much slower counts as a regression, and `-l` to list the benchmarks. Only the benchmarks whose names match
+ * one of the regexes are run. With a baseline, the exit status is 2 if any benchmark got slower beyond the threshold
+ * and beyond both confidence intervals, so a script can stop the rollout. It is 3 if a benchmark declared allocation
+ * free allocated, which is checked without a baseline.
+ * <p>
+ * Parameters of the larger benchmarks are set with `-Dbench.store.users=N,...` and `-Dbench.loader.users=N,...`, which
+ * are passed on to the forks.
+ */
+public class BenchmarkRunner {
+    /**
+     * A batch of calls between two clock reads should take at least this long, so reading the clock costs nothing
+     */
+    private static final long MIN_BATCH_NANOS = 10_000;
+
+    private static final int MAX_BATCH = 1 << 20;
+
+    /**
+     * the 99.95% quantile of Student's t distribution by degrees of freedom, for a two-sided 99.9% interval
+     */
+    private static final double[] T_999 = {Double.NaN, 636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59,
+            4.44, 4.32, 4.22, 4.14, 4.07, 4.01, 3.97, 3.92, 3.88, 3.85, 3.82, 3.79, 3.77, 3.75, 3.73, 3.71, 3.69, 3.67,
+            3.66, 3.65};
+
+    private static final String RESULT_PREFIX = "RESULT ";
+
+    private static final String ALLOCATION_PREFIX = "ALLOCATION ";
+
+    /**
+     * An allocation-free benchmark may allocate this many bytes per operation, the runner itself and the JIT
+     * compiling on the measured thread leave a few bytes over millions of operations
+     */
+    private static final double MAX_ALLOCATION_FREE_BYTES = 0.5;
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * folds the values returned by the benchmarks, so their work is never dead code
+     */
+    static volatile long sink;
+
+    private int forks = 2;
+
+    private int warmupIterations = 5;
+
+    private int iterations = 5;
+
+    private long iterationMillis = 1000;
+
+    private String jvmArgs = "-Xms1g -Xmx1g -XX:MaxDirectMemorySize=3g";
+
+    private String output;
+
+    private String baseline;
+
+    private double threshold = 0.1;
+
+    /**
+     * the bytes allocated and the operations run by the measured iterations of the benchmark in this JVM
+     */
+    private long allocatedBytes;
+
+    private long measuredOperations;
+
+    /**
+     * bytes allocated per operation by name, averaged over the forks
+     */
+    private final Map<String, Double> allocations = new HashMap<>();
+
+    public static List<Benchmark> benchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.addAll(CodecBenchmarks.all());
+        benchmarks.addAll(HashBenchmarks.all());
+        benchmarks.addAll(StoreBenchmarks.all());
+        benchmarks.addAll(LoaderBenchmarks.all());
+        return benchmarks;
+    }
+
+    private static Benchmark find(String name) {
+        for (Benchmark benchmark : benchmarks()) {
+            if (benchmark.getName().equals(name)) {
+                return benchmark;
+            }
+        }
+        throw new IllegalArgumentException("Unknown benchmark \"" + name + "\".");
+    }
+
+    /**
+     * Set up a benchmark in this JVM and return the ns/op of each measured iteration
+     */
+    private double[] measure(Benchmark benchmark) throws Exception {
+        benchmark.setup();
+        try {
+            long iterationNanos = iterationMillis * 1_000_000L;
+
+            // grow the batch until reading the clock is noise
+            benchmark.setupIteration();
+            long maxBatch = Math.max(1, Math.min(MAX_BATCH, benchmark.getMaxOperations() / 16));
+            int batch = 1;
+            long acc = 0;
+            while (batch < maxBatch) {
+                long start = System.nanoTime();
+                for (int i = 0; i < batch; i++) {
+                    acc += benchmark.run();
+                }
+                if (System.nanoTime() - start >= MIN_BATCH_NANOS) {
+                    break;
+                }
+                batch <<= 1;
+            }
+            sink += acc;
+
+            for (int i = 0; i < warmupIterations; i++) {
+                double score = iterate(benchmark, batch, iterationNanos);
+                System.err.printf("# %s warmup %d: %s%n", benchmark.getName(), i + 1, format(score));
+            }
+            double[] scores = new double[iterations];
+            allocatedBytes = 0;
+            measuredOperations = 0;
+            for (int i = 0; i < iterations; i++) {
+                scores[i] = iterate(benchmark, batch, iterationNanos);
+                System.err.printf("# %s iteration %d: %s%n", benchmark.getName(), i + 1, format(scores[i]));
+            }
+            return scores;
+        } finally {
+            benchmark.teardown();
+        }
+    }
+
+    /**
+     * Call the benchmark in batches for `iterationNanos` or its max number of operations, returns ns/op
+     */
+    private double iterate(Benchmark benchmark, int batch, long iterationNanos) throws Exception {
+        benchmark.setupIteration();
+        long maxOperations = benchmark.getMaxOperations();
+        long acc = 0;
+        long ops = 0;
+        long allocatedStart = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long now;
+        do {
+            for (int i = 0; i < batch; i++) {
+                acc += benchmark.run();
+            }
+            ops += batch;
+            now = System.nanoTime();
+        } while (now - start < iterationNanos && ops + batch <= maxOperations);
+        allocatedBytes += THREADS.getCurrentThreadAllocatedBytes() - allocatedStart;
+        measuredOperations += ops;
+        sink += acc;
+        return (double) (now - start) / ops;
+    }
+
+    /**
+     * Run a benchmark in `forks` new JVMs, or in this one if `forks` is 0, and return the scores of all iterations
+     */
+    private double[] runForks(Benchmark benchmark) throws Exception {
+        if (forks == 0) {
+            double[] scores = measure(benchmark);
+            allocations.put(benchmark.getName(), (double) allocatedBytes / measuredOperations);
+            return scores;
+        }
+        List<Double> scores = new ArrayList<>();
+        double allocation = 0;
+        for (int fork = 0; fork < forks; fork++) {
+            List<String> command = new ArrayList<>();
+            command.add(ProcessHandle.current().info().command().orElse("java"));
+            for (String arg : jvmArgs.trim().split("\\s+")) {
+                if (!arg.isEmpty()) {
+                    command.add(arg);
+                }
+            }
+            // the benchmark parameters go along
+            for (String property : System.getProperties().stringPropertyNames()) {
+                if (property.startsWith("bench.") || property.startsWith("server.")) {
+                    command.add("-D" + property + "=" + System.getProperty(property));
+                }
+            }
+            command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), BenchmarkRunner.class.getName(),
+                    "-wi", String.valueOf(warmupIterations), "-i", String.valueOf(iterations), "-r", String.valueOf(iterationMillis),
+                    "-run", benchmark.getName()));
+            System.err.printf("# %s fork %d of %d%n", benchmark.getName(), fork + 1, forks);
+            Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(RESULT_PREFIX)) {
+                        scores.add(Double.parseDouble(line.substring(RESULT_PREFIX.length())));
+                    } else if (line.startsWith(ALLOCATION_PREFIX)) {
+                        allocation += Double.parseDouble(line.substring(ALLOCATION_PREFIX.length())) / forks;
+                    } else {
+                        System.out.println(line);
+                    }
+                }
+            }
+            if (process.waitFor() != 0) {
+                throw new IOException("The fork of " + benchmark.getName() + " exited with " + process.exitValue() + ".");
+            }
+        }
+        allocations.put(benchmark.getName(), allocation);
+        double[] result = new double[scores.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = scores.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * The mean and the half width of its 99.9% confidence interval
+     */
+    private static double[] summarize(double[] scores) {
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+        if (scores.length < 2) {
+            return new double[]{mean, Double.NaN};
+        }
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        variance /= scores.length - 1;
+        int degrees = scores.length - 1;
+        double t = degrees < T_999.length ? T_999[degrees] : 3.29;
+        return new double[]{mean, t * Math.sqrt(variance / scores.length)};
+    }
+
+    private static String formatAllocation(double bytes) {
+        return String.format("%.1f B/op", bytes);
+    }
+
+    private static String format(double nanos) {
+        if (nanos >= 1e6) {
+            return String.format("%.3f ms/op", nanos / 1e6);
+        } else if (nanos >= 1e3) {
+            return String.format("%.3f us/op", nanos / 1e3);
+        }
+        return String.format("%.3f ns/op", nanos);
+    }
+
+    /**
+     * name to mean and error in ns/op, from a file written with `-o`
+     */
+    private static Map<String, double[]> readResults(String path) throws IOException {
+        Map<String, double[]> results = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            String[] fields = line.split(",");
+            if (fields.length >= 3 && !fields[0].equals("benchmark")) {
+                results.put(fields[0], new double[]{Double.parseDouble(fields[1]), Double.parseDouble(fields[2])});
+            }
+        }
+        return results;
+    }
+
+    private int run(List<Pattern> filters) throws Exception {
+        Map<String, double[]> results = new LinkedHashMap<>();
+        List<String> allocating = new ArrayList<>();
+        for (Benchmark benchmark : benchmarks()) {
+            if (matches(filters, benchmark.getName())) {
+                results.put(benchmark.getName(), summarize(runForks(benchmark)));
+                if (benchmark.isAllocationFree() && allocations.get(benchmark.getName()) > MAX_ALLOCATION_FREE_BYTES) {
+                    allocating.add(benchmark.getName());
+                }
+            }
+        }
+
+        Map<String, double[]> baselineResults = baseline == null ? Collections.emptyMap() : readResults(baseline);
+        int regressions = 0;
+        System.out.printf("%-40s %22s %22s %14s %s%n", "Benchmark", "Score", "Error (99.9%)", "Allocation", baseline == null ? "" : "vs baseline");
+        for (Map.Entry<String, double[]> entry : results.entrySet()) {
+            double[] result = entry.getValue();
+            String comparison = "";
+            double[] base = baselineResults.get(entry.getKey());
+            if (base != null) {
+                double change = result[0] / base[0] - 1;
+                // slower beyond the threshold, and beyond what the noise of either run explains
+                boolean regressed = change > threshold && result[0] - nonNaN(result[1]) > base[0] + nonNaN(base[1]);
+                regressions += regressed ? 1 : 0;
+                comparison = String.format("%+.1f%%%s", change * 100, regressed ? " REGRESSION" : "");
+            }
+            String allocation = formatAllocation(allocations.get(entry.getKey())) + (allocating.contains(entry.getKey()) ? " ALLOCATES" : "");
+            System.out.printf("%-40s %22s %22s %14s %s%n", entry.getKey(), format(result[0]),
+                    Double.isNaN(result[1]) ? "" : "+- " + format(result[1]), allocation, comparison);
+        }
+
+        if (output != null) {
+            try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8))) {
+                writer.println("benchmark,score_ns_per_op,error_ns_per_op,allocation_bytes_per_op");
+                for (Map.Entry<String, double[]> entry : results.entrySet()) {
+                    writer.println(entry.getKey() + "," + entry.getValue()[0] + "," + nonNaN(entry.getValue()[1])
+                            + "," + allocations.get(entry.getKey()));
+                }
+            }
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmarks regressed beyond " + Math.round(threshold * 100) + "%.");
+            return 2;
+        }
+        if (!allocating.isEmpty()) {
+            System.out.println(allocating.size() + " allocation-free benchmarks allocated: " + String.join(", ", allocating) + ".");
+            return 3;
+        }
+        return 0;
+    }
+
+    private static double nonNaN(double value) {
+        return Double.isNaN(value) ? 0 : value;
+    }
+
+    private static boolean matches(List<Pattern> filters, String name) {
+        if (filters.isEmpty()) {
+            return true;
+        }
+        for (Pattern filter : filters) {
+            if (filter.matcher(name).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        List<Pattern> filters = new ArrayList<>();
+        String single = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-f":
+                    runner.forks = Integer.parseInt(args[++i]);
+                    break;
+                case "-wi":
+                    runner.warmupIterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-i":
+                    runner.iterations = Math.max(1, Integer.parseInt(args[++i]));
+                    break;
+                case "-r":
+                    runner.iterationMillis = Math.max(1, Long.parseLong(args[++i]));
+                    break;
+                case "-jvmArgs":
+                    runner.jvmArgs = args[++i];
+                    break;
+                case "-o":
+                    runner.output = args[++i];
+                    break;
+                case "-baseline":
+                    runner.baseline = args[++i];
+                    break;
+                case "-threshold":
+                    runner.threshold = Double.parseDouble(args[++i]);
+                    break;
+                case "-l":
+                    for (Benchmark benchmark : benchmarks()) {
+                        System.out.println(benchmark.getName());
+                    }
+                    return;
+                case "-run":
+                    // inside a fork
+                    single = args[++i];
+                    break;
+                default:
+                    filters.add(Pattern.compile(args[i]));
+                    break;
+            }
+        }
+
+        if (single != null) {
+            for (double score : runner.measure(find(single))) {
+                System.out.println(RESULT_PREFIX + score);
+            }
+            System.out.println(ALLOCATION_PREFIX + (double) runner.allocatedBytes / runner.measuredOperations);
+            System.exit(0);
+        }
+        System.exit(runner.run(filters));
+    }
+}
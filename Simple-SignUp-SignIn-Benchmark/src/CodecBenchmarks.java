@@ -0,0 +1,138 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Frame decoding and response encoding the way `EventLoop.process` and `EventLoop.writeOutbound` do them
+ */
+public class CodecBenchmarks {
+    public static List<Benchmark> all() {
+        return Arrays.asList(
+                new Decode("codec.decode.reg_v1", credentialsV1(CommandID.REG_REQ, "someone", "secret password"), true),
+                new Decode("codec.decode.login_v1", credentialsV1(CommandID.LOGIN_REQ, "someone", "secret password"), true),
+                new Decode("codec.decode.login_v2", credentialsV2(CommandID.LOGIN_REQ_V2, "someone", "secret password"), true),
+                // a batch copies its records out of the read buffer and gets a response sized for them
+                new Decode("codec.decode.batch_login_64", batch(CommandID.BATCH_LOGIN_REQ, 64), false),
+                new Encode("codec.encode.login_resp_v1", CommandID.LOGIN_REQ),
+                new Encode("codec.encode.login_resp_v2", CommandID.LOGIN_REQ_V2),
+                new Benchmark("codec.encode.login_resp_v2_token") {
+                    @Override
+                    public long run() {
+                        return MessageCodec.loginResponseWithToken().length;
+                    }
+                });
+    }
+
+    /**
+     * Parse the header, check it and decode the body into a pooled request, as `process` does for each frame
+     */
+    private static class Decode extends Benchmark {
+        private final byte[] frame;
+
+        private ByteBuffer buffer;
+
+        private final boolean allocationFree;
+
+        private Request request;
+
+        Decode(String name, byte[] frame, boolean allocationFree) {
+            super(name);
+            this.frame = frame;
+            this.allocationFree = allocationFree;
+        }
+
+        @Override
+        public boolean isAllocationFree() {
+            return this.allocationFree;
+        }
+
+        @Override
+        public void setup() {
+            // reads land in a direct buffer
+            buffer = ByteBuffer.allocateDirect(frame.length);
+            buffer.put(frame).flip();
+            request = new Request(null, null);
+        }
+
+        @Override
+        public long run() throws Exception {
+            int totalLength = MessageCodec.totalLength(buffer);
+            int commandID = MessageCodec.commandID(buffer);
+            if (!MessageCodec.isRequest(commandID) || !MessageCodec.isValidLength(commandID, totalLength)) {
+                throw new IllegalStateException("invalid frame");
+            }
+            request.reset(null, commandID);
+            MessageCodec.decodeRequest(buffer, totalLength, request);
+            return request.getPasswdLength() + request.getUserName()[0] + request.getRecordCount();
+        }
+    }
+
+    /**
+     * Pick the response and gather it into the write buffer, as the handler and `writeOutbound` do
+     */
+    private static class Encode extends Benchmark {
+        private final int commandID;
+
+        private ByteBuffer writeBuffer;
+
+        Encode(String name, int commandID) {
+            super(name);
+            this.commandID = commandID;
+        }
+
+        @Override
+        public void setup() {
+            writeBuffer = ByteBuffer.allocateDirect(64 << 10);
+        }
+
+        @Override
+        public boolean isAllocationFree() {
+            return true;
+        }
+
+        @Override
+        public long run() {
+            byte[] response = MessageCodec.response(commandID, StatusCode.SUCCESS);
+            if (writeBuffer.remaining() < response.length) {
+                writeBuffer.clear();
+            }
+            writeBuffer.put(response);
+            return writeBuffer.position();
+        }
+    }
+
+    static byte[] credentialsV1(int commandID, String userName, String passwd) {
+        ByteBuffer msg = ByteBuffer.allocate(FieldLength.header + FieldLength.regReqUserName + FieldLength.regReqPasswd);
+        msg.putInt(msg.capacity());
+        msg.putInt(commandID);
+        msg.put(Arrays.copyOf(userName.getBytes(StandardCharsets.US_ASCII), FieldLength.regReqUserName));
+        msg.put(Arrays.copyOf(passwd.getBytes(StandardCharsets.US_ASCII), FieldLength.regReqPasswd));
+        return msg.array();
+    }
+
+    static byte[] credentialsV2(int commandID, String userName, String passwd) {
+        byte[] userNameBytes = userName.getBytes(StandardCharsets.US_ASCII);
+        byte[] passwdBytes = passwd.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer msg = ByteBuffer.allocate(FieldLength.header + 2 + userNameBytes.length + passwdBytes.length);
+        msg.putInt(msg.capacity());
+        msg.putInt(commandID);
+        MessageCodec.putVarint(msg, userNameBytes.length);
+        msg.put(userNameBytes);
+        MessageCodec.putVarint(msg, passwdBytes.length);
+        msg.put(passwdBytes);
+        return msg.array();
+    }
+
+    private static byte[] batch(int commandID, int count) {
+        ByteBuffer msg = ByteBuffer.allocate(FieldLength.header + FieldLength.batchCount + count * FieldLength.batchReqRecord);
+        msg.putInt(msg.capacity());
+        msg.putInt(commandID);
+        msg.putInt(count);
+        for (int i = 0; i < count; i++) {
+            msg.put(Arrays.copyOf(("user" + i).getBytes(StandardCharsets.US_ASCII), FieldLength.regReqUserName));
+            msg.put(Arrays.copyOf(("passwd" + i).getBytes(StandardCharsets.US_ASCII), FieldLength.regReqPasswd));
+        }
+        return msg.array();
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Runs the server engines side by side under the load generator of the client: for every engine and connection
+ * count, a fresh server JVM with an empty password file is started on a free port, `SimpleSignUpSignInClient --load`
+ * drives it at a fixed rate over that many connections, and the answered throughput and the p99 latencies of its
+ * report are collected into one table.
+ * <p>
+ * The client classes clash with the server ones, so they are compiled apart and named with `-clientClasspath`:
+ * <pre>
+ * javac -d out ../Simple-SignUp-SignIn-Server/src/*.java src/*.java
+ * javac -d client-out ../Simple-SignUp-SignIn-Client/src/*.java
+ * java -cp out EngineBenchmark -clientClasspath client-out [options]
+ * </pre>
+ * Options are `-engines selector,blocking`, `-connections 1000,10000,100000`, `-rate requestsPerSecond`,
+ * `-w warmupSeconds`, `-d durationSeconds`, `-serverJvmArgs "args"`, `-clientJvmArgs "args"` and `-o results.csv`.
+ * Properties `-Dserver.*` and `-Dclient.*` are passed on to the server and client JVMs, login throttling is off
+ * unless `-Dserver.throttle.buckets` says otherwise.
+ * <p>
+ * Both ends of every connection are on this host, so a cell needs twice its connections in file descriptors
+ * (`ulimit -n`), and past about 28k connections the client should spread them over loopback addresses with
+ * `-Dclient.load.localAddresses=127.0.0.1,127.0.0.2,...`. The blocking engine needs a thread per connection, which
+ * the OS limits (`/proc/sys/kernel/threads-max`) unless the runtime has virtual threads. A cell that cannot run is
+ * reported as failed with the reason and the next one goes on.
+ */
+public class EngineBenchmark {
+    /**
+     * the line the server logs once it accepts connections
+     */
+    private static final String STARTED = "Server started successfully";
+
+    private static final long START_TIMEOUT_MILLIS = 120_000;
+
+    private List<String> engines = Arrays.asList("selector", "blocking");
+
+    private int[] connectionCounts = {1000, 10000, 100000};
+
+    private double rate = 20000;
+
+    private double warmupSeconds = 5;
+
+    private double durationSeconds = 20;
+
+    private String serverJvmArgs = "-Xms1g -Xmx2g";
+
+    private String clientJvmArgs = "-Xms1g -Xmx2g";
+
+    private String clientClasspath;
+
+    private String output;
+
+    /**
+     * The outcome of one engine at one connection count
+     */
+    private static class Result {
+        final String engine;
+
+        final int connections;
+
+        double answeredPerSecond;
+
+        double loginP99 = Double.NaN;
+
+        double registerP99 = Double.NaN;
+
+        long unanswered;
+
+        long connectionErrors;
+
+        /**
+         * why the cell has no numbers, null if it ran
+         */
+        String failure;
+
+        Result(String engine, int connections) {
+            this.engine = engine;
+            this.connections = connections;
+        }
+    }
+
+    private static List<String> split(String args) {
+        List<String> result = new ArrayList<>();
+        for (String arg : args.trim().split("\\s+")) {
+            if (!arg.isEmpty()) {
+                result.add(arg);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The `-Dprefix*` properties of this JVM, to pass them on
+     */
+    private static List<String> properties(String prefix) {
+        List<String> result = new ArrayList<>();
+        for (String property : System.getProperties().stringPropertyNames()) {
+            if (property.startsWith(prefix)) {
+                result.add("-D" + property + "=" + System.getProperty(property));
+            }
+        }
+        return result;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private Result run(String engine, int connections) throws IOException, InterruptedException {
+        Result result = new Result(engine, connections);
+        Path directory = Files.createTempDirectory("engine-bench");
+        Process server = null;
+        try {
+            Files.createFile(directory.resolve("pwd.txt"));
+            Path serverLog = directory.resolve("server.log");
+            int port = freePort();
+
+            List<String> command = new ArrayList<>();
+            command.add(ProcessHandle.current().info().command().orElse("java"));
+            command.addAll(split(serverJvmArgs));
+            command.addAll(properties("server."));
+            command.add("-Dserver.engine=" + engine);
+            command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "SimpleSignUpSignInServer"));
+            server = new ProcessBuilder(command).directory(directory.toFile()).redirectErrorStream(true)
+                    .redirectOutput(serverLog.toFile()).start();
+            // the port is asked for on stdin, which stays open for the life of the server
+            OutputStream stdin = server.getOutputStream();
+            stdin.write((port + "\n").getBytes(StandardCharsets.US_ASCII));
+            stdin.flush();
+            if (!awaitStart(server, serverLog)) {
+                result.failure = "the server did not start, see " + lastLine(serverLog);
+                return result;
+            }
+
+            command = new ArrayList<>();
+            command.add(ProcessHandle.current().info().command().orElse("java"));
+            command.addAll(split(clientJvmArgs));
+            command.add("-Dclient.load.connections=" + connections);
+            command.add("-Dclient.load.rate=" + rate);
+            command.add("-Dclient.load.warmupSeconds=" + warmupSeconds);
+            command.add("-Dclient.load.durationSeconds=" + durationSeconds);
+            command.addAll(properties("client."));
+            command.addAll(Arrays.asList("-cp", clientClasspath, "SimpleSignUpSignInClient", "--load", "127.0.0.1", String.valueOf(port)));
+            System.err.printf("# %s with %d connections%n", engine, connections);
+            Process client = new ProcessBuilder(command).redirectErrorStream(true).start();
+            boolean reported = false;
+            String last = "";
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    System.err.println("#   " + line);
+                    reported |= parse(line, result);
+                    // the failure of a stack trace, not its frames
+                    if (!line.isBlank() && !line.trim().startsWith("at ")) {
+                        last = line.trim();
+                    }
+                }
+            }
+            client.waitFor();
+            if (!reported) {
+                result.failure = last;
+            }
+            return result;
+        } finally {
+            if (server != null) {
+                server.destroy();
+                if (!server.waitFor(30, TimeUnit.SECONDS)) {
+                    server.destroyForcibly().waitFor();
+                }
+            }
+            delete(directory);
+        }
+    }
+
+    /**
+     * Wait for the server to log that it started, false if it exited or took too long
+     */
+    private static boolean awaitStart(Process server, Path serverLog) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (Files.readString(serverLog, StandardCharsets.ISO_8859_1).contains(STARTED)) {
+                return true;
+            }
+            if (!server.isAlive()) {
+                return false;
+            }
+            Thread.sleep(100);
+        }
+        return false;
+    }
+
+    private static String lastLine(Path path) throws IOException {
+        List<String> lines = Files.readAllLines(path, StandardCharsets.ISO_8859_1);
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            if (!lines.get(i).isBlank()) {
+                return lines.get(i).trim();
+            }
+        }
+        return "an empty log";
+    }
+
+    /**
+     * Take the numbers of one line of the load generator report, returns whether it was a row of its table
+     */
+    private static boolean parse(String line, Result result) {
+        String[] fields = line.trim().split("\\s+");
+        if (fields.length == 10 && (fields[0].equals("login") || fields[0].equals("register"))) {
+            // command sent answered answered/s mean p50 p90 p99 p99.9 max
+            result.answeredPerSecond += Double.parseDouble(fields[3]);
+            double p99 = Double.parseDouble(fields[7]);
+            if (fields[0].equals("login")) {
+                result.loginP99 = p99;
+            } else {
+                result.registerP99 = p99;
+            }
+            return true;
+        }
+        if (line.startsWith("unanswered ")) {
+            // unanswered N, connection errors N
+            result.unanswered = Long.parseLong(fields[1].replace(",", ""));
+            result.connectionErrors = Long.parseLong(fields[4]);
+        }
+        return false;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static String format(double millis) {
+        return Double.isNaN(millis) ? "-" : String.format("%.3f", millis);
+    }
+
+    private void run() throws IOException, InterruptedException {
+        List<Result> results = new ArrayList<>();
+        for (int connections : connectionCounts) {
+            for (String engine : engines) {
+                results.add(run(engine, connections));
+            }
+        }
+
+        System.out.printf("%-10s %11s %12s %14s %16s %11s %8s%n", "engine", "connections", "answered/s",
+                "login p99 ms", "register p99 ms", "unanswered", "errors");
+        for (Result result : results) {
+            if (result.failure != null) {
+                System.out.printf("%-10s %11d failed: %s%n", result.engine, result.connections, result.failure);
+                continue;
+            }
+            System.out.printf("%-10s %11d %12.1f %14s %16s %11d %8d%n", result.engine, result.connections,
+                    result.answeredPerSecond, format(result.loginP99), format(result.registerP99),
+                    result.unanswered, result.connectionErrors);
+        }
+
+        if (output != null) {
+            try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8))) {
+                writer.println("engine,connections,answered_per_second,login_p99_ms,register_p99_ms,unanswered,connection_errors");
+                for (Result result : results) {
+                    if (result.failure == null) {
+                        writer.println(result.engine + "," + result.connections + "," + result.answeredPerSecond + ","
+                                + result.loginP99 + "," + result.registerP99 + "," + result.unanswered + "," + result.connectionErrors);
+                    }
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        EngineBenchmark benchmark = new EngineBenchmark();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-engines":
+                    benchmark.engines = Arrays.asList(args[++i].split(","));
+                    break;
+                case "-connections":
+                    benchmark.connectionCounts = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "-rate":
+                    benchmark.rate = Double.parseDouble(args[++i]);
+                    break;
+                case "-w":
+                    benchmark.warmupSeconds = Double.parseDouble(args[++i]);
+                    break;
+                case "-d":
+                    benchmark.durationSeconds = Double.parseDouble(args[++i]);
+                    break;
+                case "-serverJvmArgs":
+                    benchmark.serverJvmArgs = args[++i];
+                    break;
+                case "-clientJvmArgs":
+                    benchmark.clientJvmArgs = args[++i];
+                    break;
+                case "-clientClasspath":
+                    benchmark.clientClasspath = args[++i];
+                    break;
+                case "-o":
+                    benchmark.output = args[++i];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option \"" + args[i] + "\".");
+            }
+        }
+        if (benchmark.clientClasspath == null) {
+            System.out.println("Usage: java -cp out EngineBenchmark -clientClasspath client-out [options]");
+            System.exit(1);
+        }
+        benchmark.run();
+    }
+}
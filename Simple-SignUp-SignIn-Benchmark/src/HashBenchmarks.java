@@ -0,0 +1,118 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * The password digests, their hex text in pwd.txt and the salts, each next to the ways it could be done instead
+ */
+public class HashBenchmarks {
+    private static final String PASSWD = "secret password";
+
+    private static final String SALT = "Zq3x9Lw0";
+
+    public static List<Benchmark> all() {
+        byte[] passwd = PASSWD.getBytes(StandardCharsets.US_ASCII);
+        byte[] salt = SALT.getBytes(StandardCharsets.US_ASCII);
+        byte[] digest = new byte[CredentialStore.DIGEST];
+        ByteBuffer hex = ByteBuffer.allocate(CredentialStore.DIGEST * 2);
+        ThreadLocal<SecureRandom> randoms = ThreadLocal.withInitial(SecureRandom::new);
+        return Arrays.asList(
+                new Benchmark("hash.sha256.string_hex") {
+                    // the original way: a new MessageDigest, Strings in and out, BigInteger hex
+                    @Override
+                    public long run() throws Exception {
+                        return SHA256Utils.toHexString(SHA256Utils.getSHA(PASSWD + SALT)).length();
+                    }
+                },
+                new Benchmark("hash.sha256.thread_local_digest") {
+                    @Override
+                    public boolean isAllocationFree() {
+                        return true;
+                    }
+
+                    @Override
+                    public long run() throws Exception {
+                        SHA256Utils.getSHA(passwd, 0, passwd.length, salt, 0, salt.length, digest, 0);
+                        return digest[0];
+                    }
+                },
+                new Benchmark("hash.sha256.thread_local_digest_hex") {
+                    @Override
+                    public boolean isAllocationFree() {
+                        return true;
+                    }
+
+                    // what the journal does per registration
+                    @Override
+                    public long run() throws Exception {
+                        SHA256Utils.getSHA(passwd, 0, passwd.length, salt, 0, salt.length, digest, 0);
+                        hex.clear();
+                        SHA256Utils.putHex(hex, digest, 0, CredentialStore.DIGEST);
+                        return hex.get(0);
+                    }
+                },
+                new Benchmark("hash.hex.biginteger") {
+                    @Override
+                    public long run() {
+                        return SHA256Utils.toHexString(digest).length();
+                    }
+                },
+                new Benchmark("hash.hex.table") {
+                    @Override
+                    public boolean isAllocationFree() {
+                        return true;
+                    }
+
+                    @Override
+                    public long run() {
+                        hex.clear();
+                        SHA256Utils.putHex(hex, digest, 0, CredentialStore.DIGEST);
+                        return hex.get(0);
+                    }
+                },
+                new Benchmark("hash.pbkdf2_sha256.1000") {
+                    @Override
+                    public long run() throws Exception {
+                        PasswordHashers.PBKDF2_SHA256.hash(passwd, 0, passwd.length, salt, 0, 1000, digest, 0);
+                        return digest[0];
+                    }
+                },
+                new Benchmark("salt.new_secure_random") {
+                    // the original way: a new SecureRandom and a Base64 String per salt
+                    @Override
+                    public long run() {
+                        byte[] bytes = new byte[CredentialStore.SALT];
+                        new SecureRandom().nextBytes(bytes);
+                        return Base64.getEncoder().withoutPadding().encodeToString(bytes).charAt(0);
+                    }
+                },
+                new Benchmark("salt.thread_local_secure_random") {
+                    // the same salt without a new SecureRandom per call
+                    private final byte[] bytes = new byte[CredentialStore.SALT];
+
+                    @Override
+                    public long run() {
+                        randoms.get().nextBytes(bytes);
+                        return Base64.getEncoder().withoutPadding().encodeToString(bytes).charAt(0);
+                    }
+                },
+                new Benchmark("salt.random_string_generator") {
+                    // what a registration does, written into its record
+                    private final byte[] record = new byte[CredentialStore.RECORD];
+
+                    @Override
+                    public boolean isAllocationFree() {
+                        return true;
+                    }
+
+                    @Override
+                    public long run() {
+                        RandomStringGenerator.generate(record, CredentialStore.KEY, CredentialStore.SALT);
+                        return record[CredentialStore.KEY];
+                    }
+                });
+    }
+}
@@ -0,0 +1,105 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Startup loads of pwd.txt and of its snapshot with `-Dbench.loader.users` users (100k and 1M by default). The files
+ * are written to a temporary directory by `setup` and one operation is a whole load into an empty store.
+ */
+public class LoaderBenchmarks {
+    public static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (String users : System.getProperty("bench.loader.users", "100000,1000000").split(",")) {
+            int count = Integer.parseInt(users.trim());
+            benchmarks.add(new Load("loader.pwd_txt." + count, count, false));
+            benchmarks.add(new Load("loader.snapshot." + count, count, true));
+        }
+        return benchmarks;
+    }
+
+    private static class Load extends Benchmark {
+        private final int count;
+
+        private final boolean snapshot;
+
+        private Path directory;
+
+        private Path pwdPath;
+
+        private Path snapshotPath;
+
+        Load(String name, int count, boolean snapshot) {
+            super(name);
+            this.count = count;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("pwd-bench");
+            pwdPath = directory.resolve("pwd.txt");
+            snapshotPath = directory.resolve("pwd.snapshot");
+            writePwdFile(pwdPath, count);
+            if (snapshot) {
+                CredentialStore store = new CredentialStore(count);
+                PwdFileLoader.load(pwdPath, 0, store, Runtime.getRuntime().availableProcessors());
+                CRC32C checksum = new CRC32C();
+                try (FileChannel channel = FileChannel.open(pwdPath, StandardOpenOption.READ)) {
+                    CredentialSnapshot.checksum(channel, 0, channel.size(), checksum);
+                }
+                CredentialSnapshot.write(snapshotPath, store, Files.size(pwdPath), (int) checksum.getValue());
+            }
+        }
+
+        @Override
+        public long run() throws IOException {
+            CredentialStore store = new CredentialStore(count);
+            if (snapshot) {
+                return CredentialSnapshot.load(snapshotPath, store, pwdPath) + store.size();
+            }
+            return PwdFileLoader.load(pwdPath, 0, store, Runtime.getRuntime().availableProcessors());
+        }
+
+        @Override
+        public void teardown() throws IOException {
+            Files.deleteIfExists(snapshotPath);
+            Files.deleteIfExists(pwdPath);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * `count` lines of `username:salt:digest`, the format the journal writes
+     */
+    private static void writePwdFile(Path path, int count) throws IOException {
+        byte[] record = new byte[CredentialStore.RECORD];
+        ByteBuffer line = ByteBuffer.allocate(CredentialStore.KEY + CredentialStore.SALT + CredentialStore.DIGEST * 2 + 3);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16)) {
+            for (int i = 0; i < count; i++) {
+                int length = StoreBenchmarks.key(i, 'u', record);
+                line.clear();
+                line.put(record, 0, length);
+                line.put((byte) ':');
+                // printable salts, as the server generates them
+                for (int j = 0; j < CredentialStore.SALT; j++) {
+                    line.put((byte) ('a' + (i + j * 7) % 26));
+                }
+                line.put((byte) ':');
+                for (int j = 0; j < CredentialStore.DIGEST; j++) {
+                    record[CredentialStore.KEY + j] = (byte) (i * 31 + j);
+                }
+                SHA256Utils.putHex(line, record, CredentialStore.KEY, CredentialStore.DIGEST);
+                line.put((byte) '\n');
+                out.write(line.array(), 0, line.position());
+            }
+        }
+    }
+}
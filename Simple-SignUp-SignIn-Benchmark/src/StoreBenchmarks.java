@@ -0,0 +1,177 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Lookups and inserts of `CredentialStore`, the table that replaced `userPasswordDictionary`, at the sizes of
+ * `-Dbench.store.users` (1M and 10M users by default). Every benchmark fills its own store, so run them forked.
+ */
+public class StoreBenchmarks {
+    /**
+     * random keys looked up in turn, few enough to stay in the CPU caches so the table probes are what is measured
+     */
+    private static final int SAMPLE_KEYS = 1 << 16;
+
+    public static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (String users : System.getProperty("bench.store.users", "1000000,10000000").split(",")) {
+            int count = Integer.parseInt(users.trim());
+            benchmarks.add(new Lookup("store.get.hit." + count, count, true));
+            benchmarks.add(new Lookup("store.get.miss." + count, count, false));
+            benchmarks.add(new Insert("store.put_if_absent." + count, count, false));
+            benchmarks.add(new Insert("store.reserve_commit." + count, count, true));
+        }
+        return benchmarks;
+    }
+
+    /**
+     * A record of user `i`, the same on every run
+     */
+    static void record(long i, char prefix, byte[] record) {
+        int length = key(i, prefix, record);
+        SplittableRandom random = new SplittableRandom(i);
+        for (int j = length; j < CredentialStore.RECORD; j++) {
+            record[j] = j < CredentialStore.KEY ? 0 : (byte) random.nextInt();
+        }
+        PasswordHashers.writeParams(record, CredentialStore.KEY + CredentialStore.SALT + CredentialStore.DIGEST, 0);
+    }
+
+    /**
+     * Write the username `prefix` + `i` to `key`, returns its length
+     */
+    static int key(long i, char prefix, byte[] key) {
+        int length = 0;
+        key[length++] = (byte) prefix;
+        String digits = Long.toString(i);
+        for (int j = 0; j < digits.length(); j++) {
+            key[length++] = (byte) digits.charAt(j);
+        }
+        for (int j = length; j < CredentialStore.KEY; j++) {
+            key[j] = 0;
+        }
+        return length;
+    }
+
+    static CredentialStore fill(int count) {
+        CredentialStore store = new CredentialStore(count);
+        byte[] record = new byte[CredentialStore.RECORD];
+        for (int i = 0; i < count; i++) {
+            record(i, 'u', record);
+            store.putIfAbsent(record, 0);
+        }
+        return store;
+    }
+
+    private static class Lookup extends Benchmark {
+        private final int count;
+
+        private final boolean hit;
+
+        private CredentialStore store;
+
+        private final byte[] keys = new byte[SAMPLE_KEYS * CredentialStore.KEY];
+
+        private final byte[] entry = new byte[CredentialStore.ENTRY];
+
+        private int next;
+
+        Lookup(String name, int count, boolean hit) {
+            super(name);
+            this.count = count;
+            this.hit = hit;
+        }
+
+        @Override
+        public void setup() {
+            store = fill(count);
+            SplittableRandom random = new SplittableRandom(42);
+            byte[] key = new byte[CredentialStore.KEY];
+            for (int i = 0; i < SAMPLE_KEYS; i++) {
+                // misses use a prefix no stored user has
+                key(random.nextInt(count), hit ? 'u' : 'm', key);
+                System.arraycopy(key, 0, keys, i * CredentialStore.KEY, CredentialStore.KEY);
+            }
+        }
+
+        @Override
+        public long run() {
+            int offset = next * CredentialStore.KEY;
+            next = (next + 1) & (SAMPLE_KEYS - 1);
+            return store.get(keys, offset, entry, 0) ? entry[0] : 0;
+        }
+
+        @Override
+        public void teardown() {
+            store = null;
+        }
+    }
+
+    /**
+     * New users into a store of `count` users. The store is refilled before each iteration and an iteration adds at
+     * most a tenth of `count`, so the size stays close to `count`.
+     */
+    private static class Insert extends Benchmark {
+        private final int count;
+
+        /**
+         * whether to insert the way a registration does, reserving the username before committing the record
+         */
+        private final boolean reserve;
+
+        private CredentialStore store;
+
+        /**
+         * the records of the new users, built up front so their making is not measured
+         */
+        private byte[] records;
+
+        private int next;
+
+        Insert(String name, int count, boolean reserve) {
+            super(name);
+            this.count = count;
+            this.reserve = reserve;
+        }
+
+        @Override
+        public void setup() {
+            records = new byte[(int) getMaxOperations() * CredentialStore.RECORD];
+            byte[] record = new byte[CredentialStore.RECORD];
+            for (int i = 0; i < getMaxOperations(); i++) {
+                record(i, 'n', record);
+                System.arraycopy(record, 0, records, i * CredentialStore.RECORD, CredentialStore.RECORD);
+            }
+        }
+
+        @Override
+        public void setupIteration() {
+            store = null;
+            store = fill(count);
+            next = 0;
+        }
+
+        @Override
+        public long getMaxOperations() {
+            return Math.max(1, count / 10);
+        }
+
+        @Override
+        public long run() {
+            int offset = next++ * CredentialStore.RECORD;
+            if (!reserve) {
+                return store.putIfAbsent(records, offset) ? 1 : 0;
+            }
+            if (!store.reserve(records, offset)) {
+                return 0;
+            }
+            store.commit(records, offset);
+            return 1;
+        }
+
+        @Override
+        public void teardown() {
+            store = null;
+            records = null;
+        }
+    }
+}
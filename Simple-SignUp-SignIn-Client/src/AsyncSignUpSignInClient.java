@@ -0,0 +1,79 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Programmatic client for services embedding sign up and sign in. Each call returns at once with a future and is
+ * dispatched to the least loaded connection of a `ClientConnectionPool`. Any number of requests may be in flight on
+ * a connection and their responses are matched to them in order, as the protocol carries no correlation ID.
+ * Calls are safe from any thread and take no locks. Futures complete on the I/O threads of the client.
+ * <p>
+ * A request not answered within its timeout fails with a `TimeoutException`, one whose connection is lost or closed
+ * fails with an `IOException`. Invalid usernames or passwords are rejected with an `IllegalArgumentException`.
+ */
+public class AsyncSignUpSignInClient implements Closeable {
+    private final ClientConnectionPool pool;
+
+    /**
+     * A client with `ClientConfig.poolConnections` connections over `ClientConfig.poolSelectors` threads
+     */
+    public AsyncSignUpSignInClient(String remoteIP, int remotePort) throws IOException {
+        this(remoteIP, remotePort, ClientConfig.poolConnections, ClientConfig.poolSelectors);
+    }
+
+    public AsyncSignUpSignInClient(String remoteIP, int remotePort, int connectionCount, int selectorCount) throws IOException {
+        this.pool = new ClientConnectionPool(new InetSocketAddress(remoteIP, remotePort), connectionCount, selectorCount);
+    }
+
+    /**
+     * Register a new user, waiting at most `ClientConfig.requestTimeoutMillis` for the response
+     */
+    public CompletableFuture<RegistrationResult> register(String userName, String passwd) {
+        return register(userName, passwd, ClientConfig.requestTimeoutMillis);
+    }
+
+    public CompletableFuture<RegistrationResult> register(String userName, String passwd, long timeoutMillis) {
+        byte[] msg = ClientCodec.credentialsV2(CommandID.REG_REQ_V2, userName, passwd, 0);
+        PendingRequest<RegistrationResult> request = new PendingRequest<>(msg, CommandID.REG_RESP_V2, timeoutMillis,
+                (status, description, sessionToken) -> new RegistrationResult(status, description));
+        pool.submit(request);
+        return request.getFuture();
+    }
+
+    /**
+     * Sign in and ask for a session token, waiting at most `ClientConfig.requestTimeoutMillis` for the response
+     */
+    public CompletableFuture<LoginResult> login(String userName, String passwd) {
+        return login(userName, passwd, ClientConfig.requestTimeoutMillis);
+    }
+
+    public CompletableFuture<LoginResult> login(String userName, String passwd, long timeoutMillis) {
+        byte[] msg = ClientCodec.credentialsV2(CommandID.LOGIN_REQ_V2, userName, passwd, ClientCodec.LOGIN_FLAG_TOKEN);
+        PendingRequest<LoginResult> request = new PendingRequest<>(msg, CommandID.LOGIN_RESP_V2, timeoutMillis, LoginResult::new);
+        pool.submit(request);
+        return request.getFuture();
+    }
+
+    /**
+     * Whether every connection is closed
+     */
+    public boolean isClosed() {
+        return pool.getOpenConnections() == 0;
+    }
+
+    /**
+     * Requests sent or about to be sent and not answered yet
+     */
+    public int getInFlightRequests() {
+        return pool.getLoad();
+    }
+
+    /**
+     * Close the connections, requests still unanswered fail
+     */
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
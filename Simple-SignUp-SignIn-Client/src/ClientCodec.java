@@ -0,0 +1,60 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding of the requests and decoding of the v2 responses of the programmatic client
+ */
+public class ClientCodec {
+    /**
+     * LOGIN_REQ_V2 flag asking for a session token
+     */
+    public static final int LOGIN_FLAG_TOKEN = 1;
+
+    /**
+     * A REG_REQ_V2 or LOGIN_REQ_V2, whose fields are prefixed with their varint lengths instead of padded.
+     * `flags` are only sent if they are not 0.
+     */
+    public static byte[] credentialsV2(int commandID, String userName, String passwd, int flags) {
+        byte[] userNameBytes = field(userName, "username", FieldLength.regReqUserName);
+        byte[] passwdBytes = field(passwd, "password", FieldLength.regReqPasswd);
+
+        // both lengths are below 128, so each varint takes one byte
+        int totalLength = FieldLength.header + 1 + userNameBytes.length + 1 + passwdBytes.length + (flags != 0 ? 1 : 0);
+        ByteBuffer msg = ByteBuffer.allocate(totalLength);
+        msg.putInt(totalLength);
+        msg.putInt(commandID);
+        msg.put((byte) userNameBytes.length);
+        msg.put(userNameBytes);
+        msg.put((byte) passwdBytes.length);
+        msg.put(passwdBytes);
+        if (flags != 0) {
+            msg.put((byte) flags);
+        }
+        return msg.array();
+    }
+
+    private static byte[] field(String value, String name, int maxLength) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Empty " + name + " is not allowed.");
+        }
+        if (!StandardCharsets.US_ASCII.newEncoder().canEncode(value) || value.length() > maxLength) {
+            throw new IllegalArgumentException("The " + name + " should be no longer than " + maxLength + " bytes in ASCII.");
+        }
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Read a varint of up to 32 bits at the buffer position, -1 if it does not end before `limit`
+     */
+    public static int getVarint(ByteBuffer buffer, int limit) {
+        int value = 0;
+        for (int shift = 0; shift < 7 * FieldLength.v2MaxVarint && buffer.position() < limit; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+}
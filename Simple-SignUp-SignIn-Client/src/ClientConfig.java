@@ -0,0 +1,80 @@
+public class ClientConfig {
+    /**
+     * The number of connections `AsyncSignUpSignInClient` spreads its requests over, defaults to the number of cores.
+     * Set with `-Dclient.pool.connections=N`
+     */
+    public static final int poolConnections = Math.max(1, Integer.getInteger("client.pool.connections", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The number of selector threads serving the connections of `AsyncSignUpSignInClient`, defaults to the number of
+     * cores. Set with `-Dclient.pool.selectors=N`
+     */
+    public static final int poolSelectors = Math.max(1, Integer.getInteger("client.pool.selectors", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * How long a request of `AsyncSignUpSignInClient` may wait for its response by default, in milliseconds.
+     * Set with `-Dclient.requestTimeoutMillis=N`
+     */
+    public static final long requestTimeoutMillis = Math.max(1L, Long.getLong("client.requestTimeoutMillis", 10_000L));
+
+    /**
+     * The resolution of the request timeouts, in milliseconds. Set with `-Dclient.timeout.tickMillis=N`
+     */
+    public static final long timeoutTickMillis = Math.max(1L, Long.getLong("client.timeout.tickMillis", 10L));
+
+    /**
+     * The number of connections the load generator opens. Set with `-Dclient.load.connections=N`
+     */
+    public static final int loadConnections = Math.max(1, Integer.getInteger("client.load.connections", 1000));
+
+    /**
+     * The number of selector threads sharing the connections, defaults to the number of cores.
+     * Set with `-Dclient.load.selectors=N`
+     */
+    public static final int loadSelectors = Math.max(1, Integer.getInteger("client.load.selectors", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The requests per second sent on schedule whether or not earlier ones were answered.
+     * Set with `-Dclient.load.rate=N`
+     */
+    public static final double loadRate = Math.max(1.0, Double.parseDouble(System.getProperty("client.load.rate", "10000")));
+
+    /**
+     * The share of logins among the requests, the others are registrations of new users.
+     * Set with `-Dclient.load.loginRatio=R`
+     */
+    public static final double loadLoginRatio = Math.min(1.0, Math.max(0.0, Double.parseDouble(System.getProperty("client.load.loginRatio", "0.9"))));
+
+    /**
+     * How long requests are sent before they are measured, in seconds. Set with `-Dclient.load.warmupSeconds=N`
+     */
+    public static final double loadWarmupSeconds = Math.max(0.0, Double.parseDouble(System.getProperty("client.load.warmupSeconds", "5")));
+
+    /**
+     * How long requests are measured, in seconds. Set with `-Dclient.load.durationSeconds=N`
+     */
+    public static final double loadDurationSeconds = Math.max(0.001, Double.parseDouble(System.getProperty("client.load.durationSeconds", "30")));
+
+    /**
+     * How long the answers of the last requests are waited for, in seconds. Set with `-Dclient.load.drainSeconds=N`
+     */
+    public static final double loadDrainSeconds = Math.max(0.0, Double.parseDouble(System.getProperty("client.load.drainSeconds", "5")));
+
+    /**
+     * The number of users registered before the run for the logins to pick from. Set with `-Dclient.load.users=N`
+     */
+    public static final int loadUsers = Math.max(0, Integer.getInteger("client.load.users", 10000));
+
+    /**
+     * The start of every generated username, at most 8 characters. Runs with the same prefix reuse the users of the
+     * earlier ones, defaults to one made from the current time. Set with `-Dclient.load.prefix=text`
+     */
+    public static final String loadPrefix = System.getProperty("client.load.prefix", Long.toString(System.currentTimeMillis() / 1000, 36));
+
+    /**
+     * Local addresses the load generator binds its connections to in turn, comma separated. One address runs out of
+     * ephemeral ports at about 28k connections to a server, several loopback addresses such as 127.0.0.1,127.0.0.2
+     * lift that. Empty leaves the choice to the OS. Set with `-Dclient.load.localAddresses=a,b`
+     */
+    public static final String loadLocalAddresses = System.getProperty("client.load.localAddresses", "");
+}
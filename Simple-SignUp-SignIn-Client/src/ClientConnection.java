@@ -0,0 +1,122 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-connection state of a client event loop. Requests are pipelined: they are written in the order they were
+ * submitted and the server answers them in that order, so the head of `inFlightRequests` owns the next response.
+ */
+public class ClientConnection {
+    /**
+     * non-blocking socket to the server
+     */
+    private final SocketChannel socketChannel;
+
+    /**
+     * the loop serving the connection
+     */
+    private final ClientEventLoop eventLoop;
+
+    /**
+     * Requests dispatched to the connection and not answered or failed yet, read by the pool to pick the least
+     * loaded connection
+     */
+    private final AtomicInteger load;
+
+    /**
+     * input buffer in write mode holding a partial response
+     */
+    private ByteBuffer inputBuffer;
+
+    /**
+     * output buffer in write mode holding the request bytes the socket has not taken yet
+     */
+    private ByteBuffer outputBuffer;
+
+    /**
+     * Requests written or about to be written and not answered yet, in submission order
+     */
+    private final ArrayDeque<PendingRequest<?>> inFlightRequests;
+
+    /**
+     * the key of the socket channel in the selector of its event loop
+     */
+    private SelectionKey selectionKey;
+
+    /**
+     * Whether the loop has output to write before it selects again
+     */
+    private boolean flushPending;
+
+    /**
+     * Set by the loop once the connection failed or was closed, read by submitting threads
+     */
+    private volatile boolean closed;
+
+    public ClientConnection(SocketChannel socketChannel, ClientEventLoop eventLoop) {
+        this.socketChannel = socketChannel;
+        this.eventLoop = eventLoop;
+        this.load = new AtomicInteger();
+        this.inputBuffer = ByteBuffer.allocate(1 << 10);
+        this.outputBuffer = ByteBuffer.allocate(1 << 10);
+        this.inFlightRequests = new ArrayDeque<>();
+    }
+
+    public SocketChannel getSocketChannel() {
+        return this.socketChannel;
+    }
+
+    public ClientEventLoop getEventLoop() {
+        return this.eventLoop;
+    }
+
+    public AtomicInteger getLoad() {
+        return this.load;
+    }
+
+    public ByteBuffer getInputBuffer() {
+        return this.inputBuffer;
+    }
+
+    public void setInputBuffer(ByteBuffer inputBuffer) {
+        this.inputBuffer = inputBuffer;
+    }
+
+    public ByteBuffer getOutputBuffer() {
+        return this.outputBuffer;
+    }
+
+    public void setOutputBuffer(ByteBuffer outputBuffer) {
+        this.outputBuffer = outputBuffer;
+    }
+
+    public ArrayDeque<PendingRequest<?>> getInFlightRequests() {
+        return this.inFlightRequests;
+    }
+
+    public SelectionKey getSelectionKey() {
+        return this.selectionKey;
+    }
+
+    public void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    public boolean isFlushPending() {
+        return this.flushPending;
+    }
+
+    public void setFlushPending(boolean flushPending) {
+        this.flushPending = flushPending;
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    public void setClosed(boolean closed) {
+        this.closed = closed;
+    }
+}
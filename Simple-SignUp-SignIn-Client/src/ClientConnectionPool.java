@@ -0,0 +1,132 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Pipelined connections to one server spread round-robin over event loop threads, each connection with its own
+ * buffers and queue of unanswered requests. A request goes to the less loaded of two connections picked at random,
+ * which keeps the load as even as a scan for the least loaded one would without touching every connection.
+ * Connections the server closes are skipped, they are not reopened.
+ */
+public class ClientConnectionPool implements Closeable {
+    private final ClientEventLoop[] eventLoops;
+
+    private final Thread[] ioThreads;
+
+    private final ClientConnection[] connections;
+
+    public ClientConnectionPool(InetSocketAddress address, int connectionCount, int selectorCount) throws IOException {
+        this.eventLoops = new ClientEventLoop[Math.max(1, Math.min(selectorCount, connectionCount))];
+        this.ioThreads = new Thread[eventLoops.length];
+        this.connections = new ClientConnection[Math.max(1, connectionCount)];
+        try {
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new ClientEventLoop();
+                ioThreads[i] = new Thread(eventLoops[i], "client-io-" + i);
+                ioThreads[i].setDaemon(true);
+                ioThreads[i].start();
+            }
+            for (int i = 0; i < connections.length; i++) {
+                // Establish connection
+                SocketChannel socketChannel = SocketChannel.open(address);
+                socketChannel.configureBlocking(false);
+                socketChannel.socket().setTcpNoDelay(true);
+                connections[i] = new ClientConnection(socketChannel, eventLoops[i % eventLoops.length]);
+                connections[i].getEventLoop().register(connections[i]);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Dispatch a request to the less loaded of two open connections. Safe to call from any thread, never blocks.
+     */
+    public void submit(PendingRequest<?> request) {
+        ClientConnection connection = pick();
+        if (connection == null) {
+            request.fail(new IOException("No connection to the server is open."));
+            return;
+        }
+        connection.getLoad().incrementAndGet();
+        request.setConnection(connection);
+        connection.getEventLoop().submit(request);
+    }
+
+    private ClientConnection pick() {
+        if (connections.length == 1) {
+            return connections[0].isClosed() ? null : connections[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ClientConnection first = connections[random.nextInt(connections.length)];
+        ClientConnection second = connections[random.nextInt(connections.length)];
+        if (first.isClosed()) {
+            first = second;
+        }
+        if (!second.isClosed() && second.getLoad().get() < first.getLoad().get()) {
+            first = second;
+        }
+        if (!first.isClosed()) {
+            return first;
+        }
+        // both were closed, take any open one
+        for (ClientConnection connection : connections) {
+            if (!connection.isClosed()) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The number of connections not closed yet
+     */
+    public int getOpenConnections() {
+        int open = 0;
+        for (ClientConnection connection : connections) {
+            if (connection != null && !connection.isClosed()) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Requests dispatched and not answered yet, over all connections
+     */
+    public int getLoad() {
+        int load = 0;
+        for (ClientConnection connection : connections) {
+            if (connection != null) {
+                load += connection.getLoad().get();
+            }
+        }
+        return load;
+    }
+
+    /**
+     * Close every connection and stop the loops, requests still unanswered fail
+     */
+    @Override
+    public void close() {
+        for (ClientEventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.shutdown();
+            }
+        }
+        for (Thread ioThread : ioThreads) {
+            if (ioThread == null) {
+                continue;
+            }
+            try {
+                ioThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
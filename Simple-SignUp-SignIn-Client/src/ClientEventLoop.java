@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Selector thread of the programmatic client, serving any number of pipelined connections. Other threads only hand
+ * it connections and requests through lock-free queues, so submitting a request never blocks. Futures are completed
+ * on the loop thread, dependent stages with real work should use the `...Async` methods.
+ */
+public class ClientEventLoop implements Runnable {
+    /**
+     * Slots of the timing wheel, one revolution covers this many ticks
+     */
+    private static final int TIMING_WHEEL_SLOTS = 512;
+
+    /**
+     * The longest response accepted, the metrics text being the longest by far
+     */
+    private static final int MAX_RESPONSE_LENGTH = 16 << 20;
+
+    private static final long ORIGIN_NANOS = System.nanoTime();
+
+    private final Selector selector;
+
+    /**
+     * Connections handed over by other threads which are not registered to the selector yet
+     */
+    private final ConcurrentLinkedQueue<ClientConnection> pendingConnections;
+
+    /**
+     * Requests submitted by other threads which are not in line on their connection yet
+     */
+    private final ConcurrentLinkedQueue<PendingRequest<?>> submittedRequests;
+
+    /**
+     * Whether a wakeup of the selector is on its way
+     */
+    private final AtomicBoolean wakeupPending;
+
+    /**
+     * Connections registered to the selector, only touched by the loop thread
+     */
+    private final List<ClientConnection> connections;
+
+    /**
+     * Connections with new output, flushed once all submitted requests are in line
+     */
+    private final List<ClientConnection> flushConnections;
+
+    /**
+     * Deadlines of the unanswered requests, only touched by the loop thread
+     */
+    private final TimingWheel timingWheel;
+
+    private final Consumer<TimingWheel.Timer> timeoutHandler = this::expire;
+
+    private final Consumer<SelectionKey> keyHandler = this::handleKey;
+
+    private volatile boolean running;
+
+    /**
+     * Set once the loop stopped taking requests, submitting threads then fail their own
+     */
+    private volatile boolean stopped;
+
+    public ClientEventLoop() throws IOException {
+        this.selector = Selector.open();
+        this.pendingConnections = new ConcurrentLinkedQueue<>();
+        this.submittedRequests = new ConcurrentLinkedQueue<>();
+        this.wakeupPending = new AtomicBoolean();
+        this.connections = new ArrayList<>();
+        this.flushConnections = new ArrayList<>();
+        this.timingWheel = new TimingWheel(TIMING_WHEEL_SLOTS, ClientConfig.timeoutTickMillis, currentMillis());
+        this.running = true;
+    }
+
+    /**
+     * Milliseconds of a clock shared by the loops and the submitting threads
+     */
+    public static long currentMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ORIGIN_NANOS) + 1;
+    }
+
+    /**
+     * Hand a connected non-blocking connection over to this loop. Safe to call from any thread.
+     */
+    public void register(ClientConnection connection) {
+        pendingConnections.offer(connection);
+        if (stopped) {
+            closePendingConnections();
+        } else {
+            wakeup();
+        }
+    }
+
+    /**
+     * Queue a request for its connection, whose load the caller has already counted it in.
+     * Safe to call from any thread, never blocks.
+     */
+    public void submit(PendingRequest<?> request) {
+        submittedRequests.offer(request);
+        if (stopped) {
+            // the loop may have drained the queue for the last time before the offer
+            failSubmittedRequests();
+        } else {
+            wakeup();
+        }
+    }
+
+    /**
+     * Close every connection and stop the loop, unanswered requests fail. Safe to call from any thread.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void wakeup() {
+        // many threads submitting at once only need one wakeup
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void registerPendingConnections() {
+        ClientConnection connection;
+        while ((connection = pendingConnections.poll()) != null) {
+            try {
+                connection.setSelectionKey(connection.getSocketChannel().register(selector, SelectionKey.OP_READ, connection));
+                connections.add(connection);
+            } catch (IOException e) {
+                close(connection, e);
+            }
+        }
+    }
+
+    /**
+     * Put every submitted request in line on its connection, then write each connection once
+     */
+    private void sendSubmittedRequests() {
+        PendingRequest<?> request;
+        while ((request = submittedRequests.poll()) != null) {
+            ClientConnection connection = request.getConnection();
+            if (connection.isClosed()) {
+                connection.getLoad().decrementAndGet();
+                request.fail(new IOException("The connection to the server is closed."));
+                continue;
+            }
+            if (request.getFuture().isDone()) {
+                // cancelled before it was sent
+                connection.getLoad().decrementAndGet();
+                continue;
+            }
+            ByteBuffer outputBuffer = connection.getOutputBuffer();
+            byte[] msg = request.getMsg();
+            if (outputBuffer.remaining() < msg.length) {
+                outputBuffer.flip();
+                outputBuffer = ByteBuffer.allocate(Math.max(outputBuffer.capacity() * 2, outputBuffer.remaining() + msg.length)).put(outputBuffer);
+                connection.setOutputBuffer(outputBuffer);
+            }
+            outputBuffer.put(msg);
+            connection.getInFlightRequests().addLast(request);
+            timingWheel.schedule(request, request.getDeadlineMillis());
+            if (!connection.isFlushPending()) {
+                connection.setFlushPending(true);
+                flushConnections.add(connection);
+            }
+        }
+
+        for (ClientConnection connection : flushConnections) {
+            connection.setFlushPending(false);
+            if (connection.isClosed()) {
+                continue;
+            }
+            try {
+                flush(connection);
+            } catch (IOException e) {
+                close(connection, e);
+            }
+        }
+        flushConnections.clear();
+    }
+
+    private void flush(ClientConnection connection) throws IOException {
+        ByteBuffer outputBuffer = connection.getOutputBuffer();
+        outputBuffer.flip();
+        connection.getSocketChannel().write(outputBuffer);
+        outputBuffer.compact();
+
+        // ask for OP_WRITE only while bytes are left, a writable socket would wake the selector forever
+        int interestOps = outputBuffer.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        SelectionKey key = connection.getSelectionKey();
+        if (key.interestOps() != interestOps) {
+            key.interestOps(interestOps);
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        ClientConnection connection = (ClientConnection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                read(connection);
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(connection);
+            }
+        } catch (IOException e) {
+            close(connection, e);
+        }
+    }
+
+    private void read(ClientConnection connection) throws IOException {
+        ByteBuffer inputBuffer = connection.getInputBuffer();
+        if (connection.getSocketChannel().read(inputBuffer) < 0) {
+            close(connection, new IOException("The server closed the connection."));
+            return;
+        }
+
+        // process all complete responses in one go
+        inputBuffer.flip();
+        while (inputBuffer.remaining() >= FieldLength.header) {
+            int totalLength = inputBuffer.getInt(inputBuffer.position());
+            int commandID = inputBuffer.getInt(inputBuffer.position() + FieldLength.totalLengthField);
+            if (totalLength < FieldLength.header + FieldLength.v2RespStatus || totalLength > MAX_RESPONSE_LENGTH) {
+                throw new IOException("Invalid msg length " + totalLength + " was received.");
+            }
+            if (inputBuffer.remaining() < totalLength) {
+                if (totalLength > inputBuffer.capacity()) {
+                    // make room for the whole msg
+                    connection.setInputBuffer(ByteBuffer.allocate(totalLength).put(inputBuffer));
+                    return;
+                }
+                break;
+            }
+
+            PendingRequest<?> request = connection.getInFlightRequests().peekFirst();
+            if (request == null || request.getResponseCommandID() != commandID) {
+                // should never happen, the server answers in request order
+                throw new IOException("Unexpected command ID " + commandID + " was received.");
+            }
+            connection.getInFlightRequests().pollFirst();
+            connection.getLoad().decrementAndGet();
+            int end = inputBuffer.position() + totalLength;
+            inputBuffer.position(inputBuffer.position() + FieldLength.header);
+            timingWheel.cancel(request);
+            complete(request, inputBuffer, end);
+            inputBuffer.position(end);
+        }
+        inputBuffer.compact();
+    }
+
+    /**
+     * Complete a request with the v2 response body between the buffer position and `end`:
+     * a status, a varint length and a description, then an optional session token
+     */
+    private static void complete(PendingRequest<?> request, ByteBuffer body, int end) {
+        StatusCode status = StatusCode.forCode(body.get() & 0xff);
+        int descriptionLength = ClientCodec.getVarint(body, end);
+        if (status == null || descriptionLength < 0 || descriptionLength > end - body.position()) {
+            request.fail(new IOException("Invalid response was received."));
+            return;
+        }
+        String description = status.getDescription();
+        if (descriptionLength > 0) {
+            byte[] descriptionBytes = new byte[descriptionLength];
+            body.get(descriptionBytes);
+            description = new String(descriptionBytes, StandardCharsets.US_ASCII);
+        }
+        byte[] sessionToken = null;
+        if (end - body.position() >= FieldLength.sessionToken) {
+            sessionToken = new byte[FieldLength.sessionToken];
+            body.get(sessionToken);
+        }
+        request.complete(status, description, sessionToken);
+    }
+
+    /**
+     * Called by the timing wheel once the deadline of a request has passed
+     */
+    private void expire(TimingWheel.Timer timer) {
+        PendingRequest<?> request = (PendingRequest<?>) timer;
+        request.fail(new TimeoutException("No response from the server in time."));
+    }
+
+    /**
+     * Close a connection and fail its unanswered requests with `cause`
+     */
+    private void close(ClientConnection connection, IOException cause) {
+        if (connection.isClosed()) {
+            return;
+        }
+        connection.setClosed(true);
+        SelectionKey key = connection.getSelectionKey();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            connection.getSocketChannel().close();
+        } catch (IOException e) {
+            // the connection is gone either way
+        }
+        PendingRequest<?> request;
+        while ((request = connection.getInFlightRequests().pollFirst()) != null) {
+            connection.getLoad().decrementAndGet();
+            timingWheel.cancel(request);
+            request.fail(cause);
+        }
+    }
+
+    private void closePendingConnections() {
+        ClientConnection connection;
+        while ((connection = pendingConnections.poll()) != null) {
+            close(connection, new IOException("The client is closed."));
+        }
+    }
+
+    private void failSubmittedRequests() {
+        PendingRequest<?> request;
+        while ((request = submittedRequests.poll()) != null) {
+            request.getConnection().getLoad().decrementAndGet();
+            request.fail(new IOException("The client is closed."));
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                // ready keys are handed to keyHandler without going through the selected-key set,
+                // wake up every tick while some request has a deadline
+                selector.select(keyHandler, timingWheel.isEmpty() ? 0 : ClientConfig.timeoutTickMillis);
+                wakeupPending.set(false);
+                registerPendingConnections();
+                sendSubmittedRequests();
+                timingWheel.advance(currentMillis(), timeoutHandler);
+            }
+        } catch (IOException e) {
+            // should never happen, the selector itself failed
+            e.printStackTrace();
+        } finally {
+            stopped = true;
+            IOException cause = new IOException("The client is closed.");
+            for (ClientConnection connection : connections) {
+                close(connection, cause);
+            }
+            closePendingConnections();
+            failSubmittedRequests();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+    }
+}
@@ -6,5 +6,29 @@ public class CommandID {
     public static final int LOGIN_REQ = 3;
 
     public static final int LOGIN_RESP = 4;
+
+    public static final int BATCH_REG_REQ = 5;
+
+    public static final int BATCH_REG_RESP = 6;
+
+    public static final int BATCH_LOGIN_REQ = 7;
+
+    public static final int BATCH_LOGIN_RESP = 8;
+
+    public static final int REG_REQ_V2 = 9;
+
+    public static final int REG_RESP_V2 = 10;
+
+    public static final int LOGIN_REQ_V2 = 11;
+
+    public static final int LOGIN_RESP_V2 = 12;
+
+    public static final int TOKEN_VERIFY_REQ = 13;
+
+    public static final int TOKEN_VERIFY_RESP = 14;
+
+    public static final int METRICS_REQ = 15;
+
+    public static final int METRICS_RESP = 16;
 }
 
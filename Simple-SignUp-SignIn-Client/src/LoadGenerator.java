@@ -0,0 +1,604 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load test of a server, started with `--load`. The users the logins pick from are registered with batches
+ * first, then `ClientConfig.loadConnections` connections spread over `ClientConfig.loadSelectors` threads send a mix of
+ * logins and registrations of new users at a fixed rate.
+ * <p>
+ * The load is open-loop: every request has a scheduled send time and is sent then, however many earlier ones are
+ * still unanswered, and its latency is measured from that time. A server that stalls therefore shows its stall in
+ * every request scheduled during it instead of delaying the sends and hiding it (coordinated omission).
+ * Requests are pipelined, so each connection answers them in order.
+ * <p>
+ * A server with its login throttle turned on limits the logins of this host, list the host in its
+ * `-Dserver.throttle.exemptHosts` to measure the server rather than its limits.
+ */
+public class LoadGenerator {
+    private static final int LOGIN = 0;
+
+    private static final int REGISTER = 1;
+
+    private static final String[] KIND_NAMES = {"login", "register"};
+
+    /**
+     * fixture users registered per BATCH_REG_REQ, which keeps the msg below the 64 KiB the server accepts by default
+     */
+    private static final int FIXTURE_BATCH = 1000;
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * the statuses counted per kind of request, the last one for a status the client does not know
+     */
+    private static final StatusCode[] STATUSES = StatusCode.values();
+
+    private final InetSocketAddress address;
+
+    /**
+     * the local addresses connections are bound to in turn, empty to leave them to the OS
+     */
+    private final InetAddress[] localAddresses;
+
+    private final int protocolVersion = Integer.getInteger("client.protocolVersion", 2);
+
+    private final String prefix = ClientConfig.loadPrefix;
+
+    /**
+     * latency of the measured requests per kind, from their scheduled send time to their response
+     */
+    private final LatencyHistogram[] latency = {new LatencyHistogram(), new LatencyHistogram()};
+
+    /**
+     * how late the measured requests were sent, large when the generator itself cannot keep up
+     */
+    private final LatencyHistogram sendLag = new LatencyHistogram();
+
+    private final LongAdder[] sent = {new LongAdder(), new LongAdder()};
+
+    private final LongAdder[][] statuses = new LongAdder[KIND_NAMES.length][STATUSES.length + 1];
+
+    /**
+     * measured requests whose connection was lost or which were not answered in time
+     */
+    private final LongAdder unanswered = new LongAdder();
+
+    private final LongAdder connectionErrors = new LongAdder();
+
+    public LoadGenerator(String remoteIP, int remotePort) throws UnknownHostException {
+        if (prefix.isEmpty() || prefix.length() > 8 || !StandardCharsets.US_ASCII.newEncoder().canEncode(prefix)) {
+            throw new IllegalArgumentException("The username prefix should be 1 to 8 ASCII characters.");
+        }
+        if (ClientConfig.loadUsers == 0 && ClientConfig.loadLoginRatio > 0) {
+            throw new IllegalArgumentException("Logins need at least one user, set -Dclient.load.users.");
+        }
+        this.address = new InetSocketAddress(remoteIP, remotePort);
+        String[] names = ClientConfig.loadLocalAddresses.isBlank() ? new String[0] : ClientConfig.loadLocalAddresses.split(",");
+        this.localAddresses = new InetAddress[names.length];
+        for (int i = 0; i < names.length; i++) {
+            localAddresses[i] = InetAddress.getByName(names[i].trim());
+        }
+        for (LongAdder[] counts : statuses) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+    }
+
+    private String fixtureUserName(int user) {
+        return prefix + "u" + user;
+    }
+
+    /**
+     * The password of a generated user, derived from its name so logins need not remember it
+     */
+    private static String password(String userName) {
+        return "pw" + Integer.toHexString(userName.hashCode() * 0x9E3779B1);
+    }
+
+    /**
+     * Register the users the logins pick from, retrying the ones the server was too busy for.
+     * Users left by an earlier run with the same prefix count as registered, as do all of them on a replica.
+     */
+    private void registerFixtures() throws IOException, InterruptedException {
+        System.out.println("[" + new Date() + "] Registering " + ClientConfig.loadUsers + " users with the prefix \"" + prefix + "\".");
+        long start = System.nanoTime();
+        ByteBuffer msg = ByteBuffer.allocate(FieldLength.header + FieldLength.batchCount + FIXTURE_BATCH * FieldLength.batchReqRecord);
+        ByteBuffer response = ByteBuffer.allocate(FieldLength.header + FieldLength.batchCount + FIXTURE_BATCH * FieldLength.batchRespStatus);
+        int[] users = new int[FIXTURE_BATCH];
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            int next = 0;
+            int retries = 0;
+            int[] busy = new int[FIXTURE_BATCH];
+            int busyCount = 0;
+            while (next < ClientConfig.loadUsers || busyCount > 0) {
+                // the busy users of the last batch go first
+                int count = busyCount;
+                System.arraycopy(busy, 0, users, 0, busyCount);
+                while (count < FIXTURE_BATCH && next < ClientConfig.loadUsers) {
+                    users[count++] = next++;
+                }
+                msg.clear();
+                msg.putInt(FieldLength.header + FieldLength.batchCount + count * FieldLength.batchReqRecord);
+                msg.putInt(CommandID.BATCH_REG_REQ);
+                msg.putInt(count);
+                for (int i = 0; i < count; i++) {
+                    String userName = fixtureUserName(users[i]);
+                    putPadded(msg, userName.getBytes(StandardCharsets.US_ASCII), FieldLength.regReqUserName);
+                    putPadded(msg, password(userName).getBytes(StandardCharsets.US_ASCII), FieldLength.regReqPasswd);
+                }
+                msg.flip();
+                while (msg.hasRemaining()) {
+                    channel.write(msg);
+                }
+
+                // the response has a status per record
+                response.clear().limit(FieldLength.header + FieldLength.batchCount + count * FieldLength.batchRespStatus);
+                while (response.hasRemaining()) {
+                    if (channel.read(response) < 0) {
+                        throw new IOException("The server closed the connection while registering the users.");
+                    }
+                }
+                busyCount = 0;
+                for (int i = 0; i < count; i++) {
+                    byte status = response.get(FieldLength.header + FieldLength.batchCount + i);
+                    if (status == '4') {
+                        // a read-only replica, the users come from its primary
+                        System.out.println("[" + new Date() + "] The server is a replica, the users are expected to be"
+                                + " registered on its primary with the prefix \"" + prefix + "\" already.");
+                        return;
+                    }
+                    // '0' is a duplicate username here, which an earlier run may have registered
+                    if (status != '0' && status != '1') {
+                        busy[busyCount++] = users[i];
+                    }
+                }
+                if (busyCount > 0) {
+                    if (++retries > 100) {
+                        throw new IOException("The server stayed too busy to register the users.");
+                    }
+                    Thread.sleep(10);
+                }
+            }
+        }
+        System.out.printf("[%s] Registered the users in %.1f s.%n", new Date(), (System.nanoTime() - start) / 1e9);
+    }
+
+    private static void putPadded(ByteBuffer msg, byte[] field, int length) {
+        msg.put(field);
+        for (int i = field.length; i < length; i++) {
+            msg.put((byte) 0);
+        }
+    }
+
+    public void launch() throws IOException, InterruptedException {
+        if (ClientConfig.loadUsers > 0) {
+            registerFixtures();
+        }
+
+        // connect everything before the clock starts
+        int selectorCount = Math.min(ClientConfig.loadSelectors, ClientConfig.loadConnections);
+        Driver[] drivers = new Driver[selectorCount];
+        for (int i = 0; i < selectorCount; i++) {
+            int share = ClientConfig.loadConnections / selectorCount + (i < ClientConfig.loadConnections % selectorCount ? 1 : 0);
+            drivers[i] = new Driver(i, selectorCount, share);
+        }
+        for (int i = 0; i < ClientConfig.loadConnections; i++) {
+            drivers[i % selectorCount].connect(localAddresses.length == 0 ? null : localAddresses[i % localAddresses.length]);
+        }
+        System.out.printf("[%s] Opened %d connections over %d selectors, sending %.0f requests per second for %.1f s after %.1f s of warmup.%n",
+                new Date(), ClientConfig.loadConnections, selectorCount, ClientConfig.loadRate,
+                ClientConfig.loadDurationSeconds, ClientConfig.loadWarmupSeconds);
+
+        long start = System.nanoTime() + 10_000_000L;
+        long measureStart = start + (long) (ClientConfig.loadWarmupSeconds * 1e9);
+        long end = measureStart + (long) (ClientConfig.loadDurationSeconds * 1e9);
+        Thread[] threads = new Thread[selectorCount];
+        for (int i = 0; i < selectorCount; i++) {
+            drivers[i].schedule(start, measureStart, end);
+            threads[i] = new Thread(drivers[i], "load-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report();
+    }
+
+    private void report() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("[%s] Load test of %s:%d finished, latencies in ms from the scheduled send time.%n",
+                new Date(), address.getHostString(), address.getPort()));
+        text.append(String.format("%-10s %10s %10s %10s %9s %9s %9s %9s %9s %9s%n",
+                "command", "sent", "answered", "answered/s", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+            LatencyHistogram.Snapshot histogram = latency[kind].snapshot();
+            text.append(String.format("%-10s %10d %10d %10.1f %9.3f", KIND_NAMES[kind], sent[kind].sum(), histogram.getCount(),
+                    histogram.getCount() / ClientConfig.loadDurationSeconds, histogram.getMeanNanos() / 1e6));
+            for (double quantile : QUANTILES) {
+                text.append(String.format(" %9.3f", histogram.getValueAtQuantile(quantile) / 1e6));
+            }
+            text.append(String.format(" %9.3f%n", histogram.getMaxNanos() / 1e6));
+        }
+        for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+            text.append(KIND_NAMES[kind]).append(" statuses:");
+            for (int i = 0; i <= STATUSES.length; i++) {
+                long count = statuses[kind][i].sum();
+                if (count > 0) {
+                    text.append(' ').append(i < STATUSES.length ? STATUSES[i].name() : "UNKNOWN").append('=').append(count);
+                }
+            }
+            text.append(System.lineSeparator());
+        }
+        LatencyHistogram.Snapshot lag = sendLag.snapshot();
+        text.append(String.format("send lag p99 %.3f ms, max %.3f ms%n", lag.getValueAtQuantile(0.99) / 1e6, lag.getMaxNanos() / 1e6));
+        text.append("unanswered ").append(unanswered.sum()).append(", connection errors ").append(connectionErrors.sum());
+        System.out.println(text);
+    }
+
+    /**
+     * One connection of a driver with its own buffers and the requests it waits the answers of, in the order sent
+     */
+    private static class Session {
+        private final SocketChannel channel;
+
+        private SelectionKey key;
+
+        /**
+         * unsent requests, in write mode
+         */
+        private ByteBuffer outbound = ByteBuffer.allocate(1 << 10);
+
+        /**
+         * received response bytes, in write mode
+         */
+        private ByteBuffer inbound = ByteBuffer.allocate(1 << 10);
+
+        /**
+         * the scheduled send times and kinds of the unanswered requests, a ring of `size` entries from `head`
+         */
+        private long[] scheduled = new long[16];
+
+        private byte[] kinds = new byte[16];
+
+        private int head;
+
+        private int size;
+
+        private boolean closed;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void push(long time, int kind) {
+            if (size == scheduled.length) {
+                // unroll the ring into arrays twice as long
+                long[] newScheduled = new long[size * 2];
+                byte[] newKinds = new byte[size * 2];
+                for (int i = 0; i < size; i++) {
+                    newScheduled[i] = scheduled[(head + i) % size];
+                    newKinds[i] = kinds[(head + i) % size];
+                }
+                scheduled = newScheduled;
+                kinds = newKinds;
+                head = 0;
+            }
+            int tail = (head + size) % scheduled.length;
+            scheduled[tail] = time;
+            kinds[tail] = (byte) kind;
+            size++;
+        }
+
+        void pop() {
+            head = (head + 1) % scheduled.length;
+            size--;
+        }
+
+        /**
+         * Make room for `length` more bytes in `outbound`
+         */
+        void reserve(int length) {
+            if (outbound.remaining() < length) {
+                outbound.flip();
+                outbound = ByteBuffer.allocate(Math.max(outbound.capacity() * 2, outbound.remaining() + length)).put(outbound);
+            }
+        }
+    }
+
+    /**
+     * A selector thread sending the requests of its share of the rate over its connections in turn
+     */
+    private class Driver implements Runnable {
+        private final int index;
+
+        private final Selector selector;
+
+        private final Session[] sessions;
+
+        private int sessionCount;
+
+        private int open;
+
+        /**
+         * the time between two sends of this driver, in nanoseconds
+         */
+        private final double interval;
+
+        /**
+         * where the schedule of this driver starts within an interval, so the drivers do not send at once
+         */
+        private final double offset;
+
+        private long start;
+
+        private long measureStart;
+
+        private long end;
+
+        private final SplittableRandom random;
+
+        private int nextSession;
+
+        private long registrations;
+
+        private int outstanding;
+
+        Driver(int index, int driverCount, int connectionCount) throws IOException {
+            this.index = index;
+            this.sessions = new Session[connectionCount];
+            this.selector = Selector.open();
+            this.interval = 1e9 * driverCount / ClientConfig.loadRate;
+            this.offset = interval * index / driverCount;
+            this.random = new SplittableRandom(31L * System.nanoTime() + index);
+        }
+
+        void connect(InetAddress localAddress) throws IOException {
+            SocketChannel channel = SocketChannel.open();
+            if (localAddress != null) {
+                channel.bind(new InetSocketAddress(localAddress, 0));
+            }
+            channel.connect(address);
+            channel.configureBlocking(false);
+            Session session = new Session(channel);
+            session.key = channel.register(selector, SelectionKey.OP_READ, session);
+            sessions[sessionCount++] = session;
+            open++;
+        }
+
+        void schedule(long start, long measureStart, long end) {
+            this.start = start;
+            this.measureStart = measureStart;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            long drainEnd = end + (long) (ClientConfig.loadDrainSeconds * 1e9);
+            try {
+                long sends = 0;
+                long next = start + (long) offset;
+                while (open > 0) {
+                    long now = System.nanoTime();
+                    while (next <= now && next < end && open > 0) {
+                        send(next);
+                        sends++;
+                        next = start + (long) (offset + sends * interval);
+                    }
+                    if (next >= end && (outstanding == 0 || now >= drainEnd)) {
+                        break;
+                    }
+
+                    // sleep until the next send or the end of the drain, spin through the last millisecond
+                    long wait = (next < end ? next : drainEnd) - now;
+                    if (wait >= 1_000_000L) {
+                        selector.select(wait / 1_000_000L);
+                    } else {
+                        selector.selectNow();
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        Session session = (Session) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                read(session);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                flush(session);
+                            }
+                        } catch (IOException e) {
+                            lose(session);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("[" + new Date() + "] The load thread " + index + " failed: " + e);
+            } finally {
+                for (int i = 0; i < sessionCount; i++) {
+                    Session session = sessions[i];
+                    if (!session.closed) {
+                        countUnanswered(session);
+                        close(session);
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // nothing left to release
+                }
+            }
+        }
+
+        private void send(long scheduled) throws IOException {
+            Session session;
+            do {
+                session = sessions[nextSession];
+                nextSession = (nextSession + 1) % sessionCount;
+            } while (session.closed);
+
+            int kind = random.nextDouble() < ClientConfig.loadLoginRatio ? LOGIN : REGISTER;
+            String userName = kind == LOGIN ? fixtureUserName(random.nextInt(ClientConfig.loadUsers))
+                    : prefix + "n" + index + "x" + registrations++;
+            byte[] userNameBytes = userName.getBytes(StandardCharsets.US_ASCII);
+            byte[] passwdBytes = password(userName).getBytes(StandardCharsets.US_ASCII);
+
+            ByteBuffer msg;
+            if (protocolVersion == 2) {
+                // both lengths are below 128, so each varint takes one byte, and no flags are sent
+                int totalLength = FieldLength.header + 1 + userNameBytes.length + 1 + passwdBytes.length;
+                session.reserve(totalLength);
+                msg = session.outbound;
+                msg.putInt(totalLength);
+                msg.putInt(kind == LOGIN ? CommandID.LOGIN_REQ_V2 : CommandID.REG_REQ_V2);
+                msg.put((byte) userNameBytes.length);
+                msg.put(userNameBytes);
+                msg.put((byte) passwdBytes.length);
+                msg.put(passwdBytes);
+            } else {
+                int totalLength = FieldLength.header + FieldLength.regReqUserName + FieldLength.regReqPasswd;
+                session.reserve(totalLength);
+                msg = session.outbound;
+                msg.putInt(totalLength);
+                msg.putInt(kind == LOGIN ? CommandID.LOGIN_REQ : CommandID.REG_REQ);
+                putPadded(msg, userNameBytes, FieldLength.regReqUserName);
+                putPadded(msg, passwdBytes, FieldLength.regReqPasswd);
+            }
+            session.push(scheduled, kind);
+            outstanding++;
+            if (scheduled >= measureStart) {
+                sent[kind].increment();
+                sendLag.record(System.nanoTime() - scheduled);
+            }
+
+            // a connection waiting for OP_WRITE sends once the socket takes more
+            if ((session.key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                try {
+                    flush(session);
+                } catch (IOException e) {
+                    lose(session);
+                }
+            }
+        }
+
+        private void flush(Session session) throws IOException {
+            session.outbound.flip();
+            session.channel.write(session.outbound);
+            session.outbound.compact();
+            // wait for OP_WRITE only while something is left, so the selector does not spin on a writable socket
+            int ops = session.outbound.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+            if (session.key.interestOps() != ops) {
+                session.key.interestOps(ops);
+            }
+        }
+
+        private void read(Session session) throws IOException {
+            ByteBuffer buffer = session.inbound;
+            if (session.channel.read(buffer) < 0) {
+                lose(session);
+                return;
+            }
+            long now = System.nanoTime();
+            buffer.flip();
+            while (buffer.remaining() >= FieldLength.header) {
+                int totalLength = buffer.getInt(buffer.position());
+                int commandID = buffer.getInt(buffer.position() + FieldLength.totalLengthField);
+                if (totalLength <= FieldLength.header || session.size == 0) {
+                    // should never happen
+                    throw new IOException("Unexpected msg " + commandID + " of " + totalLength + " bytes.");
+                }
+                if (buffer.remaining() < totalLength) {
+                    if (totalLength > buffer.capacity()) {
+                        session.inbound = ByteBuffer.allocate(totalLength).put(buffer);
+                        return;
+                    }
+                    break;
+                }
+
+                int kind = session.kinds[session.head];
+                int status = status(buffer, kind, commandID, totalLength);
+                long scheduled = session.scheduled[session.head];
+                session.pop();
+                outstanding--;
+                if (scheduled >= measureStart) {
+                    latency[kind].record(now - scheduled);
+                    statuses[kind][status].increment();
+                }
+                buffer.position(buffer.position() + totalLength);
+            }
+            buffer.compact();
+        }
+
+        /**
+         * The index in `STATUSES` of the response at the buffer position to a request of `kind`
+         */
+        private int status(ByteBuffer buffer, int kind, int commandID, int totalLength) throws IOException {
+            int statusIndex = buffer.position() + FieldLength.header;
+            if (commandID == (kind == LOGIN ? CommandID.LOGIN_RESP_V2 : CommandID.REG_RESP_V2)) {
+                StatusCode status = StatusCode.forCode(buffer.get(statusIndex) & 0xff);
+                return status == null ? STATUSES.length : status.ordinal();
+            }
+            if (commandID != (kind == LOGIN ? CommandID.LOGIN_RESP : CommandID.REG_RESP)) {
+                // should never happen, responses come in the order of the requests
+                throw new IOException("Unexpected msg " + commandID + " in reply to a " + KIND_NAMES[kind] + ".");
+            }
+            if (buffer.get(statusIndex) == '1') {
+                return StatusCode.SUCCESS.ordinal();
+            }
+            // a v1 failure only tells its reason in the description, which is one of the v2 ones
+            byte[] descriptionBytes = new byte[totalLength - FieldLength.header - FieldLength.regRespStatus];
+            buffer.get(statusIndex + FieldLength.regRespStatus, descriptionBytes);
+            String description = new String(descriptionBytes, StandardCharsets.US_ASCII).trim();
+            for (StatusCode status : STATUSES) {
+                if (status.getDescription().equals(description)) {
+                    return status.ordinal();
+                }
+            }
+            return STATUSES.length;
+        }
+
+        /**
+         * Give up a connection the server closed or broke the protocol on
+         */
+        private void lose(Session session) {
+            if (session.closed) {
+                return;
+            }
+            connectionErrors.increment();
+            countUnanswered(session);
+            close(session);
+        }
+
+        private void countUnanswered(Session session) {
+            for (int i = 0; i < session.size; i++) {
+                if (session.scheduled[(session.head + i) % session.scheduled.length] >= measureStart) {
+                    unanswered.increment();
+                }
+            }
+            outstanding -= session.size;
+            session.size = 0;
+        }
+
+        private void close(Session session) {
+            session.closed = true;
+            open--;
+            try {
+                session.channel.close();
+            } catch (IOException e) {
+                // the connection is gone either way
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * The answer of the server to a login
+ */
+public class LoginResult {
+    private final StatusCode status;
+
+    private final String description;
+
+    /**
+     * the session token of a successful login, null if the server issued none
+     */
+    private final byte[] sessionToken;
+
+    public LoginResult(StatusCode status, String description, byte[] sessionToken) {
+        this.status = status;
+        this.description = description;
+        this.sessionToken = sessionToken;
+    }
+
+    public StatusCode getStatus() {
+        return this.status;
+    }
+
+    public String getDescription() {
+        return this.description;
+    }
+
+    public byte[] getSessionToken() {
+        return this.sessionToken;
+    }
+
+    public boolean isSuccess() {
+        return this.status == StatusCode.SUCCESS;
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A request submitted to a `ClientEventLoop` and the future it completes. The request is its own timer on the timing
+ * wheel of the loop, which fails the future once the deadline has passed. A request that timed out stays in line on
+ * its connection, so the response it is still owed is matched to it and dropped.
+ */
+public class PendingRequest<T> extends TimingWheel.Timer {
+    /**
+     * Builds the result of a request from the decoded response
+     */
+    public interface ResultFactory<T> {
+        T create(StatusCode status, String description, byte[] sessionToken);
+    }
+
+    /**
+     * the connection the request was dispatched to
+     */
+    private ClientConnection connection;
+
+    /**
+     * the encoded request msg
+     */
+    private final byte[] msg;
+
+    /**
+     * the command ID of the response expected in reply
+     */
+    private final int responseCommandID;
+
+    /**
+     * when the future is failed, in `ClientEventLoop.currentMillis()`
+     */
+    private final long deadlineMillis;
+
+    private final ResultFactory<T> resultFactory;
+
+    private final CompletableFuture<T> future;
+
+    public PendingRequest(byte[] msg, int responseCommandID, long timeoutMillis, ResultFactory<T> resultFactory) {
+        this.msg = msg;
+        this.responseCommandID = responseCommandID;
+        this.deadlineMillis = ClientEventLoop.currentMillis() + timeoutMillis;
+        this.resultFactory = resultFactory;
+        this.future = new CompletableFuture<>();
+    }
+
+    public ClientConnection getConnection() {
+        return this.connection;
+    }
+
+    public void setConnection(ClientConnection connection) {
+        this.connection = connection;
+    }
+
+    public byte[] getMsg() {
+        return this.msg;
+    }
+
+    public int getResponseCommandID() {
+        return this.responseCommandID;
+    }
+
+    public long getDeadlineMillis() {
+        return this.deadlineMillis;
+    }
+
+    public CompletableFuture<T> getFuture() {
+        return this.future;
+    }
+
+    /**
+     * Complete the future with the decoded response, does nothing if it has already timed out
+     */
+    public void complete(StatusCode status, String description, byte[] sessionToken) {
+        future.complete(resultFactory.create(status, description, sessionToken));
+    }
+
+    public void fail(Throwable cause) {
+        future.completeExceptionally(cause);
+    }
+}
@@ -0,0 +1,25 @@
+/**
+ * The answer of the server to a registration
+ */
+public class RegistrationResult {
+    private final StatusCode status;
+
+    private final String description;
+
+    public RegistrationResult(StatusCode status, String description) {
+        this.status = status;
+        this.description = description;
+    }
+
+    public StatusCode getStatus() {
+        return this.status;
+    }
+
+    public String getDescription() {
+        return this.description;
+    }
+
+    public boolean isSuccess() {
+        return this.status == StatusCode.SUCCESS;
+    }
+}
@@ -1,6 +1,7 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -18,11 +19,6 @@ public class SimpleSignUpSignInClient {
      */
     private Selector selector;
 
-    /**
-     * self-defined client input buffer for bulk read
-     */
-    private ByteBuffer inputBuffer;
-
     /**
      * self-defined client output buffer
      */
@@ -33,6 +29,21 @@ public class SimpleSignUpSignInClient {
      */
     private int bufferLength = 1 << 10;
 
+    /**
+     * The wire format of the requests, 2 unless set with `-Dclient.protocolVersion=1`
+     */
+    private int protocolVersion = Integer.getInteger("client.protocolVersion", 2);
+
+    /**
+     * LOGIN_REQ_V2 flag asking for a session token
+     */
+    private static final int LOGIN_FLAG_TOKEN = 1;
+
+    /**
+     * The session token of the last v2 login, set by the worker thread
+     */
+    private volatile byte[] sessionToken;
+
     public void closeServerSocket() throws IOException {
         this.socketChannel.close();
     }
@@ -40,13 +51,14 @@ public class SimpleSignUpSignInClient {
     static class Worker implements Runnable {
         private Selector selector;
 
-        private ByteBuffer inputBuffer;
-
-        private int bufferLength = 1 << 10;
+        /**
+         * the client receiving the session tokens
+         */
+        private SimpleSignUpSignInClient client;
 
-        public Worker(Selector selector) {
+        public Worker(Selector selector, SimpleSignUpSignInClient client) {
             this.selector = selector;
-            this.inputBuffer = ByteBuffer.allocate(bufferLength);
+            this.client = client;
         }
         @Override
         public void run() {
@@ -59,11 +71,17 @@ public class SimpleSignUpSignInClient {
                         SelectionKey key = iterator.next();
                         iterator.remove();
                         if (key.isReadable()) {
-                            // generate corresponding socket channel
+                            // generate corresponding socket channel, each one keeps its partial msgs in its own buffer
                             SocketChannel socket = (SocketChannel) key.channel();
-
-                            // bulk read
-                            socket.read(inputBuffer);
+                            ByteBuffer inputBuffer = (ByteBuffer) key.attachment();
+
+                            // bulk read, a closed socket would stay readable forever
+                            if (socket.read(inputBuffer) < 0) {
+                                System.out.println("[" + new Date() + "] The server closed the connection.");
+                                key.cancel();
+                                socket.close();
+                                return;
+                            }
                             // switch to the read mode
                             inputBuffer.flip();
 
@@ -92,6 +110,12 @@ public class SimpleSignUpSignInClient {
                                     inputBuffer.position(inputBuffer.position() - FieldLength.header);
                                     // switch to the write mode
                                     inputBuffer.compact();
+                                    if (totalLength > inputBuffer.capacity()) {
+                                        // a METRICS_RESP can be longer than the buffer, make room for the whole msg
+                                        inputBuffer.flip();
+                                        inputBuffer = ByteBuffer.allocate(totalLength).put(inputBuffer);
+                                        key.attach(inputBuffer);
+                                    }
                                     break;
                                 }
 
@@ -158,6 +182,91 @@ public class SimpleSignUpSignInClient {
 
                                         break;
                                     }
+                                    case CommandID.REG_RESP_V2:
+                                    case CommandID.LOGIN_RESP_V2: {
+                                        String operation = commandID == CommandID.REG_RESP_V2 ? "Registration" : "Login";
+
+                                        // parse `status` field
+                                        StatusCode status = StatusCode.forCode(body[0] & 0xff);
+                                        if (status == null) {
+                                            System.out.println("Invalid status code " + (body[0] & 0xff) + " was received.");
+                                            break;
+                                        }
+
+                                        // parse the optional `description` field, a varint length and ASCII text
+                                        int descriptionLength = 0;
+                                        int index = FieldLength.v2RespStatus;
+                                        for (int shift = 0; index < body.length; shift += 7) {
+                                            byte b = body[index++];
+                                            descriptionLength |= (b & 0x7f) << shift;
+                                            if (b >= 0) {
+                                                break;
+                                            }
+                                        }
+                                        String description = descriptionLength == 0 ? status.getDescription()
+                                                : new String(body, index, Math.min(descriptionLength, body.length - index), StandardCharsets.US_ASCII);
+
+                                        // test the result
+                                        if (status == StatusCode.SUCCESS) {
+                                            System.out.println("[" + new Date() + "] " + operation + " succeeded. The description is: " + description);
+
+                                            // a session token follows the description if one was asked for
+                                            index += descriptionLength;
+                                            if (body.length - index >= FieldLength.sessionToken) {
+                                                client.setSessionToken(Arrays.copyOfRange(body, index, index + FieldLength.sessionToken));
+                                                System.out.println("[" + new Date() + "] A session token was issued.");
+                                            }
+                                        } else {
+                                            System.out.println("[" + new Date() + "] " + operation + " failed (" + status + "). The description is: " + description);
+                                        }
+                                        break;
+                                    }
+                                    case CommandID.TOKEN_VERIFY_RESP: {
+                                        // parse `status` field, the description is always empty
+                                        StatusCode status = StatusCode.forCode(body[0] & 0xff);
+                                        if (status == null) {
+                                            System.out.println("Invalid status code " + (body[0] & 0xff) + " was received.");
+                                            break;
+                                        }
+
+                                        // parse `username` field, both lengths fit one varint byte
+                                        int index = FieldLength.v2RespStatus + 1 + body[FieldLength.v2RespStatus];
+                                        String userName = new String(body, index + 1, body[index], StandardCharsets.US_ASCII);
+
+                                        if (status == StatusCode.SUCCESS) {
+                                            System.out.println("[" + new Date() + "] " + "The session of \"" + userName + "\" is valid.");
+                                        } else {
+                                            System.out.println("[" + new Date() + "] " + "Session check failed. The description is: " + status.getDescription());
+                                        }
+                                        break;
+                                    }
+                                    case CommandID.METRICS_RESP: {
+                                        // parse `status` field
+                                        StatusCode status = StatusCode.forCode(body[0] & 0xff);
+                                        if (status == null) {
+                                            System.out.println("Invalid status code " + (body[0] & 0xff) + " was received.");
+                                            break;
+                                        }
+
+                                        // parse the `description` field, a varint length and the metrics text
+                                        int descriptionLength = 0;
+                                        int index = FieldLength.v2RespStatus;
+                                        for (int shift = 0; index < body.length; shift += 7) {
+                                            byte b = body[index++];
+                                            descriptionLength |= (b & 0x7f) << shift;
+                                            if (b >= 0) {
+                                                break;
+                                            }
+                                        }
+
+                                        if (status == StatusCode.SUCCESS) {
+                                            System.out.println("[" + new Date() + "] " + "Server metrics:\n"
+                                                    + new String(body, index, Math.min(descriptionLength, body.length - index), StandardCharsets.US_ASCII));
+                                        } else {
+                                            System.out.println("[" + new Date() + "] " + "Metrics request failed. The description is: " + status.getDescription());
+                                        }
+                                        break;
+                                    }
                                     default: {
                                         // should never happen
                                         System.out.println("Invalid command ID was received.");
@@ -167,6 +276,9 @@ public class SimpleSignUpSignInClient {
                             }
                         }
                     }
+                } catch (ClosedChannelException e) {
+                    // the client is exiting
+                    return;
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -184,10 +296,11 @@ public class SimpleSignUpSignInClient {
         socketChannel = SocketChannel.open(addr);
         socketChannel.configureBlocking(false);
         selector = Selector.open();
-        socketChannel.register(selector, SelectionKey.OP_CONNECT | SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        // the socket is already connected and requests are written directly, so only reads are selected,
+        // a selector interested in OP_WRITE would return at once forever
+        socketChannel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(bufferLength));
 
         // allocate memory to byte buffer
-        inputBuffer = ByteBuffer.allocate(bufferLength);
         outputBuffer = ByteBuffer.allocate(bufferLength);
     }
 
@@ -224,6 +337,11 @@ public class SimpleSignUpSignInClient {
             } else break;
         }
 
+        if (protocolVersion == 2) {
+            sendCredentialsV2(CommandID.REG_REQ_V2, userName, passwd);
+            return;
+        }
+
         // put the msg header and body to the `outputBuffer`
         outputBuffer.clear();
         outputBuffer.putInt(totalLength);
@@ -281,6 +399,11 @@ public class SimpleSignUpSignInClient {
             } else break;
         }
 
+        if (protocolVersion == 2) {
+            sendCredentialsV2(CommandID.LOGIN_REQ_V2, userName, passwd);
+            return;
+        }
+
         // put the msg header and body to the `outputBuffer`
         outputBuffer.clear();
         outputBuffer.putInt(totalLength);
@@ -305,8 +428,80 @@ public class SimpleSignUpSignInClient {
         socketChannel.write(outputBuffer);
     }
 
+    /**
+     * Send a REG_REQ_V2 or LOGIN_REQ_V2, whose fields are prefixed with their varint lengths instead of padded
+     */
+    private void sendCredentialsV2(int commandID, String userName, String passwd) throws IOException {
+        byte[] userNameBytes = userName.getBytes(StandardCharsets.US_ASCII);
+        byte[] passwdBytes = passwd.getBytes(StandardCharsets.US_ASCII);
+
+        // both lengths are below 128, so each varint takes one byte, and logins ask for a session token
+        boolean login = commandID == CommandID.LOGIN_REQ_V2;
+        int totalLength = FieldLength.header + 1 + userNameBytes.length + 1 + passwdBytes.length + (login ? 1 : 0);
+
+        // put the msg header and body to the `outputBuffer`
+        outputBuffer.clear();
+        outputBuffer.putInt(totalLength);
+        outputBuffer.putInt(commandID);
+        outputBuffer.put((byte) userNameBytes.length);
+        outputBuffer.put(userNameBytes);
+        outputBuffer.put((byte) passwdBytes.length);
+        outputBuffer.put(passwdBytes);
+        if (login) {
+            outputBuffer.put((byte) LOGIN_FLAG_TOKEN);
+        }
+
+        // switch to read mode
+        outputBuffer.flip();
+
+        // send the req msg
+        socketChannel.write(outputBuffer);
+    }
+
+    /**
+     * Send a TOKEN_VERIFY_REQ with the session token of the last v2 login
+     */
+    private void sendTokenVerifyReq() throws IOException {
+        byte[] token = sessionToken;
+        if (token == null) {
+            System.out.println("There is no session yet, please sign in first.");
+            return;
+        }
+
+        // put the msg header and the token to the `outputBuffer`
+        outputBuffer.clear();
+        outputBuffer.putInt(FieldLength.header + FieldLength.sessionToken);
+        outputBuffer.putInt(CommandID.TOKEN_VERIFY_REQ);
+        outputBuffer.put(token);
+
+        // switch to read mode
+        outputBuffer.flip();
+
+        // send the req msg
+        socketChannel.write(outputBuffer);
+    }
+
+    /**
+     * Send a METRICS_REQ, which has no body
+     */
+    private void sendMetricsReq() throws IOException {
+        outputBuffer.clear();
+        outputBuffer.putInt(FieldLength.header);
+        outputBuffer.putInt(CommandID.METRICS_REQ);
+
+        // switch to read mode
+        outputBuffer.flip();
+
+        // send the req msg
+        socketChannel.write(outputBuffer);
+    }
+
+    public void setSessionToken(byte[] sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
     public void launch() throws IOException, InterruptedException {
-        Thread responseProcessor = new Thread(new Worker(this.selector));
+        Thread responseProcessor = new Thread(new Worker(this.selector, this));
         responseProcessor.setDaemon(true);
         responseProcessor.start();
 
@@ -314,7 +509,9 @@ public class SimpleSignUpSignInClient {
         System.out.println("Welcome! Please select the operation you would like to do: \n" +
                 "0: Sign Up\n" +
                 "1: Sign in\n" +
-                "2: Exit");
+                "2: Exit\n" +
+                "3: Verify the session\n" +
+                "4: Show the server metrics");
 
         // User input
         int operationCode = -1;
@@ -334,11 +531,32 @@ public class SimpleSignUpSignInClient {
             } else if (operationCode == 2) {
                 // do nothing
                 break;
+            } else if (operationCode == 3) {
+                // check the session token of the last sign in
+                sendTokenVerifyReq();
+                Thread.sleep(2000);
+            } else if (operationCode == 4) {
+                sendMetricsReq();
+                Thread.sleep(2000);
             }
         }
     }
 
     public static void main(String args[]) {
+        if (args.length > 0 && args[0].equals("--load")) {
+            // headless load test, tuned with the `-Dclient.load.*` properties of `ClientConfig`
+            if (args.length != 3) {
+                System.out.println("Usage: SimpleSignUpSignInClient --load <remote IP> <remote port>");
+                return;
+            }
+            try {
+                new LoadGenerator(args[1], Integer.parseInt(args[2])).launch();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
         Scanner scanner = new Scanner(System.in);
 
         System.out.println("Please input the remote IP: ");
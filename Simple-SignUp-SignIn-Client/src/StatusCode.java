@@ -1,5 +1,46 @@
-public class StatusCode {
-    public static final int SUCCESS = 0;
+/**
+ * Status of a v2 response, sent as a single byte. Descriptions are only sent when a status needs more than its name.
+ */
+public enum StatusCode {
+    SUCCESS(0, "ok"),
 
-    public static final int FAIL = -1;
-}
\ No newline at end of file
+    DUPLICATE_USERNAME(1, "duplicate username"),
+
+    INVALID_CREDENTIALS(2, "Invalid username or password."),
+
+    BUSY(3, "Server is busy, please retry later."),
+
+    INVALID_TOKEN(4, "Invalid or expired session token."),
+
+    THROTTLED(5, "Too many login attempts, please retry later."),
+
+    FORBIDDEN(6, "Not allowed from this client."),
+
+    READ_ONLY(7, "Read-only replica, register on the primary.");
+
+    private static final StatusCode[] BY_CODE = values();
+
+    private final int code;
+
+    private final String description;
+
+    StatusCode(int code, String description) {
+        this.code = code;
+        this.description = description;
+    }
+
+    public int getCode() {
+        return this.code;
+    }
+
+    public String getDescription() {
+        return this.description;
+    }
+
+    /**
+     * The status sent as `code`, null if it is unknown
+     */
+    public static StatusCode forCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel owned by one event loop thread. Timers are intrusive, so scheduling allocates nothing and a
+ * loop can keep a deadline for each of 100k+ connections at the cost of a few fields each.
+ * <p>
+ * A timer sits in the slot of its deadline tick. Moving a deadline later only updates the timer, which is carried
+ * over to the right slot when its old slot expires. Deadlines further out than one revolution simply go around again.
+ */
+public class TimingWheel {
+    /**
+     * Intrusive timer state, extended by whatever needs a deadline
+     */
+    public static class Timer {
+        private Timer prev;
+
+        private Timer next;
+
+        /**
+         * the absolute deadline in milliseconds
+         */
+        private long deadline;
+
+        /**
+         * the absolute tick of the slot holding the timer, -1 if it is not scheduled
+         */
+        private long tick = -1;
+    }
+
+    private final Timer[] slots;
+
+    private final int mask;
+
+    private final long tickMillis;
+
+    /**
+     * the next tick to expire
+     */
+    private long currentTick;
+
+    private int size;
+
+    /**
+     * `slotCount` must be a power of two
+     */
+    public TimingWheel(int slotCount, long tickMillis, long nowMillis) {
+        this.slots = new Timer[slotCount];
+        this.mask = slotCount - 1;
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Schedule or move the timer to `deadline` in milliseconds
+     */
+    public void schedule(Timer timer, long deadline) {
+        long tick = Math.max(deadline / tickMillis, currentTick);
+        if (timer.tick >= 0) {
+            if (tick >= timer.tick) {
+                // a later deadline is picked up when the current slot expires
+                timer.deadline = deadline;
+                return;
+            }
+            unlink(timer);
+        }
+        timer.deadline = deadline;
+        link(timer, tick);
+    }
+
+    public void cancel(Timer timer) {
+        if (timer.tick >= 0) {
+            unlink(timer);
+        }
+    }
+
+    /**
+     * Expire every slot up to `nowMillis`, passing each timer whose deadline has passed to `expired`.
+     * A timer is no longer scheduled when it is passed.
+     */
+    public void advance(long nowMillis, Consumer<Timer> expired) {
+        long nowTick = nowMillis / tickMillis;
+        // a single revolution visits every slot, even after a long pause
+        for (long tick = Math.max(currentTick, nowTick - mask); tick <= nowTick; tick++) {
+            int slot = (int) (tick & mask);
+            Timer timer = slots[slot];
+            slots[slot] = null;
+            while (timer != null) {
+                Timer next = timer.next;
+                timer.prev = null;
+                timer.next = null;
+                timer.tick = -1;
+                size--;
+                if (timer.deadline <= nowMillis) {
+                    expired.accept(timer);
+                } else {
+                    link(timer, Math.max(timer.deadline / tickMillis, nowTick + 1));
+                }
+                timer = next;
+            }
+        }
+        currentTick = Math.max(currentTick, nowTick + 1);
+    }
+
+    private void link(Timer timer, long tick) {
+        int slot = (int) (tick & mask);
+        timer.tick = tick;
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (slots[slot] != null) {
+            slots[slot].prev = timer;
+        }
+        slots[slot] = timer;
+        size++;
+    }
+
+    private void unlink(Timer timer) {
+        int slot = (int) (timer.tick & mask);
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.tick = -1;
+        size--;
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log of the server, written to the console by a background thread so the event loops and handler threads never wait
+ * for it.
+ * <p>
+ * Events go into a preallocated ring: a caller claims a slot with one CAS, stores the event, a reference to its
+ * subject, the key of its username and a number, and publishes the slot. Nothing is formatted or allocated on the
+ * caller's side. The logger thread formats whole runs of published slots and prints each run with one call. When the
+ * ring is full, new events are dropped and counted instead of blocking the caller, and the count is logged once there
+ * is room again.
+ */
+public class AsyncLogger implements Runnable {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final AsyncLogger LOGGER = new AsyncLogger(ServerConfig.logBufferSize, ServerConfig.logLevel);
+
+    /**
+     * the most events formatted before they are printed and their slots are given back
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    /**
+     * how long the logger thread sleeps once the ring is empty
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final Level level;
+
+    /**
+     * slots in the ring, a power of two
+     */
+    private final int capacity;
+
+    private final long[] times;
+
+    private final LogEvent[] events;
+
+    private final Object[] subjects;
+
+    /**
+     * the store key of each slot, zeroed if the event has none
+     */
+    private final byte[] keys;
+
+    private final long[] values;
+
+    /**
+     * the sequence number last published into each slot, a slot is readable once it holds the one expected
+     */
+    private final AtomicLongArray published;
+
+    /**
+     * the next sequence number to claim
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * the next sequence number to print, every slot before it can be claimed again
+     */
+    private volatile long tail;
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final Thread thread;
+
+    private volatile boolean closing;
+
+    /**
+     * set once the logger thread is done, later events are printed by their callers
+     */
+    private volatile boolean stopped;
+
+    private AsyncLogger(int capacity, Level level) {
+        this.level = level;
+        this.capacity = Math.max(2, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+        this.times = new long[this.capacity];
+        this.events = new LogEvent[this.capacity];
+        this.subjects = new Object[this.capacity];
+        this.keys = new byte[this.capacity * CredentialStore.KEY];
+        this.values = new long[this.capacity];
+        this.published = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            published.set(i, -1);
+        }
+        this.thread = new Thread(this, "logger");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LOGGER.level) >= 0;
+    }
+
+    public static void info(String message) {
+        log(LogEvent.INFO, message, null, 0);
+    }
+
+    public static void warn(String message) {
+        log(LogEvent.WARN, message, null, 0);
+    }
+
+    public static void log(LogEvent event, Object subject) {
+        log(event, subject, null, 0);
+    }
+
+    /**
+     * Queue an event, `key` is copied and may be reused once this returns
+     */
+    public static void log(LogEvent event, Object subject, byte[] key, long value) {
+        if (isEnabled(event.getLevel())) {
+            LOGGER.append(event, subject, key, value);
+        }
+    }
+
+    /**
+     * The number of events dropped so far because the ring was full
+     */
+    public static long getDropped() {
+        return LOGGER.dropped.sum();
+    }
+
+    /**
+     * Print the queued events and stop the logger thread, called on shutdown
+     */
+    public static void close() {
+        LOGGER.closing = true;
+        LockSupport.unpark(LOGGER.thread);
+        try {
+            LOGGER.thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void append(LogEvent event, Object subject, byte[] key, long value) {
+        long time = System.currentTimeMillis();
+        if (stopped) {
+            StringBuilder text = new StringBuilder();
+            format(text, time, event, subject, key, 0, value);
+            System.out.print(text);
+            return;
+        }
+
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= capacity) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & (capacity - 1);
+        times[slot] = time;
+        events[slot] = event;
+        subjects[slot] = subject;
+        values[slot] = value;
+        if (key != null) {
+            System.arraycopy(key, 0, keys, slot * CredentialStore.KEY, CredentialStore.KEY);
+        } else {
+            keys[slot * CredentialStore.KEY] = 0;
+        }
+        published.setRelease(slot, sequence);
+    }
+
+    @Override
+    public void run() {
+        StringBuilder text = new StringBuilder(1 << 14);
+        long next = 0;
+        long reportedDrops = 0;
+        while (true) {
+            boolean stopping = closing;
+            int count = 0;
+            int slot;
+            while (count < MAX_BATCH_SIZE && published.getAcquire(slot = (int) next & (capacity - 1)) == next) {
+                format(text, times[slot], events[slot], subjects[slot], keys, slot * CredentialStore.KEY, values[slot]);
+                // do not keep the subject reachable until the slot is reused
+                subjects[slot] = null;
+                next++;
+                count++;
+            }
+            if (count > 0) {
+                tail = next;
+            }
+
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                format(text, System.currentTimeMillis(), LogEvent.DROPPED, null, null, 0, drops - reportedDrops);
+                reportedDrops = drops;
+            }
+            if (text.length() > 0) {
+                System.out.print(text);
+                text.setLength(0);
+            }
+
+            if (count == 0) {
+                if (stopping && head.get() == next) {
+                    stopped = true;
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    private static void format(StringBuilder text, long time, LogEvent event, Object subject, byte[] keys, int keyOffset, long value) {
+        text.append('[').append(new Date(time)).append("] ");
+        String template = event.getTemplate();
+        int i = 0;
+        while (i < template.length()) {
+            if (template.startsWith("{}", i)) {
+                if (subject instanceof Throwable && event.getLevel() == Level.ERROR) {
+                    // errors keep their stack traces
+                    StringWriter stackTrace = new StringWriter();
+                    ((Throwable) subject).printStackTrace(new PrintWriter(stackTrace));
+                    text.append(stackTrace.toString().stripTrailing());
+                } else {
+                    text.append(subject);
+                }
+                i += 2;
+            } else if (template.startsWith("{user}", i)) {
+                text.append(keys == null ? "" : CredentialStore.userName(keys, keyOffset));
+                i += 6;
+            } else if (template.startsWith("{value}", i)) {
+                text.append(value);
+                i += 7;
+            } else {
+                text.append(template.charAt(i++));
+            }
+        }
+        text.append('\n');
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A connection of the `blocking` engine, served by a thread of its own: it reads the 8-byte header and then the body
+ * of a msg with blocking reads, handles the request and writes the response before it reads the next msg.
+ * Requests are decoded, throttled and handled by the same code as on the event loops, only on this thread instead of
+ * the handler pool. Registrations and batches still finish on the journal and handler threads, which wake this one.
+ * <p>
+ * The threads are virtual where the runtime has them (Java 21 and later), so a parked connection costs a small heap
+ * object instead of a stack. Older runtimes get platform threads with small stacks, which limits the connections to
+ * what the OS allows in threads.
+ */
+public class BlockingConnection implements Runnable, ResponseSink {
+    /**
+     * stack size of the platform threads used where there are no virtual threads
+     */
+    private static final long PLATFORM_STACK_SIZE = 256 << 10;
+
+    /**
+     * `Thread.ofVirtual().factory()`, null if the runtime has no virtual threads
+     */
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = virtualThreadFactory();
+
+    private static final AtomicLong threadCount = new AtomicLong();
+
+    private final SimpleSignUpSignInServer server;
+
+    private final ServerMetrics metrics;
+
+    private final Connection connection;
+
+    /**
+     * the one request of the connection, reused for every msg
+     */
+    private final Request request;
+
+    /**
+     * heap buffer holding the msg being read, grown up to the max frame length
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * bytes of the current msg received so far, to tell a stalled request from an idle connection
+     */
+    private int received;
+
+    /**
+     * the thread serving the connection, parked while another thread finishes its request
+     */
+    private Thread thread;
+
+    /**
+     * set by whichever thread finishes the request
+     */
+    private volatile boolean completed;
+
+    public BlockingConnection(SimpleSignUpSignInServer server, SocketChannel socketChannel) throws IOException {
+        this.server = server;
+        this.metrics = server.getMetrics();
+        this.connection = new Connection(socketChannel, socketChannel.getRemoteAddress());
+        this.connection.setAddressHash(server.hashAddress(connection.getRemoteAddress()));
+        this.request = new Request(server, this);
+        this.buffer = ByteBuffer.allocate(1 << 10);
+    }
+
+    /**
+     * Look up the virtual thread factory reflectively, so the server still builds and runs on Java 17
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // before Java 21, or a preview runtime without --enable-preview
+            return null;
+        }
+    }
+
+    public static boolean isVirtual() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * Serve the connection on a thread of its own
+     */
+    public void start() {
+        String name = "connection-" + threadCount.getAndIncrement();
+        if (VIRTUAL_THREAD_FACTORY != null) {
+            thread = VIRTUAL_THREAD_FACTORY.newThread(this);
+            thread.setName(name);
+        } else {
+            thread = new Thread(null, this, name, PLATFORM_STACK_SIZE);
+            thread.setDaemon(true);
+        }
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        metrics.connectionOpened();
+        boolean error = false;
+        Socket socket = connection.getSocketChannel().socket();
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                // a silent client is closed after the idle timeout, one stalling within a msg after the slow-read one
+                received = 0;
+                socket.setSoTimeout(toTimeout(ServerConfig.idleTimeoutMillis));
+                if (!readFully(in, FieldLength.header)) {
+                    AsyncLogger.log(LogEvent.DISCONNECTED, connection.getRemoteAddress());
+                    break;
+                }
+                long startNanos = System.nanoTime();
+
+                // parse the msg header
+                int totalLength = buffer.getInt(0);
+                int commandID = buffer.getInt(FieldLength.totalLengthField);
+                if (totalLength < FieldLength.header || totalLength > ServerConfig.maxFrameLength) {
+                    throw new IOException("invalid msg length.");
+                }
+                if (!MessageCodec.isRequest(commandID)) {
+                    // should never happen
+                    throw new IOException("invalid command ID.");
+                }
+                if (!MessageCodec.isValidLength(commandID, totalLength)) {
+                    throw new IOException("invalid msg length.");
+                }
+
+                // read the msg body
+                if (buffer.capacity() < totalLength) {
+                    buffer = ByteBuffer.allocate(totalLength).put(buffer.array(), 0, FieldLength.header);
+                }
+                socket.setSoTimeout(toTimeout(ServerConfig.slowReadTimeoutMillis));
+                if (!readFully(in, totalLength)) {
+                    throw new EOFException("The connection was closed within a msg.");
+                }
+                metrics.addBytesIn(totalLength);
+                buffer.position(0).limit(totalLength);
+
+                byte[] response = handle(commandID, totalLength, startNanos);
+                out.write(response);
+                metrics.addBytesOut(response.length);
+            }
+        } catch (SocketTimeoutException e) {
+            AsyncLogger.log(received > 0 ? LogEvent.SLOW_REQUEST : LogEvent.IDLE, connection.getRemoteAddress());
+        } catch (Exception e) {
+            AsyncLogger.log(LogEvent.CONNECTION_ERROR, e);
+            error = true;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                AsyncLogger.log(LogEvent.CONNECTION_ERROR, e);
+            }
+            metrics.connectionClosed(error);
+        }
+    }
+
+    private static int toTimeout(long millis) {
+        return (int) Math.min(Integer.MAX_VALUE, millis);
+    }
+
+    /**
+     * Read the msg up to `length` bytes into the buffer. Returns false if the stream ended before any of them.
+     */
+    private boolean readFully(InputStream in, int length) throws IOException {
+        int start = received;
+        while (received < length) {
+            int n = in.read(buffer.array(), received, length - received);
+            if (n < 0) {
+                if (received == start) {
+                    return false;
+                }
+                throw new EOFException("The connection was closed within a msg.");
+            }
+            received += n;
+        }
+        return true;
+    }
+
+    /**
+     * Answer the msg in the buffer, handling it on this thread
+     */
+    private byte[] handle(int commandID, int totalLength, long startNanos) throws IOException {
+        request.reset(connection, commandID);
+        request.setStartNanos(startNanos);
+        byte[] response;
+        if (commandID == CommandID.TOKEN_VERIFY_REQ) {
+            response = server.verifyToken(buffer, FieldLength.header, request.getUserName());
+        } else if (commandID == CommandID.METRICS_REQ) {
+            response = server.metricsResponse(connection);
+        } else {
+            MessageCodec.decodeRequest(buffer, totalLength, request);
+            if (!server.admit(request)) {
+                // over the rate limits, refused before it costs a hash
+                response = request.getResponse();
+            } else {
+                // logins finish right here, registrations once the journal is durable
+                completed = false;
+                server.execute(request);
+                while (!completed) {
+                    LockSupport.park(this);
+                }
+                if (request.isFailed()) {
+                    metrics.recordRequest(commandID, System.nanoTime() - startNanos, true);
+                    throw new IOException("The request could not be handled.");
+                }
+                response = request.getResponse();
+            }
+        }
+        metrics.recordRequest(commandID, System.nanoTime() - startNanos, false);
+        return response;
+    }
+
+    /**
+     * Called by the thread finishing the request, which is this one for logins
+     */
+    @Override
+    public void complete(Request request) {
+        completed = true;
+        LockSupport.unpark(thread);
+    }
+}
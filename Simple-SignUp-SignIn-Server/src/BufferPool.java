@@ -0,0 +1,122 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Direct buffers in a few size classes, carved from large slabs and reused. Owned by one event loop thread.
+ * <p>
+ * Connections only borrow a buffer while they hold a partial frame or unsent bytes, so an idle connection costs
+ * no buffer memory at all. Slabs are never given back, the pool stays as large as the busiest moment needed.
+ */
+public class BufferPool {
+    /**
+     * Each size class is this many times the previous one
+     */
+    private static final int CLASS_GROWTH = 4;
+
+    /**
+     * The size of a slab, unless a single buffer of the class is larger
+     */
+    private static final int SLAB_SIZE = 1 << 20;
+
+    /**
+     * buffer capacity of each size class, ascending
+     */
+    private final int[] classSizes;
+
+    /**
+     * free buffers of each size class
+     */
+    private final ArrayDeque<ByteBuffer>[] freeBuffers;
+
+    /**
+     * the slab currently carved for each size class and the offset of its next buffer
+     */
+    private final ByteBuffer[] slabs;
+
+    private final int[] slabOffsets;
+
+    /**
+     * written by the owning thread only, volatile so the metrics can read it from others
+     */
+    private volatile long slabBytes;
+
+    /**
+     * Size classes start at `minBufferSize` and grow until one holds `maxBufferSize`
+     */
+    public BufferPool(int minBufferSize, int maxBufferSize) {
+        int count = 1;
+        for (long size = minBufferSize; size < maxBufferSize; size *= CLASS_GROWTH) {
+            count++;
+        }
+        classSizes = new int[count];
+        long size = minBufferSize;
+        for (int i = 0; i < count; i++) {
+            classSizes[i] = (int) Math.min(size, Integer.MAX_VALUE);
+            size *= CLASS_GROWTH;
+        }
+        classSizes[count - 1] = Math.max(classSizes[count - 1], maxBufferSize);
+
+        // generic arrays cannot be created, every element is set to an ArrayDeque<ByteBuffer> below
+        @SuppressWarnings("unchecked")
+        ArrayDeque<ByteBuffer>[] deques = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[count];
+        freeBuffers = deques;
+        for (int i = 0; i < count; i++) {
+            freeBuffers[i] = new ArrayDeque<>();
+        }
+        slabs = new ByteBuffer[count];
+        slabOffsets = new int[count];
+    }
+
+    /**
+     * A cleared buffer of at least `capacity` bytes, which must not exceed the largest size class
+     */
+    public ByteBuffer acquire(int capacity) {
+        int sizeClass = 0;
+        while (classSizes[sizeClass] < capacity) {
+            // should never happen, frames longer than the largest class are rejected before
+            if (++sizeClass == classSizes.length) {
+                throw new IllegalArgumentException("No size class holds " + capacity + " bytes.");
+            }
+        }
+
+        ByteBuffer buffer = freeBuffers[sizeClass].poll();
+        if (buffer != null) {
+            return buffer;
+        }
+
+        // carve a new buffer from the slab of the class
+        int bufferSize = classSizes[sizeClass];
+        ByteBuffer slab = slabs[sizeClass];
+        if (slab == null || slabOffsets[sizeClass] + bufferSize > slab.capacity()) {
+            slab = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE / bufferSize, 1) * bufferSize);
+            slabs[sizeClass] = slab;
+            slabOffsets[sizeClass] = 0;
+            slabBytes += slab.capacity();
+        }
+        buffer = slab.slice(slabOffsets[sizeClass], bufferSize);
+        slabOffsets[sizeClass] += bufferSize;
+        return buffer;
+    }
+
+    /**
+     * Give a buffer obtained from `acquire` back to the pool
+     */
+    public void release(ByteBuffer buffer) {
+        for (int i = 0; i < classSizes.length; i++) {
+            if (classSizes[i] == buffer.capacity()) {
+                buffer.clear();
+                freeBuffers[i].push(buffer);
+                return;
+            }
+        }
+        // should never happen
+        throw new IllegalArgumentException("The buffer does not belong to the pool.");
+    }
+
+    /**
+     * The direct memory taken by slabs so far
+     */
+    public long getSlabBytes() {
+        return this.slabBytes;
+    }
+}
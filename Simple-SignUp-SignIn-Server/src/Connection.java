@@ -0,0 +1,196 @@
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Per-connection state of an event loop. The connection is its own timer on the timing wheel of the loop.
+ */
+public class Connection extends TimingWheel.Timer {
+    /**
+     * non-blocking client socket
+     */
+    private final SocketChannel socketChannel;
+
+    /**
+     * remote address of the client, cached so other threads can log it after the channel is closed
+     */
+    private final SocketAddress remoteAddress;
+
+    /**
+     * keyed hash of the client host for the login throttle
+     */
+    private long addressHash;
+
+    /**
+     * pooled input buffer in write mode holding a partial frame, null while there is none
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * pooled output buffer in write mode holding the bytes the socket has not taken yet, null while there are none
+     */
+    private ByteBuffer outputBuffer;
+
+    /**
+     * Responses waiting for room in `outputBuffer`, in request order
+     */
+    private final ArrayDeque<byte[]> outboundQueue;
+
+    /**
+     * The number of bytes in `outputBuffer` and `outboundQueue`
+     */
+    private int outboundBytes;
+
+    /**
+     * Whether OP_READ is off because the client does not drain its responses or has too many requests waiting
+     */
+    private boolean readPaused;
+
+    /**
+     * Whether the client has shut down its side, the connection is closed once everything it sent is answered
+     */
+    private boolean inputClosed;
+
+    /**
+     * When bytes were last read or written, in event loop milliseconds
+     */
+    private long lastActivityMillis;
+
+    /**
+     * When the first bytes of a request still incomplete were read, 0 if there is none
+     */
+    private long requestStartMillis;
+
+    /**
+     * When the socket last took response bytes while more were waiting, 0 if nothing is waiting
+     */
+    private long writeStallMillis;
+
+    /**
+     * the key of the socket channel in the selector of its event loop
+     */
+    private SelectionKey selectionKey;
+
+    /**
+     * Requests decoded from this connection in arrival order, responses are sent from the head only
+     */
+    private final ArrayDeque<Request> pendingRequests;
+
+    /**
+     * The in-flight registration later requests must wait for, so a pipelined login sees the user it just registered
+     */
+    private Request barrier;
+
+    public Connection(SocketChannel socketChannel, SocketAddress remoteAddress) {
+        this.socketChannel = socketChannel;
+        this.remoteAddress = remoteAddress;
+        this.outboundQueue = new ArrayDeque<>();
+        this.pendingRequests = new ArrayDeque<>();
+    }
+
+    public SocketChannel getSocketChannel() {
+        return this.socketChannel;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return this.remoteAddress;
+    }
+
+    public long getAddressHash() {
+        return this.addressHash;
+    }
+
+    public void setAddressHash(long addressHash) {
+        this.addressHash = addressHash;
+    }
+
+    public ByteBuffer getBuffer() {
+        return this.buffer;
+    }
+
+    public void setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public ByteBuffer getOutputBuffer() {
+        return this.outputBuffer;
+    }
+
+    public void setOutputBuffer(ByteBuffer outputBuffer) {
+        this.outputBuffer = outputBuffer;
+    }
+
+    public ArrayDeque<byte[]> getOutboundQueue() {
+        return this.outboundQueue;
+    }
+
+    public int getOutboundBytes() {
+        return this.outboundBytes;
+    }
+
+    public void setOutboundBytes(int outboundBytes) {
+        this.outboundBytes = outboundBytes;
+    }
+
+    public boolean isReadPaused() {
+        return this.readPaused;
+    }
+
+    public void setReadPaused(boolean readPaused) {
+        this.readPaused = readPaused;
+    }
+
+    public boolean isInputClosed() {
+        return this.inputClosed;
+    }
+
+    public void setInputClosed(boolean inputClosed) {
+        this.inputClosed = inputClosed;
+    }
+
+    public long getLastActivityMillis() {
+        return this.lastActivityMillis;
+    }
+
+    public void setLastActivityMillis(long lastActivityMillis) {
+        this.lastActivityMillis = lastActivityMillis;
+    }
+
+    public long getRequestStartMillis() {
+        return this.requestStartMillis;
+    }
+
+    public void setRequestStartMillis(long requestStartMillis) {
+        this.requestStartMillis = requestStartMillis;
+    }
+
+    public long getWriteStallMillis() {
+        return this.writeStallMillis;
+    }
+
+    public void setWriteStallMillis(long writeStallMillis) {
+        this.writeStallMillis = writeStallMillis;
+    }
+
+    public SelectionKey getSelectionKey() {
+        return this.selectionKey;
+    }
+
+    public void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    public ArrayDeque<Request> getPendingRequests() {
+        return this.pendingRequests;
+    }
+
+    public Request getBarrier() {
+        return this.barrier;
+    }
+
+    public void setBarrier(Request barrier) {
+        this.barrier = barrier;
+    }
+}
@@ -0,0 +1,196 @@
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Username and password pairs verified recently, so a repeated login skips the hasher.
+ * <p>
+ * Entries hold no password: a user tag, a SipHash-2-4 of the username, picks a 4-way set and identifies the user,
+ * and a credential tag, a SipHash-2-4 of the username and the password under another key, proves the password.
+ * Both keys are random per process. An entry lives `ttlMillis` after its verification, a full set evicts its least
+ * recently used entry.
+ */
+public class CredentialCache {
+    private static final int WAYS = 4;
+
+    /**
+     * longs per entry: user tag, credential tag, expiry and last use
+     */
+    private static final int ENTRY_LONGS = 4;
+
+    private static final int LOCK_STRIPES = 256;
+
+    private final long[] table;
+
+    private final int setMask;
+
+    private final Object[] locks;
+
+    private final long ttlMillis;
+
+    private final long userKey0, userKey1, credentialKey0, credentialKey1;
+
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    public CredentialCache(int maxEntries, long ttlMillis) {
+        int sets = Math.max(1, Integer.highestOneBit(Math.max(1, maxEntries / WAYS - 1)) << 1);
+        this.table = new long[sets * WAYS * ENTRY_LONGS];
+        this.setMask = sets - 1;
+        this.locks = new Object[Math.min(LOCK_STRIPES, sets)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        this.ttlMillis = ttlMillis;
+
+        SecureRandom random = new SecureRandom();
+        this.userKey0 = random.nextLong();
+        this.userKey1 = random.nextLong();
+        this.credentialKey0 = random.nextLong();
+        this.credentialKey1 = random.nextLong();
+    }
+
+    /**
+     * Whether the password of `key` was verified within the TTL
+     */
+    public boolean verify(byte[] key, byte[] passwd, int passwdLength) {
+        long userTag = userTag(key);
+        long credentialTag = credentialTag(key, passwd, passwdLength);
+        int set = (int) userTag & setMask;
+        long now = currentMillis();
+        synchronized (locks[set % locks.length]) {
+            for (int way = 0, index = set * WAYS * ENTRY_LONGS; way < WAYS; way++, index += ENTRY_LONGS) {
+                if (table[index] == userTag && table[index + 1] == credentialTag && table[index + 2] > now) {
+                    table[index + 3] = now;
+                    hits.increment();
+                    return true;
+                }
+            }
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * Remember a verified password of `key`
+     */
+    public void put(byte[] key, byte[] passwd, int passwdLength) {
+        long userTag = userTag(key);
+        long credentialTag = credentialTag(key, passwd, passwdLength);
+        int set = (int) userTag & setMask;
+        long now = currentMillis();
+        synchronized (locks[set % locks.length]) {
+            // the entry of the same user, else an expired one, else the least recently used
+            int victim = -1;
+            long victimLastUse = Long.MAX_VALUE;
+            for (int way = 0, index = set * WAYS * ENTRY_LONGS; way < WAYS; way++, index += ENTRY_LONGS) {
+                if (table[index] == userTag) {
+                    victim = index;
+                    break;
+                }
+                long lastUse = table[index + 2] <= now ? Long.MIN_VALUE : table[index + 3];
+                if (lastUse < victimLastUse) {
+                    victim = index;
+                    victimLastUse = lastUse;
+                }
+            }
+            table[victim] = userTag;
+            table[victim + 1] = credentialTag;
+            table[victim + 2] = now + ttlMillis;
+            table[victim + 3] = now;
+        }
+    }
+
+    /**
+     * Forget whatever was verified for `key`
+     */
+    public void invalidate(byte[] key) {
+        long userTag = userTag(key);
+        int set = (int) userTag & setMask;
+        synchronized (locks[set % locks.length]) {
+            for (int way = 0, index = set * WAYS * ENTRY_LONGS; way < WAYS; way++, index += ENTRY_LONGS) {
+                if (table[index] == userTag) {
+                    table[index + 2] = 0;
+                }
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private long currentMillis() {
+        // starts at 1, an expiry of 0 is always in the past
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + 1;
+    }
+
+    private long userTag(byte[] key) {
+        return sipHash24(userKey0, userKey1, key, CredentialStore.KEY, null, 0);
+    }
+
+    private long credentialTag(byte[] key, byte[] passwd, int passwdLength) {
+        return sipHash24(credentialKey0, credentialKey1, key, CredentialStore.KEY, passwd, passwdLength);
+    }
+
+    /**
+     * SipHash-2-4 of the first `aLength` bytes of `a` followed by the first `bLength` bytes of `b`
+     */
+    static long sipHash24(long k0, long k1, byte[] a, int aLength, byte[] b, int bLength) {
+        long v0 = 0x736f6d6570736575L ^ k0;
+        long v1 = 0x646f72616e646f6dL ^ k1;
+        long v2 = 0x6c7967656e657261L ^ k0;
+        long v3 = 0x7465646279746573L ^ k1;
+
+        int length = aLength + bLength;
+        int blocksEnd = length & ~7;
+        for (int offset = 0; offset < blocksEnd; offset += 8) {
+            long m = 0;
+            for (int i = 7; i >= 0; i--) {
+                m = m << 8 | byteAt(a, aLength, b, offset + i);
+            }
+            v3 ^= m;
+            for (int round = 0; round < 2; round++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= m;
+        }
+
+        // the last block holds the remaining bytes and the length in its top byte
+        long m = (long) length << 56;
+        for (int i = length - blocksEnd - 1; i >= 0; i--) {
+            m |= byteAt(a, aLength, b, blocksEnd + i) << (i * 8);
+        }
+        v3 ^= m;
+        for (int round = 0; round < 2; round++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        v0 ^= m;
+
+        v2 ^= 0xff;
+        for (int round = 0; round < 4; round++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    private static long byteAt(byte[] a, int aLength, byte[] b, int index) {
+        return (index < aLength ? a[index] : b[index - aLength]) & 0xffL;
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary image of the credential table, loaded with a single mapping instead of parsing pwd.txt.
+ * <p>
+ * Layout, big endian: magic, version, record count, the length of pwd.txt covered by the snapshot, the CRC32C of
+ * those first bytes of pwd.txt, then fixed-width records of username (zero padded), salt, raw digest and hasher params.
+ * Version 1 snapshots have no params, all of their records are salted SHA-256. Versions 1 and 2 have no checksum, so
+ * they cannot be checked against pwd.txt and are only loaded by replicas.
+ */
+public class CredentialSnapshot {
+    public static final int MAGIC = 0x53535553;
+
+    public static final int VERSION = 3;
+
+    /**
+     * The length of the snapshot header: magic, version, record count, pwd.txt offset and pwd.txt checksum
+     */
+    public static final int HEADER = 4 + 4 + 4 + 8 + 4;
+
+    /**
+     * The header of version 1 and 2 snapshots, without the checksum
+     */
+    private static final int V2_HEADER = 4 + 4 + 4 + 8;
+
+    /**
+     * Records are laid out exactly like the records of the store
+     */
+    public static final int RECORD = CredentialStore.RECORD;
+
+    /**
+     * Records of version 1 snapshots, without params
+     */
+    private static final int V1_RECORD = CredentialStore.RECORD - CredentialStore.PARAMS;
+
+    /**
+     * Write the store to `path` atomically, `pwdChecksum` being the CRC32C of the first `pwdOffset` bytes of pwd.txt.
+     * Must not run concurrently with inserts to `store`. Returns the number of records written.
+     */
+    public static int write(Path path, CredentialStore store, long pwdOffset, int pwdChecksum) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        int count;
+        try (FileOutputStream fileOutputStream = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            // patched below once the count is known
+            out.writeInt(0);
+            out.writeLong(pwdOffset);
+            out.writeInt(pwdChecksum);
+
+            count = store.forEach(new byte[RECORD], out::write);
+            out.flush();
+
+            fileOutputStream.getChannel().write(ByteBuffer.allocate(4).putInt(0, count), 8);
+            fileOutputStream.getChannel().force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * Add the bytes of the file from `from` to `to` to `checksum`, mapped a GiB at a time
+     */
+    public static void checksum(FileChannel channel, long from, long to, CRC32C checksum) throws IOException {
+        for (long position = from; position < to; position += 1 << 30) {
+            checksum.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(to - position, 1 << 30)));
+        }
+    }
+
+    /**
+     * The number of records in the snapshot at `path`, 0 if there is none. Used to size the store before loading.
+     */
+    public static int count(Path path) throws IOException {
+        if (!Files.exists(path) || Files.size(path) < V2_HEADER) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(V2_HEADER);
+            channel.read(header, 0);
+            return Math.max(0, header.getInt(8));
+        }
+    }
+
+    /**
+     * Load the snapshot at `path` into `store`. Returns the offset in pwd.txt from which lines still
+     * have to be replayed, or 0 if there is no usable snapshot.
+     * <p>
+     * The snapshot is only used if the first bytes of the pwd.txt at `pwdPath` are still those it was taken of, a
+     * replaced or edited pwd.txt is parsed in full instead and the stale snapshot is removed, so it is not sent to
+     * replicas either. A replica passes a null `pwdPath`, its snapshot covers the pwd.txt of its primary.
+     */
+    public static long load(Path path, CredentialStore store, Path pwdPath) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < V2_HEADER) {
+                AsyncLogger.warn("The snapshot " + path + " is truncated and is ignored.");
+                return 0;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int magic = buffer.getInt();
+            int version = buffer.getInt();
+            int count = buffer.getInt();
+            long pwdOffset = buffer.getLong();
+            int header = version >= 3 ? HEADER : V2_HEADER;
+            int pwdChecksum = version >= 3 ? buffer.getInt() : 0;
+            int recordLength = version == 1 ? V1_RECORD : RECORD;
+            if (magic != MAGIC || version < 1 || version > VERSION || size != header + (long) count * recordLength) {
+                // a torn write, fall back to the text file
+                AsyncLogger.warn("The snapshot " + path + " is invalid and is ignored.");
+                return 0;
+            }
+            if (pwdPath != null) {
+                if (version < 3) {
+                    AsyncLogger.warn("The snapshot " + path + " has no checksum of " + pwdPath + " and is ignored.");
+                    return 0;
+                }
+                if (!matches(pwdPath, pwdOffset, pwdChecksum)) {
+                    AsyncLogger.warn("The snapshot " + path + " does not match " + pwdPath + " and is removed.");
+                    Files.delete(path);
+                    return 0;
+                }
+            }
+
+            // the params of version 1 records stay 0, i.e. salted SHA-256
+            byte[] record = new byte[RECORD];
+            for (int i = 0; i < count; i++) {
+                buffer.get(record, 0, recordLength);
+                store.putIfAbsent(record, 0);
+            }
+            return pwdOffset;
+        }
+    }
+
+    /**
+     * Whether the pwd.txt at `pwdPath` is at least `length` bytes long and its first `length` bytes have `checksum`
+     */
+    private static boolean matches(Path pwdPath, long length, int checksum) throws IOException {
+        try (FileChannel channel = FileChannel.open(pwdPath, StandardOpenOption.READ)) {
+            if (length > channel.size()) {
+                return false;
+            }
+            CRC32C crc = new CRC32C();
+            checksum(channel, 0, length, crc);
+            return (int) crc.getValue() == checksum;
+        }
+    }
+}
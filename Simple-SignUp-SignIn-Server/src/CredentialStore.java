@@ -0,0 +1,391 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Username-salt-digest table kept off-heap. The table is split into segments, each an open-addressed array of
+ * fixed-width slots in one direct ByteBuffer, so a user costs one 72-byte slot instead of a map entry and four objects.
+ * <p>
+ * Keys are the 20-byte username field of the requests, trimmed and zero padded (see `MessageCodec.decodeCredentials`), so lookups work on
+ * request bytes without building a String.
+ * <p>
+ * Lookups take no lock. A slot is published by a release store of its hash once its key is written, and its record by
+ * a release store of its state once the rest is written, so a reader never sees a half-built entry. Writers lock only
+ * their segment, and a grown table is published through a volatile field. A lookup missing in a table that was
+ * replaced meanwhile probes the new one, the record may have been committed there only.
+ * <p>
+ * A registration first reserves its key with `reserve`, the atomic insert-if-absent deciding duplicates, and then
+ * `commit`s or `abort`s it. A reserved key is taken but cannot log in yet.
+ */
+public class CredentialStore {
+    /**
+     * The length of a key, i.e. the username field of the requests
+     */
+    public static final int KEY = FieldLength.regReqUserName;
+
+    public static final int SALT = 8;
+
+    /**
+     * The length of a raw SHA-256 digest
+     */
+    public static final int DIGEST = 32;
+
+    /**
+     * The length of the hasher params of a record, see `PasswordHashers`
+     */
+    public static final int PARAMS = 4;
+
+    /**
+     * The length of a record: key, salt, digest and hasher params. Records are also the layout of the snapshot.
+     */
+    public static final int RECORD = KEY + SALT + DIGEST + PARAMS;
+
+    /**
+     * The length of what `get` returns: the record without its key
+     */
+    public static final int ENTRY = SALT + DIGEST + PARAMS;
+
+    /**
+     * A slot is the key hash, the state and a record, the hash is never 0 for a used slot
+     */
+    private static final int SLOT = 4 + 4 + RECORD;
+
+    private static final int STATE_OFFSET = 4;
+
+    private static final int RECORD_OFFSET = 8;
+
+    /**
+     * Slot states. A used slot never becomes empty again, an aborted one is skipped until its key is reserved again
+     * or the segment grows.
+     */
+    private static final int PENDING = 1;
+
+    private static final int COMMITTED = 2;
+
+    private static final int ABORTED = 3;
+
+    private static final int SEGMENT_BITS = 6;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * The most slots of a segment, so the byte offsets of its table stay below the 2^31 a ByteBuffer can address
+     */
+    private static final int MAX_CAPACITY = 1 << 24;
+
+    /**
+     * acquire/release access to the hash and state words of a slot
+     */
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    public interface RecordConsumer {
+        void accept(byte[] record) throws IOException;
+    }
+
+    private static class Segment {
+        /**
+         * read without the lock, replaced under it when the segment grows
+         */
+        private volatile ByteBuffer table;
+
+        /**
+         * the number of slots, a power of two
+         */
+        private int capacity;
+
+        /**
+         * slots with a hash, aborted ones included
+         */
+        private int used;
+
+        /**
+         * committed records
+         */
+        private int size;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.table = ByteBuffer.allocateDirect(tableBytes(capacity));
+        }
+    }
+
+    /**
+     * The length of a table of `capacity` slots
+     */
+    private static int tableBytes(int capacity) {
+        long bytes = (long) capacity * SLOT;
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalStateException("A segment of the credential store cannot grow beyond " + MAX_CAPACITY
+                    + " slots (" + bytes + " bytes).");
+        }
+        return (int) bytes;
+    }
+
+    private final Segment[] segments;
+
+    public CredentialStore(int expectedUsers) {
+        segments = new Segment[1 << SEGMENT_BITS];
+        int perSegment = (int) Math.min(MAX_CAPACITY, (long) (expectedUsers / LOAD_FACTOR) >> SEGMENT_BITS);
+        int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, perSegment - 1)) << 1);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(capacity);
+        }
+    }
+
+    /**
+     * The username of a key, for logging
+     */
+    public static String userName(byte[] key, int offset) {
+        int length = 0;
+        while (length < KEY && key[offset + length] != 0) {
+            length++;
+        }
+        return new String(key, offset, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Hash of a key, never 0
+     */
+    public static int hash(byte[] key, int offset) {
+        int h = 0x9747b28c;
+        for (int i = 0; i < KEY; i += 4) {
+            int k = (key[offset + i] & 0xff) << 24 | (key[offset + i + 1] & 0xff) << 16
+                    | (key[offset + i + 2] & 0xff) << 8 | (key[offset + i + 3] & 0xff);
+            k *= 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15);
+            k *= 0x1b873593;
+            h ^= k;
+            h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+        }
+        // murmur3 finalizer
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h == 0 ? 1 : h;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    private static boolean keyEquals(ByteBuffer table, int slotOffset, byte[] key, int keyOffset) {
+        for (int i = 0; i < KEY; i++) {
+            if (table.get(slotOffset + RECORD_OFFSET + i) != key[keyOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int state(ByteBuffer table, int slotOffset) {
+        return (int) INT.getAcquire(table, slotOffset + STATE_OFFSET);
+    }
+
+    private static void setState(ByteBuffer table, int slotOffset, int state) {
+        INT.setRelease(table, slotOffset + STATE_OFFSET, state);
+    }
+
+    /**
+     * The offset of the slot holding `key`, or of the empty slot where it belongs, as a negative number minus one.
+     * Safe without the lock: a key has at most one slot, and the table is never full.
+     */
+    private static int find(ByteBuffer table, int hash, byte[] key, int keyOffset) {
+        int mask = table.capacity() / SLOT - 1;
+        for (int index = hash & mask; ; index = (index + 1) & mask) {
+            int slotOffset = index * SLOT;
+            int slotHash = (int) INT.getAcquire(table, slotOffset);
+            if (slotHash == 0) {
+                return -slotOffset - 1;
+            }
+            if (slotHash == hash && keyEquals(table, slotOffset, key, keyOffset)) {
+                return slotOffset;
+            }
+        }
+    }
+
+    /**
+     * Copy the salt, the digest and the hasher params stored for `key` to `out`. Returns false if the user does not
+     * exist or is still being registered. Lock-free, it probes again only if the segment grew meanwhile.
+     */
+    public boolean get(byte[] key, int keyOffset, byte[] out, int outOffset) {
+        int hash = hash(key, keyOffset);
+        Segment segment = segmentFor(hash);
+        ByteBuffer table = segment.table;
+        while (true) {
+            int slotOffset = find(table, hash, key, keyOffset);
+            if (slotOffset >= 0 && state(table, slotOffset) == COMMITTED) {
+                table.get(slotOffset + RECORD_OFFSET + KEY, out, outOffset, ENTRY);
+                return true;
+            }
+            // a grow published after the read above leaves the old table unwritten, a commit since then is in the
+            // new one, which the volatile read makes visible
+            ByteBuffer current = segment.table;
+            if (current == table) {
+                return false;
+            }
+            table = current;
+        }
+    }
+
+    /**
+     * Reserve `key` for a registration unless it is registered or reserved already. Returns false if it is.
+     * A successful reservation must be followed by `commit` or `abort`.
+     */
+    public boolean reserve(byte[] key, int keyOffset) {
+        int hash = hash(key, keyOffset);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            return claim(segment, hash, key, keyOffset) >= 0;
+        }
+    }
+
+    /**
+     * Fill in and publish the record of a key reserved with `reserve`
+     */
+    public void commit(byte[] record, int offset) {
+        int hash = hash(record, offset);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            ByteBuffer table = segment.table;
+            int slotOffset = find(table, hash, record, offset);
+            if (slotOffset < 0 || state(table, slotOffset) != PENDING) {
+                // should never happen
+                throw new IllegalStateException("\"" + userName(record, offset) + "\" is not reserved.");
+            }
+            publish(segment, slotOffset, record, offset);
+        }
+    }
+
+    /**
+     * Release a key reserved with `reserve`, so it can be registered again
+     */
+    public void abort(byte[] key, int keyOffset) {
+        int hash = hash(key, keyOffset);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            ByteBuffer table = segment.table;
+            int slotOffset = find(table, hash, key, keyOffset);
+            if (slotOffset >= 0 && state(table, slotOffset) == PENDING) {
+                setState(table, slotOffset, ABORTED);
+            }
+        }
+    }
+
+    /**
+     * Insert a record of key, salt, digest and params unless the key is registered or reserved. Returns false if it is.
+     */
+    public boolean putIfAbsent(byte[] record, int offset) {
+        int hash = hash(record, offset);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slotOffset = claim(segment, hash, record, offset);
+            if (slotOffset < 0) {
+                return false;
+            }
+            publish(segment, slotOffset, record, offset);
+            return true;
+        }
+    }
+
+    /**
+     * Take a pending slot for `key`, reusing its aborted slot if there is one. Returns -1 if the key is registered or
+     * reserved. Must hold the segment lock.
+     */
+    private static int claim(Segment segment, int hash, byte[] key, int keyOffset) {
+        int slotOffset = find(segment.table, hash, key, keyOffset);
+        if (slotOffset >= 0) {
+            if (state(segment.table, slotOffset) != ABORTED) {
+                return -1;
+            }
+            setState(segment.table, slotOffset, PENDING);
+            return slotOffset;
+        }
+        if (segment.used + 1 > segment.capacity * LOAD_FACTOR) {
+            grow(segment);
+            slotOffset = find(segment.table, hash, key, keyOffset);
+        }
+        slotOffset = -slotOffset - 1;
+        ByteBuffer table = segment.table;
+        table.put(slotOffset + RECORD_OFFSET, key, keyOffset, KEY);
+        table.putInt(slotOffset + STATE_OFFSET, PENDING);
+        // the key is in place before readers can find the slot
+        INT.setRelease(table, slotOffset, hash);
+        segment.used++;
+        return slotOffset;
+    }
+
+    /**
+     * Write the salt, the digest and the params of a pending slot, then make it visible. Must hold the segment lock.
+     */
+    private static void publish(Segment segment, int slotOffset, byte[] record, int offset) {
+        segment.table.put(slotOffset + RECORD_OFFSET + KEY, record, offset + KEY, ENTRY);
+        setState(segment.table, slotOffset, COMMITTED);
+        segment.size++;
+    }
+
+    /**
+     * Rehash into a table twice as large, dropping aborted slots. Readers keep probing the old table, which is no longer
+     * written, until the new one is published.
+     */
+    private static void grow(Segment segment) {
+        int capacity = segment.capacity << 1;
+        ByteBuffer old = segment.table;
+        ByteBuffer table = ByteBuffer.allocateDirect(tableBytes(capacity));
+        int mask = capacity - 1;
+        int used = 0;
+        for (int oldOffset = 0; oldOffset < old.capacity(); oldOffset += SLOT) {
+            int hash = old.getInt(oldOffset);
+            if (hash == 0 || old.getInt(oldOffset + STATE_OFFSET) == ABORTED) {
+                continue;
+            }
+            int index = hash & mask;
+            while (table.getInt(index * SLOT) != 0) {
+                index = (index + 1) & mask;
+            }
+            table.put(index * SLOT, old, oldOffset, SLOT);
+            used++;
+        }
+        segment.capacity = capacity;
+        segment.used = used;
+        segment.table = table;
+    }
+
+    /**
+     * The number of committed records
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Pass every committed record to `consumer`, one segment at a time. `record` is reused between calls.
+     * Returns the number of records.
+     */
+    public int forEach(byte[] record, RecordConsumer consumer) throws IOException {
+        int count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                ByteBuffer table = segment.table;
+                for (int slotOffset = 0; slotOffset < table.capacity(); slotOffset += SLOT) {
+                    if (table.getInt(slotOffset) != 0 && table.getInt(slotOffset + STATE_OFFSET) == COMMITTED) {
+                        table.get(slotOffset + RECORD_OFFSET, record, 0, RECORD);
+                        consumer.accept(record);
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,596 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+public class EventLoop implements Runnable, ResponseSink {
+    /**
+     * Upper bound of idle requests kept for reuse, a burst above it is left to the GC
+     */
+    private static final int MAX_POOLED_REQUESTS = 1024;
+
+    /**
+     * Slots of the timing wheel, one revolution covers this many ticks
+     */
+    private static final int TIMING_WHEEL_SLOTS = 512;
+
+    /**
+     * Size classes of the pooled per-connection buffers, shared by the reads and writes of all connections
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * Every read goes here unless the connection already holds a partial frame, only the partial frame is kept
+     */
+    private final ByteBuffer readBuffer;
+
+    /**
+     * Every write is gathered here unless the connection already holds unsent bytes, only those are kept
+     */
+    private final ByteBuffer writeBuffer;
+
+    /**
+     * the server owning this event loop
+     */
+    private final SimpleSignUpSignInServer server;
+
+    /**
+     * Selector owned by this event loop
+     */
+    private final Selector selector;
+
+    /**
+     * Map client socket channel to its connection state, only touched by the loop thread
+     */
+    private final HashMap<SocketChannel, Connection> socket2ConnectionDictionary;
+
+    /**
+     * Channels handed over by the acceptor which are not registered to the selector yet
+     */
+    private final ConcurrentLinkedQueue<SocketChannel> pendingChannels;
+
+    /**
+     * Top of the lock-free stack of requests finished by the handler pool, linked through `Request.nextCompleted`
+     */
+    private final AtomicReference<Request> completedRequests;
+
+    /**
+     * Whether a wakeup has already been issued since the loop last returned from select
+     */
+    private final AtomicBoolean wakeupPending;
+
+    /**
+     * Requests whose responses have been sent, ready for reuse, only touched by the loop thread
+     */
+    private final ArrayDeque<Request> requestPool;
+
+    /**
+     * Selected key handler, kept in a field so select does not allocate a new one per call
+     */
+    private final Consumer<SelectionKey> keyHandler = this::handleKey;
+
+    /**
+     * Idle and slow-read deadlines of the connections, only touched by the loop thread
+     */
+    private final TimingWheel timingWheel;
+
+    private final Consumer<TimingWheel.Timer> timeoutHandler = this::expire;
+
+    /**
+     * Counters shared by all event loops of the server
+     */
+    private final ServerMetrics metrics;
+
+    /**
+     * Origin of the event loop clock, which keeps every timestamp positive so 0 can mean none
+     */
+    private final long startNanos;
+
+    public EventLoop(SimpleSignUpSignInServer server, int bufferSize) throws IOException {
+        this.server = server;
+        this.metrics = server.getMetrics();
+        // a lent buffer holds at most one frame or the rest of one write
+        int maxBufferSize = Math.max(64 << 10, ServerConfig.maxFrameLength);
+        this.bufferPool = new BufferPool(bufferSize, maxBufferSize);
+        this.readBuffer = ByteBuffer.allocateDirect(maxBufferSize);
+        this.writeBuffer = ByteBuffer.allocateDirect(maxBufferSize);
+        this.selector = Selector.open();
+        this.socket2ConnectionDictionary = new HashMap<>();
+        this.pendingChannels = new ConcurrentLinkedQueue<>();
+        this.completedRequests = new AtomicReference<>();
+        this.wakeupPending = new AtomicBoolean(false);
+        this.requestPool = new ArrayDeque<>();
+        this.startNanos = System.nanoTime();
+        this.timingWheel = new TimingWheel(TIMING_WHEEL_SLOTS, ServerConfig.timeoutTickMillis, currentMillis());
+    }
+
+    /**
+     * Monotonic milliseconds since the loop was created, starting at 1
+     */
+    private long currentMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + 1;
+    }
+
+    public SimpleSignUpSignInServer getServer() {
+        return this.server;
+    }
+
+    /**
+     * The direct memory taken by the buffer pool of this loop. Safe to call from any thread.
+     */
+    public long getBufferPoolBytes() {
+        return bufferPool.getSlabBytes();
+    }
+
+    /**
+     * Hand an accepted socket channel over to this event loop. Safe to call from any thread.
+     */
+    public void register(SocketChannel socketChannel) {
+        pendingChannels.offer(socketChannel);
+        wakeup();
+    }
+
+    /**
+     * Hand a handled request back to this event loop for sending. Safe to call from any thread.
+     */
+    @Override
+    public void complete(Request request) {
+        Request top;
+        do {
+            top = completedRequests.get();
+            request.setNextCompleted(top);
+        } while (!completedRequests.compareAndSet(top, request));
+        wakeup();
+    }
+
+    private void wakeup() {
+        // several handler threads finishing at once only need one wakeup
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void registerPendingChannels() throws IOException {
+        SocketChannel socketChannel;
+        while ((socketChannel = pendingChannels.poll()) != null) {
+            socketChannel.configureBlocking(false);
+
+            // buffers are only lent from the pool once there is something to keep
+            Connection connection = new Connection(socketChannel, socketChannel.getRemoteAddress());
+            connection.setAddressHash(server.hashAddress(connection.getRemoteAddress()));
+            if (!socket2ConnectionDictionary.containsKey(socketChannel)) {
+                socket2ConnectionDictionary.put(socketChannel, connection);
+            } else {
+                // should never happen
+                throw new IOException("Duplicate socket channel was added to the dictionary.");
+            }
+            // OP_WRITE is only added while responses are waiting for the socket, see updateInterest
+            connection.setSelectionKey(socketChannel.register(selector, SelectionKey.OP_READ, connection));
+            connection.setLastActivityMillis(currentMillis());
+            refreshTimeout(connection);
+            metrics.connectionOpened();
+        }
+    }
+
+    private Request acquireRequest(Connection connection, int commandID) {
+        Request request = requestPool.poll();
+        if (request == null) {
+            request = new Request(server, this);
+        }
+        request.reset(connection, commandID);
+        return request;
+    }
+
+    private void releaseRequest(Request request) {
+        if (requestPool.size() < MAX_POOLED_REQUESTS) {
+            // drop the connection so a closed one is not kept reachable
+            request.reset(null, 0);
+            requestPool.offer(request);
+        }
+    }
+
+    /**
+     * Returns false once the client has shut down its side of the connection
+     */
+    private boolean read(Connection connection, ByteBuffer buffer, long now) throws IOException {
+        // in write mode now
+        int length = connection.getSocketChannel().read(buffer); // bulk read
+        // switch to read mode
+        buffer.flip();
+        if (length > 0) {
+            connection.setLastActivityMillis(now);
+            metrics.addBytesIn(length);
+        }
+        return length >= 0;
+    }
+
+    /**
+     * Decode all complete requests in the buffer and dispatch them to the handler pool. The buffer is left at the start
+     * of the partial frame, if any, and the length of that whole frame is returned.
+     */
+    private int process(Connection connection, ByteBuffer buffer) throws IOException {
+        // every request of one read arrived at the same time
+        long startNanos = System.nanoTime();
+        // process all requests in one go
+        while (true) {
+            // in read mode now
+            if (buffer.remaining() < FieldLength.header) {
+                // the msg header is not complete
+                return FieldLength.header;
+            }
+
+            // parse the msg header in place
+            int totalLength = MessageCodec.totalLength(buffer);
+            int commandID = MessageCodec.commandID(buffer);
+
+            if (totalLength < FieldLength.header || totalLength > ServerConfig.maxFrameLength) {
+                throw new IOException("invalid msg length.");
+            }
+            if (!MessageCodec.isRequest(commandID)) {
+                // should never happen
+                throw new IOException("invalid command ID.");
+            }
+            // v1 requests have fixed body layouts, v2 ones are bounded by their longest fields
+            if (!MessageCodec.isValidLength(commandID, totalLength)) {
+                throw new IOException("invalid msg length.");
+            }
+
+            // test whether the msg body is complete
+            if (buffer.remaining() < totalLength) {
+                // body is not complete
+                return totalLength;
+            }
+
+            // keep the arrival order so responses go out in the same order
+            Request request = acquireRequest(connection, commandID);
+            request.setStartNanos(startNanos);
+            if (commandID == CommandID.TOKEN_VERIFY_REQ) {
+                // a table lookup, answered right here instead of taking a trip through the handler pool
+                request.setResponse(server.verifyToken(buffer, buffer.position() + FieldLength.header, request.getUserName()));
+                request.setDispatched(true);
+                request.setCompleted(true);
+            } else if (commandID == CommandID.METRICS_REQ) {
+                // answered even while the handler pool is saturated, which is when the metrics matter most
+                request.setResponse(server.metricsResponse(connection));
+                request.setDispatched(true);
+                request.setCompleted(true);
+            } else {
+                MessageCodec.decodeRequest(buffer, totalLength, request);
+                if (!server.admit(request)) {
+                    // over the rate limits, refused before it costs a hash or a place in the handler queue
+                    request.setDispatched(true);
+                    request.setCompleted(true);
+                }
+            }
+            buffer.position(buffer.position() + totalLength);
+
+            connection.getPendingRequests().offer(request);
+            if (!request.isDispatched() && connection.getBarrier() == null) {
+                dispatch(connection, request);
+            }
+        }
+    }
+
+    /**
+     * Keep the rest of a partial frame in a pooled buffer large enough for the whole frame,
+     * or give the buffer of the connection back once nothing is left
+     */
+    private void keepPartialFrame(Connection connection, ByteBuffer buffer, int frameLength) {
+        ByteBuffer lent = connection.getBuffer();
+        if (!buffer.hasRemaining()) {
+            if (lent != null) {
+                bufferPool.release(lent);
+                connection.setBuffer(null);
+            }
+            return;
+        }
+        if (buffer == lent && lent.capacity() >= frameLength) {
+            // switch to the write mode
+            lent.compact();
+            return;
+        }
+
+        // move to a buffer of the size class of the frame
+        ByteBuffer target = bufferPool.acquire(frameLength);
+        target.put(buffer);
+        if (lent != null) {
+            bufferPool.release(lent);
+        }
+        connection.setBuffer(target);
+    }
+
+    private void dispatch(Connection connection, Request request) {
+        request.setDispatched(true);
+        if (!server.dispatch(request)) {
+            // the handler pool is saturated, answer right away instead of queueing without bound
+            request.setResponse(MessageCodec.busyResponse(request));
+            request.setCompleted(true);
+            metrics.addBusy(MessageCodec.isBatch(request.getCommandID()) ? request.getRecordCount() : 1);
+        } else if (MessageCodec.isRegistration(request.getCommandID())) {
+            connection.setBarrier(request);
+        }
+    }
+
+    /**
+     * Dispatch the requests held back by a finished registration, up to the next registration
+     */
+    private void releaseBarrier(Connection connection) {
+        connection.setBarrier(null);
+        for (Request request : connection.getPendingRequests()) {
+            if (!request.isDispatched()) {
+                dispatch(connection, request);
+                if (connection.getBarrier() != null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue the responses at the head of the connection which are ready, in request order, and send what the socket takes
+     */
+    private void flush(Connection connection) throws IOException {
+        long now = 0;
+        Request head;
+        while ((head = connection.getPendingRequests().peek()) != null && head.isCompleted()) {
+            connection.getPendingRequests().poll();
+            if (now == 0) {
+                now = System.nanoTime();
+            }
+            metrics.recordRequest(head.getCommandID(), now - head.getStartNanos(), head.isFailed());
+            if (head.isFailed()) {
+                throw new IOException("The request could not be handled.");
+            }
+            byte[] response = head.getResponse();
+            connection.getOutboundQueue().offer(response);
+            connection.setOutboundBytes(connection.getOutboundBytes() + response.length);
+            releaseRequest(head);
+        }
+        // leftovers in an output buffer mean the socket is full, OP_WRITE will tell when it drains
+        if (!connection.getOutboundQueue().isEmpty() && connection.getOutputBuffer() == null) {
+            writeOutbound(connection);
+        } else {
+            // the pending requests changed even if nothing can be sent
+            updateInterest(connection);
+        }
+    }
+
+    /**
+     * Write as much of the outbound data as the socket takes, partial writes stay in a pooled output buffer
+     */
+    private void writeOutbound(Connection connection) throws IOException {
+        ArrayDeque<byte[]> outboundQueue = connection.getOutboundQueue();
+        boolean progress = false;
+        while (true) {
+            // a lent output buffer always holds unsent bytes, send those first
+            ByteBuffer outputBuffer = connection.getOutputBuffer();
+            if (outputBuffer == null) {
+                outputBuffer = writeBuffer;
+                outputBuffer.clear();
+            }
+
+            // top up the output buffer with whole responses
+            byte[] response;
+            while ((response = outboundQueue.peek()) != null && outputBuffer.remaining() >= response.length) {
+                outputBuffer.put(outboundQueue.poll());
+            }
+            if (outputBuffer.position() == 0) {
+                break;
+            }
+
+            // send the msgs
+            outputBuffer.flip();
+            int written = connection.getSocketChannel().write(outputBuffer);
+            outputBuffer.compact();
+            connection.setOutboundBytes(connection.getOutboundBytes() - written);
+            metrics.addBytesOut(written);
+            progress |= written > 0;
+            if (outputBuffer.position() > 0) {
+                // the socket send buffer is full, keep the rest
+                if (outputBuffer == writeBuffer) {
+                    ByteBuffer lent = bufferPool.acquire(outputBuffer.position());
+                    outputBuffer.flip();
+                    lent.put(outputBuffer);
+                    connection.setOutputBuffer(lent);
+                }
+                break;
+            }
+            if (outputBuffer != writeBuffer) {
+                bufferPool.release(outputBuffer);
+                connection.setOutputBuffer(null);
+            }
+        }
+
+        long now = currentMillis();
+        if (progress) {
+            connection.setLastActivityMillis(now);
+        }
+        if (connection.getOutboundBytes() == 0) {
+            connection.setWriteStallMillis(0);
+        } else if (progress || connection.getWriteStallMillis() == 0) {
+            connection.setWriteStallMillis(now);
+        }
+        updateInterest(connection);
+    }
+
+    /**
+     * Keep OP_WRITE only while data is pending, and pause OP_READ while a client leaves too much of it unread or has
+     * too many requests waiting, such as a pipeline held behind a slow registration
+     */
+    private void updateInterest(Connection connection) {
+        int outboundBytes = connection.getOutboundBytes();
+        int pendingRequests = connection.getPendingRequests().size();
+        if (!connection.isReadPaused() && (outboundBytes > ServerConfig.outboundHighWaterMark
+                || pendingRequests > ServerConfig.pendingHighWaterMark)) {
+            connection.setReadPaused(true);
+        } else if (connection.isReadPaused() && outboundBytes <= ServerConfig.outboundHighWaterMark / 2
+                && pendingRequests <= ServerConfig.pendingHighWaterMark / 2) {
+            connection.setReadPaused(false);
+        }
+
+        boolean reading = !connection.isReadPaused() && !connection.isInputClosed();
+        int interestOps = (reading ? SelectionKey.OP_READ : 0) | (outboundBytes > 0 ? SelectionKey.OP_WRITE : 0);
+        SelectionKey key = connection.getSelectionKey();
+        if (key.isValid() && key.interestOps() != interestOps) {
+            key.interestOps(interestOps);
+        }
+    }
+
+    private void drainCompletedRequests() {
+        // the stack is newest first, the order does not matter since every connection flushes from its own head
+        Request request = completedRequests.getAndSet(null);
+        while (request != null) {
+            Request next = request.getNextCompleted();
+            request.setNextCompleted(null);
+            request.setCompleted(true);
+            Connection connection = request.getConnection();
+            if (!connection.getSocketChannel().isOpen()) {
+                // the client is gone, drop the response
+                releaseRequest(request);
+            } else {
+                if (connection.getBarrier() == request) {
+                    releaseBarrier(connection);
+                }
+                try {
+                    flush(connection);
+                    settle(connection);
+                } catch (IOException e) {
+                    AsyncLogger.log(LogEvent.CONNECTION_ERROR, e);
+                    close(connection, true);
+                }
+            }
+            request = next;
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isWritable()) {
+                writeOutbound(connection);
+            }
+            if (key.isReadable()) {
+                long now = currentMillis();
+                ByteBuffer buffer = connection.getBuffer();
+                if (buffer == null) {
+                    // nothing is pending, only the partial frame left after decoding is kept
+                    buffer = readBuffer;
+                    buffer.clear();
+                }
+                if (!read(connection, buffer, now)) {
+                    // EOF, answer what the client already sent before closing
+                    connection.setInputClosed(true);
+                    updateInterest(connection);
+                }
+                keepPartialFrame(connection, buffer, process(connection, buffer));
+                if (connection.getBuffer() == null) {
+                    connection.setRequestStartMillis(0);
+                } else if (connection.getRequestStartMillis() == 0) {
+                    // a request is partially received, it has to be completed within the slow-read timeout
+                    connection.setRequestStartMillis(now);
+                }
+                // requests answered without the pool can go out now
+                flush(connection);
+            }
+            settle(connection);
+        } catch (Exception e) {
+            // a broken connection must not take the whole loop down
+            AsyncLogger.log(LogEvent.CONNECTION_ERROR, e);
+            close(connection, true);
+        }
+    }
+
+    /**
+     * Close a half-closed connection once everything it sent is answered, otherwise move its timeout
+     */
+    private void settle(Connection connection) {
+        if (connection.isInputClosed() && connection.getPendingRequests().isEmpty() && connection.getOutboundBytes() == 0) {
+            AsyncLogger.log(LogEvent.DISCONNECTED, connection.getRemoteAddress());
+            close(connection, false);
+        } else {
+            refreshTimeout(connection);
+        }
+    }
+
+    private void refreshTimeout(Connection connection) {
+        long deadline = connection.getLastActivityMillis() + ServerConfig.idleTimeoutMillis;
+        if (connection.getRequestStartMillis() != 0) {
+            deadline = Math.min(deadline, connection.getRequestStartMillis() + ServerConfig.slowReadTimeoutMillis);
+        }
+        if (connection.getWriteStallMillis() != 0) {
+            deadline = Math.min(deadline, connection.getWriteStallMillis() + ServerConfig.slowReadTimeoutMillis);
+        }
+        timingWheel.schedule(connection, deadline);
+    }
+
+    /**
+     * Called by the timing wheel once the deadline of a connection has passed
+     */
+    private void expire(TimingWheel.Timer timer) {
+        Connection connection = (Connection) timer;
+        LogEvent reason;
+        if (connection.getRequestStartMillis() != 0 && connection.getRequestStartMillis() + ServerConfig.slowReadTimeoutMillis <= currentMillis()) {
+            reason = LogEvent.SLOW_REQUEST;
+        } else if (connection.getWriteStallMillis() != 0 && connection.getWriteStallMillis() + ServerConfig.slowReadTimeoutMillis <= currentMillis()) {
+            reason = LogEvent.SLOW_RESPONSE_READ;
+        } else {
+            reason = LogEvent.IDLE;
+        }
+        AsyncLogger.log(reason, connection.getRemoteAddress());
+        close(connection, false);
+    }
+
+    private void close(Connection connection, boolean error) {
+        SocketChannel socketChannel = connection.getSocketChannel();
+        if (socket2ConnectionDictionary.remove(socketChannel) != null) {
+            metrics.connectionClosed(error);
+        }
+        timingWheel.cancel(connection);
+        if (connection.getBuffer() != null) {
+            bufferPool.release(connection.getBuffer());
+            connection.setBuffer(null);
+        }
+        if (connection.getOutputBuffer() != null) {
+            bufferPool.release(connection.getOutputBuffer());
+            connection.setOutputBuffer(null);
+        }
+        SelectionKey key = socketChannel.keyFor(selector);
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            AsyncLogger.log(LogEvent.CONNECTION_ERROR, e);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // ready keys are handed to keyHandler without going through the selected-key set,
+                // wake up every tick while some connection has a deadline
+                selector.select(keyHandler, timingWheel.isEmpty() ? 0 : ServerConfig.timeoutTickMillis);
+                wakeupPending.set(false);
+                registerPendingChannels();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            drainCompletedRequests();
+            timingWheel.advance(currentMillis(), timeoutHandler);
+        }
+    }
+}
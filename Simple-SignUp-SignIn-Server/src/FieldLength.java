@@ -53,4 +53,34 @@ public class FieldLength {
      * The length of `description` field in login response msg body
      */
     public static final int loginRespDescription = 64;
+
+    /**
+     * The length of `count` field in batch request and batch response msg bodies
+     */
+    public static final int batchCount = 4;
+
+    /**
+     * The length of one record in batch request msg body, a `username` field followed by a `passwd` field
+     */
+    public static final int batchReqRecord = regReqUserName + regReqPasswd;
+
+    /**
+     * The length of the `status` of one record in batch response msg body
+     */
+    public static final int batchRespStatus = 1;
+
+    /**
+     * The max length of a varint in v2 msg bodies, which holds up to 32 bits
+     */
+    public static final int v2MaxVarint = 5;
+
+    /**
+     * The length of `status` field in v2 response msg body, a `StatusCode`
+     */
+    public static final int v2RespStatus = 1;
+
+    /**
+     * The length of the session token in LOGIN_RESP_V2 and TOKEN_VERIFY_REQ msg bodies
+     */
+    public static final int sessionToken = 16;
 }
@@ -0,0 +1,61 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the iteration count of an iterated hasher that costs a given amount of CPU time per login on this machine,
+ * so the cost of a login is chosen in microseconds rather than guessed.
+ */
+public class HasherCalibrator {
+    /**
+     * iterations of a single timed hash, the result scales linearly from there
+     */
+    private static final int PROBE_ITERATIONS = 1000;
+
+    private static final int ROUNDS = 5;
+
+    private static final long ROUND_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final long WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+
+    /**
+     * The iteration count of `hasher` whose hash takes about `budgetMicros` of CPU time, in steps of 1000
+     */
+    public static int calibrate(PasswordHasher hasher, long budgetMicros) throws GeneralSecurityException {
+        byte[] passwd = "calibration-password".getBytes(StandardCharsets.US_ASCII);
+        byte[] salt = "12345678".getBytes(StandardCharsets.US_ASCII);
+        byte[] out = new byte[CredentialStore.DIGEST];
+
+        // let the JIT compile the hash first
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < warmupEnd) {
+            hasher.hash(passwd, 0, passwd.length, salt, 0, PROBE_ITERATIONS, out, 0);
+        }
+
+        // the median of a few rounds, CPU time so a busy machine does not inflate it
+        long[] nanosPerHash = new long[ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = cpuTime();
+            int hashes = 0;
+            long elapsed;
+            do {
+                hasher.hash(passwd, 0, passwd.length, salt, 0, PROBE_ITERATIONS, out, 0);
+                hashes++;
+            } while ((elapsed = cpuTime() - start) < ROUND_NANOS);
+            nanosPerHash[round] = elapsed / hashes;
+        }
+        Arrays.sort(nanosPerHash);
+        double nanosPerIteration = (double) nanosPerHash[ROUNDS / 2] / PROBE_ITERATIONS;
+
+        long iterations = (long) (TimeUnit.MICROSECONDS.toNanos(budgetMicros) / nanosPerIteration) / 1000 * 1000;
+        return (int) Math.max(1000, Math.min(iterations, PasswordHashers.MAX_ITERATIONS));
+    }
+
+    private static long cpuTime() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        return threadMXBean.isCurrentThreadCpuTimeSupported() ? threadMXBean.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+}
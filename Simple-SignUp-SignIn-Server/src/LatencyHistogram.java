@@ -0,0 +1,182 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Log-linear histogram of durations in nanoseconds, in the spirit of HdrHistogram: every power of two is split into
+ * 64 equal buckets, so a recorded value is off by less than 1/64 of itself. Values above about 18 minutes are counted
+ * as 18 minutes.
+ * <p>
+ * Recording threads are spread over stripes, each a fixed array of the buckets followed by the count, the sum and the
+ * max of its values, so threads recording at once mostly update cache lines of their own. Recording is a few
+ * uncontended atomic updates and only allocates the first time a stripe is used. Readers take a `snapshot`, which
+ * merges the stripes once, and read its quantiles from that.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * the largest power of two kept apart, 2^40 ns
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    /**
+     * the slots after the buckets of a stripe
+     */
+    private static final int COUNT = BUCKETS;
+
+    private static final int SUM = BUCKETS + 1;
+
+    private static final int MAX = BUCKETS + 2;
+
+    /**
+     * a power of two, at least the number of cores
+     */
+    private static final int STRIPES = Math.min(64, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+        AtomicLongArray stripe = stripe();
+        stripe.getAndIncrement(index(value));
+        stripe.getAndIncrement(COUNT);
+        stripe.getAndAdd(SUM, value);
+        long max;
+        while (value > (max = stripe.get(MAX)) && !stripe.compareAndSet(MAX, max, value)) {
+            // retry, a thread sharing the stripe raised the max
+        }
+    }
+
+    /**
+     * The stripe of the calling thread, created on its first use
+     */
+    private AtomicLongArray stripe() {
+        long id = Thread.currentThread().getId();
+        // threads are numbered in order, the mix spreads the ones of a pool that are not
+        int index = (int) ((id * 0x9e3779b97f4a7c15L) >>> 32) & (STRIPES - 1);
+        AtomicLongArray stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new AtomicLongArray(BUCKETS + 3));
+            stripe = stripes.get(index);
+        }
+        return stripe;
+    }
+
+    /**
+     * The recorded values as of now, merged over the stripes. Concurrent records may or may not be seen.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        long sum = 0;
+        long max = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe == null) {
+                continue;
+            }
+            for (int j = 0; j < BUCKETS; j++) {
+                counts[j] += stripe.get(j);
+            }
+            sum += stripe.get(SUM);
+            max = Math.max(max, stripe.get(MAX));
+        }
+        // counted from the buckets, so the rank of a quantile is never beyond them
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+        return new Snapshot(counts, count, sum, max);
+    }
+
+    /**
+     * The number of recorded values, without merging the buckets
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe != null) {
+                count += stripe.get(COUNT);
+            }
+        }
+        return count;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // the top SUB_BUCKET_BITS + 1 bits of the value, the first of which is always set
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * The middle of the values counted in bucket `index`
+     */
+    private static long valueAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + ((1L << shift) >> 1);
+    }
+
+    /**
+     * Merged counts of a histogram, read as many times as needed without touching the stripes
+     */
+    public static class Snapshot {
+        private final long[] counts;
+
+        private final long count;
+
+        private final long sum;
+
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMaxNanos() {
+            return max;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * The value below which `quantile` of the recorded values fall, 0 if nothing was recorded
+         */
+        public long getValueAtQuantile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(valueAt(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * What `AsyncLogger` can log. The template is only filled in by the logger thread: `{}` is the subject,
+ * `{user}` the username of the key and `{value}` the number.
+ */
+public enum LogEvent {
+    INFO(AsyncLogger.Level.INFO, "{}"),
+
+    WARN(AsyncLogger.Level.WARN, "{}"),
+
+    CONNECTED(AsyncLogger.Level.INFO, "{} connected to the server."),
+
+    DISCONNECTED(AsyncLogger.Level.INFO, "{} disconnected from the server."),
+
+    CONNECTION_ERROR(AsyncLogger.Level.WARN, "Closing a connection after an error: {}"),
+
+    SLOW_REQUEST(AsyncLogger.Level.INFO, "{} did not complete a request in time, closing the connection."),
+
+    SLOW_RESPONSE_READ(AsyncLogger.Level.INFO, "{} did not read its responses in time, closing the connection."),
+
+    IDLE(AsyncLogger.Level.INFO, "{} was idle for too long, closing the connection."),
+
+    DUPLICATE_USERNAME(AsyncLogger.Level.INFO, "{} uses a duplicate username \"{user}\"."),
+
+    REGISTERED(AsyncLogger.Level.INFO, "{} registered successfully with the username \"{user}\"."),
+
+    HANDLER_ERROR(AsyncLogger.Level.ERROR, "A request could not be handled: {}"),
+
+    DROPPED(AsyncLogger.Level.WARN, "{value} log events were dropped since the log buffer was full.");
+
+    private final AsyncLogger.Level level;
+
+    private final String template;
+
+    LogEvent(AsyncLogger.Level level, String template) {
+        this.level = level;
+        this.template = template;
+    }
+
+    public AsyncLogger.Level getLevel() {
+        return this.level;
+    }
+
+    public String getTemplate() {
+        return this.template;
+    }
+}
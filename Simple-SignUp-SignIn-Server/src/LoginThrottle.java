@@ -0,0 +1,170 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rate limits of login attempts per client address and per username, checked before any hashing.
+ * <p>
+ * Each limit is a token bucket kept as the time its bucket will be full again (the theoretical arrival time of GCRA),
+ * so a bucket is a single long updated with CAS. Buckets live in fixed tables indexed by a keyed SipHash and shared on
+ * collision. Every key uses one bucket in each of two rows and is only refused once both are empty, so a client only
+ * suffers from a noisy neighbour if it collides with one in both rows. Memory stays the same however many keys show up.
+ * <p>
+ * A batch of logins takes one token from its address and one from the username of each record. Hosts listed as exempt,
+ * such as a gateway logging in on behalf of many users, are only limited per username.
+ */
+public class LoginThrottle {
+    private static final int ROWS = 2;
+
+    /**
+     * The address hash of an exempt host, the hash of any other is never 0
+     */
+    public static final long EXEMPT = 0;
+
+    private final AtomicLongArray addressBuckets;
+
+    private final AtomicLongArray userBuckets;
+
+    /**
+     * buckets per row, a power of two
+     */
+    private final int slots;
+
+    /**
+     * microseconds per token and how far ahead of now a bucket may run before it is empty, 0 for no limit
+     */
+    private final long addressIntervalMicros, addressToleranceMicros;
+
+    private final long userIntervalMicros, userToleranceMicros;
+
+    private final long key0, key1;
+
+    private final Set<InetAddress> exemptHosts;
+
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * `rate` attempts per second with bursts of `burst` attempts for each address and each username, a rate of 0
+     * leaves that key unlimited. The `exemptHosts` have no address limit.
+     */
+    public LoginThrottle(int slots, double addressRate, int addressBurst, double userRate, int userBurst, Set<InetAddress> exemptHosts) {
+        this.slots = Math.max(1, Integer.highestOneBit(Math.max(1, slots - 1)) << 1);
+        this.addressBuckets = new AtomicLongArray(addressRate > 0 ? this.slots * ROWS : 0);
+        this.userBuckets = new AtomicLongArray(userRate > 0 ? this.slots * ROWS : 0);
+        this.addressIntervalMicros = addressRate > 0 ? Math.max(1L, (long) (1_000_000 / addressRate)) : 0;
+        this.addressToleranceMicros = addressIntervalMicros * (Math.max(1, addressBurst) - 1);
+        this.userIntervalMicros = userRate > 0 ? Math.max(1L, (long) (1_000_000 / userRate)) : 0;
+        this.userToleranceMicros = userIntervalMicros * (Math.max(1, userBurst) - 1);
+        this.exemptHosts = exemptHosts;
+
+        SecureRandom random = new SecureRandom();
+        this.key0 = random.nextLong();
+        this.key1 = random.nextLong();
+    }
+
+    /**
+     * The hash of the host of a client address, computed once per connection. The port is left out, so every
+     * connection of a host shares its limit. `EXEMPT` for an exempt host.
+     */
+    public long hashAddress(SocketAddress address) {
+        InetAddress inetAddress = address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress() : null;
+        if (inetAddress != null && exemptHosts.contains(inetAddress)) {
+            return EXEMPT;
+        }
+        byte[] host = inetAddress != null ? inetAddress.getAddress() : address.toString().getBytes();
+        long hash = CredentialCache.sipHash24(key0, key1, host, host.length, null, 0);
+        return hash == EXEMPT ? 1 : hash;
+    }
+
+    /**
+     * Take a token for a login attempt from the address and from the username of `key`, only if both have one, so an
+     * attempt refused for its username costs its address nothing. Returns false if either is out of tokens.
+     */
+    public boolean admit(long addressHash, byte[] key) {
+        long now = currentMicros();
+        boolean limitAddress = addressIntervalMicros > 0 && addressHash != EXEMPT;
+        long userHash = userIntervalMicros > 0 ? hashUser(key) : 0;
+        if ((limitAddress && !available(addressBuckets, addressHash, addressToleranceMicros, now))
+                || (userIntervalMicros > 0 && !available(userBuckets, userHash, userToleranceMicros, now))) {
+            return false;
+        }
+        if (limitAddress) {
+            charge(addressBuckets, addressHash, addressIntervalMicros, now);
+        }
+        if (userIntervalMicros > 0) {
+            charge(userBuckets, userHash, userIntervalMicros, now);
+        }
+        return true;
+    }
+
+    /**
+     * Take a token from the address for a whole batch of logins. Returns false if it is out of tokens.
+     */
+    public boolean admitAddress(long addressHash) {
+        if (addressIntervalMicros == 0 || addressHash == EXEMPT) {
+            return true;
+        }
+        long now = currentMicros();
+        if (!available(addressBuckets, addressHash, addressToleranceMicros, now)) {
+            return false;
+        }
+        charge(addressBuckets, addressHash, addressIntervalMicros, now);
+        return true;
+    }
+
+    /**
+     * Take a token from the username of `key` for a record of a batch admitted by `admitAddress`.
+     * Returns false if it is out of tokens.
+     */
+    public boolean admitUser(byte[] key) {
+        if (userIntervalMicros == 0) {
+            return true;
+        }
+        long now = currentMicros();
+        long userHash = hashUser(key);
+        if (!available(userBuckets, userHash, userToleranceMicros, now)) {
+            return false;
+        }
+        charge(userBuckets, userHash, userIntervalMicros, now);
+        return true;
+    }
+
+    private long hashUser(byte[] key) {
+        return CredentialCache.sipHash24(key0, key1, key, CredentialStore.KEY, null, 0);
+    }
+
+    private boolean available(AtomicLongArray buckets, long hash, long toleranceMicros, long now) {
+        // the fuller of the two buckets decides, racing attempts may let a few extra through
+        long full = Math.min(buckets.get(first(hash)), buckets.get(second(hash)));
+        return full - now <= toleranceMicros;
+    }
+
+    private void charge(AtomicLongArray buckets, long hash, long intervalMicros, long now) {
+        take(buckets, first(hash), intervalMicros, now);
+        take(buckets, second(hash), intervalMicros, now);
+    }
+
+    private int first(long hash) {
+        return (int) hash & (slots - 1);
+    }
+
+    private int second(long hash) {
+        return slots + ((int) (hash >>> 32) & (slots - 1));
+    }
+
+    private static void take(AtomicLongArray buckets, int index, long intervalMicros, long now) {
+        long full;
+        do {
+            full = buckets.get(index);
+        } while (!buckets.compareAndSet(index, full, Math.max(full, now) + intervalMicros));
+    }
+
+    private long currentMicros() {
+        // starts at 1, an empty table is all full buckets
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos) + 1;
+    }
+}
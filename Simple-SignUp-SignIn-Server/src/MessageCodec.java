@@ -0,0 +1,420 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Flyweight codec for the `CommandID`/`FieldLength` wire format. Fields are read in place from the connection
+ * buffer, and every single-credential response is encoded once into a shared template. Batch responses are built
+ * per request since their statuses differ.
+ * <p>
+ * v1 and v2 share the 8-byte header, the command ID tells them apart, so both can be mixed on one connection.
+ * A v2 request body is a varint username length, the username, a varint passwd length and the passwd.
+ * A v2 response body is a `StatusCode` byte, a varint description length and the description, which is left empty
+ * since the status says it all. Varints are unsigned LEB128.
+ * <p>
+ * A LOGIN_REQ_V2 may end with a varint of flags. With `LOGIN_FLAG_TOKEN` set, a successful LOGIN_RESP_V2 is followed
+ * by a session token, which TOKEN_VERIFY_REQ carries as its whole body. TOKEN_VERIFY_RESP is a v2 response followed
+ * by the varint length of the username and the username, empty unless the token is valid.
+ * <p>
+ * METRICS_REQ has no body. METRICS_RESP is a v2 response whose description is the metrics text of `ServerMetrics`.
+ */
+public class MessageCodec {
+    private static final byte[] REG_RESP_OK = encodeResponse(CommandID.REG_RESP, "1", "ok");
+
+    private static final byte[] REG_RESP_DUPLICATE = encodeResponse(CommandID.REG_RESP, "0", "duplicate username");
+
+    private static final byte[] REG_RESP_BUSY = encodeResponse(CommandID.REG_RESP, "0", "Server is busy, please retry later.");
+
+    private static final byte[] REG_RESP_READ_ONLY = encodeResponse(CommandID.REG_RESP, "0", StatusCode.READ_ONLY.getDescription());
+
+    private static final byte[] LOGIN_RESP_OK = encodeResponse(CommandID.LOGIN_RESP, "1", "ok");
+
+    private static final byte[] LOGIN_RESP_INVALID = encodeResponse(CommandID.LOGIN_RESP, "0", "Invalid username or password.");
+
+    private static final byte[] LOGIN_RESP_BUSY = encodeResponse(CommandID.LOGIN_RESP, "0", "Server is busy, please retry later.");
+
+    private static final byte[] LOGIN_RESP_THROTTLED = encodeResponse(CommandID.LOGIN_RESP, "0", "Too many login attempts, please retry later.");
+
+    /**
+     * v2 responses indexed by `StatusCode` ordinal
+     */
+    private static final byte[][] REG_RESP_V2 = encodeResponsesV2(CommandID.REG_RESP_V2);
+
+    private static final byte[][] LOGIN_RESP_V2 = encodeResponsesV2(CommandID.LOGIN_RESP_V2);
+
+    private static final byte[] TOKEN_VERIFY_RESP_INVALID = encodeTokenVerifyResponse(StatusCode.INVALID_TOKEN, null);
+
+    /**
+     * LOGIN_REQ_V2 flag asking for a session token
+     */
+    public static final int LOGIN_FLAG_TOKEN = 1;
+
+    /**
+     * Per-record statuses of BATCH_REG_RESP and BATCH_LOGIN_RESP. Failed means a duplicate username or invalid
+     * credentials, busy means the record was not looked at and can be retried, throttled means its login was refused
+     * by the rate limits, read-only means a replica refused the registration and it has to go to the primary.
+     */
+    public static final byte BATCH_STATUS_FAILED = '0';
+
+    public static final byte BATCH_STATUS_OK = '1';
+
+    public static final byte BATCH_STATUS_BUSY = '2';
+
+    public static final byte BATCH_STATUS_THROTTLED = '3';
+
+    public static final byte BATCH_STATUS_READ_ONLY = '4';
+
+    /**
+     * The length of REG_REQ and LOGIN_REQ msgs
+     */
+    private static final int CREDENTIALS_REQ_LENGTH = FieldLength.header + FieldLength.regReqUserName + FieldLength.regReqPasswd;
+
+    /**
+     * The length of a batch request msg without its records
+     */
+    private static final int BATCH_REQ_BASE_LENGTH = FieldLength.header + FieldLength.batchCount;
+
+    /**
+     * The longest v2 credentials request: one-byte varints, the longest fields v1 allows and the flags
+     */
+    private static final int CREDENTIALS_REQ_V2_MAX_LENGTH = FieldLength.header + 2 + FieldLength.regReqUserName + FieldLength.regReqPasswd
+            + FieldLength.v2MaxVarint;
+
+    /**
+     * The offset of the token in a LOGIN_RESP_V2, after the status and an empty description
+     */
+    private static final int LOGIN_RESP_V2_TOKEN_OFFSET = FieldLength.header + FieldLength.v2RespStatus + 1;
+
+    /**
+     * `totalLength` of the msg starting at the buffer position
+     */
+    public static int totalLength(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position());
+    }
+
+    /**
+     * `commandID` of the msg starting at the buffer position
+     */
+    public static int commandID(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position() + FieldLength.totalLengthField);
+    }
+
+    public static boolean isRequest(int commandID) {
+        return commandID == CommandID.REG_REQ || commandID == CommandID.LOGIN_REQ || isBatch(commandID) || isV2(commandID)
+                || commandID == CommandID.TOKEN_VERIFY_REQ || commandID == CommandID.METRICS_REQ;
+    }
+
+    public static boolean isBatch(int commandID) {
+        return commandID == CommandID.BATCH_REG_REQ || commandID == CommandID.BATCH_LOGIN_REQ;
+    }
+
+    public static boolean isLogin(int commandID) {
+        return commandID == CommandID.LOGIN_REQ || commandID == CommandID.LOGIN_REQ_V2;
+    }
+
+    public static boolean isV2(int commandID) {
+        return commandID == CommandID.REG_REQ_V2 || commandID == CommandID.LOGIN_REQ_V2;
+    }
+
+    /**
+     * Whether the request registers users, so later requests on its connection wait for it
+     */
+    public static boolean isRegistration(int commandID) {
+        return commandID == CommandID.REG_REQ || commandID == CommandID.REG_REQ_V2 || commandID == CommandID.BATCH_REG_REQ;
+    }
+
+    /**
+     * Whether `totalLength` fits the body layout of a request, checked before the body is received.
+     * A batch has to hold at least one record.
+     */
+    public static boolean isValidLength(int commandID, int totalLength) {
+        if (isV2(commandID)) {
+            // two varints at least
+            return totalLength >= FieldLength.header + 2 && totalLength <= CREDENTIALS_REQ_V2_MAX_LENGTH;
+        }
+        if (commandID == CommandID.TOKEN_VERIFY_REQ) {
+            return totalLength == FieldLength.header + FieldLength.sessionToken;
+        }
+        if (commandID == CommandID.METRICS_REQ) {
+            return totalLength == FieldLength.header;
+        }
+        if (!isBatch(commandID)) {
+            return totalLength == CREDENTIALS_REQ_LENGTH;
+        }
+        return totalLength > BATCH_REQ_BASE_LENGTH && (totalLength - BATCH_REQ_BASE_LENGTH) % FieldLength.batchReqRecord == 0;
+    }
+
+    /**
+     * Decode the body of a complete request msg starting at the buffer position into `request`
+     */
+    public static void decodeRequest(ByteBuffer buffer, int totalLength, Request request) throws IOException {
+        int index = buffer.position() + FieldLength.header;
+        if (isBatch(request.getCommandID())) {
+            decodeBatch(buffer, index, totalLength, request);
+        } else if (isV2(request.getCommandID())) {
+            decodeCredentialsV2(buffer, index, buffer.position() + totalLength, request);
+        } else {
+            decodeCredentials(buffer, index, request);
+        }
+    }
+
+    /**
+     * Copy the username and passwd fields of a REG_REQ or LOGIN_REQ body at `index` into the request,
+     * both trimmed the way `String.trim()` did. The username becomes a zero padded store key.
+     */
+    public static void decodeCredentials(ByteBuffer buffer, int index, Request request) throws IOException {
+        request.setPasswdLength(decodeCredentials(buffer, index, request.getUserName(), request.getPasswd()));
+    }
+
+    /**
+     * Copy a username field and the passwd field following it into `userName` and `passwd`, trimmed like
+     * `decodeCredentials` does. Returns the length of the password.
+     */
+    public static int decodeCredentials(ByteBuffer buffer, int index, byte[] userName, byte[] passwd) {
+        // parse username
+        decodeUserName(buffer, index, index + FieldLength.regReqUserName, userName);
+
+        // parse pwd
+        return decodePasswd(buffer, index + FieldLength.regReqUserName, index + FieldLength.regReqUserName + FieldLength.regReqPasswd, passwd);
+    }
+
+    /**
+     * Copy the length-prefixed username and passwd of a REG_REQ_V2 or LOGIN_REQ_V2 body between `index` and `end`
+     * into the request, along with the flags. They are trimmed like v1 fields, so both versions name the same users.
+     */
+    public static void decodeCredentialsV2(ByteBuffer buffer, int index, int end, Request request) throws IOException {
+        // parse username
+        long varint = readVarint(buffer, index, end);
+        index += (int) (varint >>> 32);
+        int userNameLength = varintLength(varint, FieldLength.regReqUserName, end - index);
+        if (userNameLength < 0) {
+            throw new IOException("invalid username length.");
+        }
+        decodeUserName(buffer, index, index + userNameLength, request.getUserName());
+        index += userNameLength;
+
+        // parse pwd
+        varint = readVarint(buffer, index, end);
+        index += (int) (varint >>> 32);
+        int passwdLength = varintLength(varint, FieldLength.regReqPasswd, end - index);
+        if (passwdLength < 0) {
+            throw new IOException("invalid passwd length.");
+        }
+        request.setPasswdLength(decodePasswd(buffer, index, index + passwdLength, request.getPasswd()));
+        index += passwdLength;
+
+        // parse the optional flags, which have to end the msg
+        if (index < end) {
+            varint = readVarint(buffer, index, end);
+            if (varint < 0 || index + (int) (varint >>> 32) != end) {
+                throw new IOException("invalid flags.");
+            }
+            request.setTokenRequested(((int) varint & LOGIN_FLAG_TOKEN) != 0);
+        }
+    }
+
+    /**
+     * Read an unsigned LEB128 varint between `index` and `end`. Returns the value in the low 32 bits and the number of
+     * bytes it took in the high 32 bits, or -1 if it is longer than 5 bytes or runs past `end`.
+     */
+    public static long readVarint(ByteBuffer buffer, int index, int end) {
+        long value = 0;
+        for (int i = 0; i < FieldLength.v2MaxVarint && index + i < end; i++) {
+            int b = buffer.get(index + i);
+            value |= (long) (b & 0x7f) << (7 * i);
+            if (b >= 0) {
+                return value > 0xffffffffL ? -1 : value | (long) (i + 1) << 32;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The length a `readVarint` result gives, or -1 if there is no varint or the length is above `max` or `remaining`.
+     * The value is unsigned, so it is compared as a long: cast to an int, a length of 2^31 or more would be negative.
+     */
+    private static int varintLength(long varint, int max, int remaining) {
+        long length = varint & 0xffffffffL;
+        if (varint < 0 || length > max || length > remaining) {
+            return -1;
+        }
+        return (int) length;
+    }
+
+    public static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static void decodeUserName(ByteBuffer buffer, int start, int end, byte[] userName) {
+        while (start < end && (buffer.get(start) & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (buffer.get(end - 1) & 0xff) <= ' ') {
+            end--;
+        }
+        buffer.get(start, userName, 0, end - start);
+        for (int i = end - start; i < CredentialStore.KEY; i++) {
+            userName[i] = 0;
+        }
+    }
+
+    private static int decodePasswd(ByteBuffer buffer, int start, int end, byte[] passwd) {
+        while (start < end && (buffer.get(start) & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (buffer.get(end - 1) & 0xff) <= ' ') {
+            end--;
+        }
+        buffer.get(start, passwd, 0, end - start);
+        return end - start;
+    }
+
+    /**
+     * Copy the records of a BATCH_REG_REQ or BATCH_LOGIN_REQ body at `index` into the request, and give it a response
+     * with a status per record for the handlers to fill in. The records are decoded later by the handler threads.
+     */
+    public static void decodeBatch(ByteBuffer buffer, int index, int totalLength, Request request) throws IOException {
+        int count = buffer.getInt(index);
+        if (count != (totalLength - BATCH_REQ_BASE_LENGTH) / FieldLength.batchReqRecord) {
+            throw new IOException("invalid record count.");
+        }
+        byte[] records = new byte[count * FieldLength.batchReqRecord];
+        buffer.get(index + FieldLength.batchCount, records);
+        request.setRecords(records, count);
+
+        // header, count, then one status per record
+        int responseCommandID = request.getCommandID() == CommandID.BATCH_REG_REQ ? CommandID.BATCH_REG_RESP : CommandID.BATCH_LOGIN_RESP;
+        int responseMsgTotalLength = FieldLength.header + FieldLength.batchCount + count * FieldLength.batchRespStatus;
+        ByteBuffer msg = ByteBuffer.allocate(responseMsgTotalLength);
+        msg.putInt(responseMsgTotalLength);
+        msg.putInt(responseCommandID);
+        msg.putInt(count);
+        request.setResponse(msg.array());
+    }
+
+    /**
+     * The offset of the status of record `index` in a batch response
+     */
+    public static int batchStatusOffset(int index) {
+        return FieldLength.header + FieldLength.batchCount + index * FieldLength.batchRespStatus;
+    }
+
+    /**
+     * The shared response to a single-credential request, in the version of the request
+     */
+    public static byte[] response(int requestCommandID, StatusCode status) {
+        switch (requestCommandID) {
+            case CommandID.REG_REQ:
+                return status == StatusCode.SUCCESS ? REG_RESP_OK : status == StatusCode.BUSY ? REG_RESP_BUSY
+                        : status == StatusCode.READ_ONLY ? REG_RESP_READ_ONLY : REG_RESP_DUPLICATE;
+            case CommandID.LOGIN_REQ:
+                return status == StatusCode.SUCCESS ? LOGIN_RESP_OK : status == StatusCode.BUSY ? LOGIN_RESP_BUSY
+                        : status == StatusCode.THROTTLED ? LOGIN_RESP_THROTTLED : LOGIN_RESP_INVALID;
+            case CommandID.REG_REQ_V2:
+                return REG_RESP_V2[status.ordinal()];
+            case CommandID.LOGIN_REQ_V2:
+                return LOGIN_RESP_V2[status.ordinal()];
+            default:
+                // should never happen
+                throw new IllegalArgumentException("No response to the command " + requestCommandID + ".");
+        }
+    }
+
+    /**
+     * A successful LOGIN_RESP_V2 with room for a session token at `LOGIN_RESP_V2_TOKEN_OFFSET`, a new array
+     */
+    public static byte[] loginResponseWithToken() {
+        int responseMsgTotalLength = LOGIN_RESP_V2_TOKEN_OFFSET + FieldLength.sessionToken;
+        byte[] response = Arrays.copyOf(LOGIN_RESP_V2[StatusCode.SUCCESS.ordinal()], responseMsgTotalLength);
+        ByteBuffer.wrap(response).putInt(0, responseMsgTotalLength);
+        return response;
+    }
+
+    public static int loginResponseTokenOffset() {
+        return LOGIN_RESP_V2_TOKEN_OFFSET;
+    }
+
+    /**
+     * TOKEN_VERIFY_RESP naming the user of a valid token, or the shared invalid one if `key` is null
+     */
+    public static byte[] tokenVerifyResponse(byte[] key) {
+        return key == null ? TOKEN_VERIFY_RESP_INVALID : encodeTokenVerifyResponse(StatusCode.SUCCESS, key);
+    }
+
+    /**
+     * METRICS_RESP carrying `text`, a new array
+     */
+    public static byte[] metricsResponse(StatusCode status, String text) {
+        byte[] description = text.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer msg = ByteBuffer.allocate(FieldLength.header + FieldLength.v2RespStatus + FieldLength.v2MaxVarint + description.length);
+        msg.position(FieldLength.totalLengthField);
+        msg.putInt(CommandID.METRICS_RESP);
+        msg.put((byte) status.getCode());
+        putVarint(msg, description.length);
+        msg.put(description);
+        msg.putInt(0, msg.position());
+        return Arrays.copyOf(msg.array(), msg.position());
+    }
+
+    /**
+     * Busy response matching the command of a request. A batch gets its own response with every record busy.
+     */
+    public static byte[] busyResponse(Request request) {
+        if (!isBatch(request.getCommandID())) {
+            return response(request.getCommandID(), StatusCode.BUSY);
+        }
+        byte[] response = request.getResponse();
+        Arrays.fill(response, batchStatusOffset(0), response.length, BATCH_STATUS_BUSY);
+        return response;
+    }
+
+    private static byte[] encodeResponse(int responseMsgCommandID, String status, String description) {
+        // REG_RESP and LOGIN_RESP share the same body layout: status, then zero padded description
+        int responseMsgTotalLength = FieldLength.header + FieldLength.regRespStatus + FieldLength.regRespDescription;
+        ByteBuffer msg = ByteBuffer.allocate(responseMsgTotalLength);
+        msg.putInt(responseMsgTotalLength);
+        msg.putInt(responseMsgCommandID);
+        msg.put((status + description).getBytes(StandardCharsets.US_ASCII));
+        return msg.array();
+    }
+
+    private static byte[][] encodeResponsesV2(int responseMsgCommandID) {
+        StatusCode[] statuses = StatusCode.values();
+        byte[][] responses = new byte[statuses.length][];
+        for (StatusCode status : statuses) {
+            // status, then an empty description
+            int responseMsgTotalLength = FieldLength.header + FieldLength.v2RespStatus + 1;
+            ByteBuffer msg = ByteBuffer.allocate(responseMsgTotalLength);
+            msg.putInt(responseMsgTotalLength);
+            msg.putInt(responseMsgCommandID);
+            msg.put((byte) status.getCode());
+            putVarint(msg, 0);
+            responses[status.ordinal()] = msg.array();
+        }
+        return responses;
+    }
+
+    private static byte[] encodeTokenVerifyResponse(StatusCode status, byte[] key) {
+        int userNameLength = 0;
+        while (key != null && userNameLength < CredentialStore.KEY && key[userNameLength] != 0) {
+            userNameLength++;
+        }
+        // status, an empty description, then the username, which is shorter than 128 bytes
+        int responseMsgTotalLength = FieldLength.header + FieldLength.v2RespStatus + 1 + 1 + userNameLength;
+        ByteBuffer msg = ByteBuffer.allocate(responseMsgTotalLength);
+        msg.putInt(responseMsgTotalLength);
+        msg.putInt(CommandID.TOKEN_VERIFY_RESP);
+        msg.put((byte) status.getCode());
+        putVarint(msg, 0);
+        putVarint(msg, userNameLength);
+        if (key != null) {
+            msg.put(key, 0, userNameLength);
+        }
+        return msg.array();
+    }
+}
@@ -0,0 +1,80 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * PBKDF2 with HMAC-SHA256 and a single 32-byte block, the same output as `PBKDF2WithHmacSHA256` of the JDK
+ * without going through char[] passwords and a key factory on every login.
+ */
+public class PBKDF2Hasher implements PasswordHasher {
+    /**
+     * the big-endian index of the only block, appended to the salt
+     */
+    private static final byte[] FIRST_BLOCK = {0, 0, 0, 1};
+
+    /**
+     * HMAC pads keys with zeros, so an empty password is the same key as a single zero byte, which SecretKeySpec accepts
+     */
+    private static final byte[] EMPTY_KEY = {0};
+
+    /**
+     * Per-thread HMAC and scratch block
+     */
+    private static class State {
+        private final Mac mac;
+
+        private final byte[] block = new byte[CredentialStore.DIGEST];
+
+        State() {
+            try {
+                mac = Mac.getInstance("HmacSHA256");
+            } catch (NoSuchAlgorithmException e) {
+                // should never happen, every JVM ships HmacSHA256
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static final ThreadLocal<State> STATES = ThreadLocal.withInitial(State::new);
+
+    @Override
+    public int scheme() {
+        return 1;
+    }
+
+    @Override
+    public String name() {
+        return "pbkdf2_sha256";
+    }
+
+    @Override
+    public boolean isIterated() {
+        return true;
+    }
+
+    @Override
+    public void hash(byte[] passwd, int passwdOffset, int passwdLength, byte[] salt, int saltOffset, int iterations,
+                     byte[] out, int outOffset) throws GeneralSecurityException {
+        State state = STATES.get();
+        Mac mac = state.mac;
+        byte[] block = state.block;
+        mac.init(passwdLength == 0 ? new SecretKeySpec(EMPTY_KEY, "HmacSHA256")
+                : new SecretKeySpec(passwd, passwdOffset, passwdLength, "HmacSHA256"));
+
+        // U1 = HMAC(passwd, salt || 1)
+        mac.update(salt, saltOffset, CredentialStore.SALT);
+        mac.update(FIRST_BLOCK);
+        mac.doFinal(block, 0);
+        System.arraycopy(block, 0, out, outOffset, CredentialStore.DIGEST);
+
+        // Ui = HMAC(passwd, Ui-1), the result is U1 ^ U2 ^ ... ^ Un
+        for (int i = 1; i < iterations; i++) {
+            mac.update(block);
+            mac.doFinal(block, 0);
+            for (int j = 0; j < CredentialStore.DIGEST; j++) {
+                out[outOffset + j] ^= block[j];
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+import java.security.GeneralSecurityException;
+
+/**
+ * Turns a password and its salt into the digest kept in a record. The scheme and the cost a record was hashed with
+ * are stored next to its digest as `params` (see `PasswordHashers`), so records of several schemes share one store
+ * and the scheme of new registrations can change without touching existing users.
+ */
+public interface PasswordHasher {
+    /**
+     * the id of the scheme in the top byte of `params`
+     */
+    int scheme();
+
+    /**
+     * the tag of the scheme in pwd.txt
+     */
+    String name();
+
+    /**
+     * whether the cost of the scheme is set by an iteration count
+     */
+    boolean isIterated();
+
+    /**
+     * Write the `CredentialStore.DIGEST` bytes of the hash of the password with the `CredentialStore.SALT` bytes of
+     * salt to `out` at `outOffset`. `iterations` is ignored by schemes which are not iterated.
+     */
+    void hash(byte[] passwd, int passwdOffset, int passwdLength, byte[] salt, int saltOffset, int iterations,
+              byte[] out, int outOffset) throws GeneralSecurityException;
+}
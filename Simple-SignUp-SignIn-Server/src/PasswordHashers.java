@@ -0,0 +1,119 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The known `PasswordHasher`s and the `params` int stored in each record: the scheme id in the top byte and the
+ * iteration count in the lower 24 bits. Params 0 is plain salted SHA-256, so records written before params existed
+ * keep their meaning.
+ * <p>
+ * In pwd.txt the params are an optional 4th field `name$iterations`, left out for salted SHA-256.
+ */
+public class PasswordHashers {
+    public static final PasswordHasher SALTED_SHA256 = new SaltedSHA256Hasher();
+
+    public static final PasswordHasher PBKDF2_SHA256 = new PBKDF2Hasher();
+
+    /**
+     * the largest iteration count params can hold
+     */
+    public static final int MAX_ITERATIONS = (1 << 24) - 1;
+
+    /**
+     * hashers indexed by scheme id
+     */
+    private static final PasswordHasher[] HASHERS = {SALTED_SHA256, PBKDF2_SHA256};
+
+    public static PasswordHasher forName(String name) {
+        for (PasswordHasher hasher : HASHERS) {
+            if (hasher.name().equals(name)) {
+                return hasher;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The hasher of a record, null if the scheme is unknown
+     */
+    public static PasswordHasher forParams(int params) {
+        int scheme = params >>> 24;
+        return scheme < HASHERS.length ? HASHERS[scheme] : null;
+    }
+
+    public static int params(PasswordHasher hasher, int iterations) {
+        return hasher.scheme() << 24 | (hasher.isIterated() ? iterations : 0);
+    }
+
+    public static int iterations(int params) {
+        return params & MAX_ITERATIONS;
+    }
+
+    public static int readParams(byte[] src, int offset) {
+        return (src[offset] & 0xff) << 24 | (src[offset + 1] & 0xff) << 16 | (src[offset + 2] & 0xff) << 8 | (src[offset + 3] & 0xff);
+    }
+
+    public static void writeParams(byte[] dest, int offset, int params) {
+        dest[offset] = (byte) (params >>> 24);
+        dest[offset + 1] = (byte) (params >>> 16);
+        dest[offset + 2] = (byte) (params >>> 8);
+        dest[offset + 3] = (byte) params;
+    }
+
+    /**
+     * The pwd.txt field of params including the leading ':', empty for salted SHA-256
+     */
+    public static String format(int params) {
+        if (params == 0) {
+            return "";
+        }
+        PasswordHasher hasher = forParams(params);
+        return ":" + hasher.name() + (hasher.isIterated() ? "$" + iterations(params) : "");
+    }
+
+    /**
+     * Parse the pwd.txt field between `start` and `end`. Returns -1 if the scheme is unknown or the field is malformed.
+     */
+    public static int parse(ByteBuffer buffer, int start, int end) {
+        if (start == end) {
+            return 0;
+        }
+        int nameEnd = start;
+        while (nameEnd < end && buffer.get(nameEnd) != '$') {
+            nameEnd++;
+        }
+        for (PasswordHasher hasher : HASHERS) {
+            byte[] name = hasher.name().getBytes(StandardCharsets.US_ASCII);
+            if (!nameEquals(buffer, start, nameEnd, name)) {
+                continue;
+            }
+            if (!hasher.isIterated()) {
+                return nameEnd == end ? params(hasher, 0) : -1;
+            }
+            // iterations
+            long iterations = 0;
+            if (nameEnd + 1 >= end) {
+                return -1;
+            }
+            for (int i = nameEnd + 1; i < end; i++) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9 || (iterations = iterations * 10 + digit) > MAX_ITERATIONS) {
+                    return -1;
+                }
+            }
+            return iterations == 0 ? -1 : params(hasher, (int) iterations);
+        }
+        return -1;
+    }
+
+    private static boolean nameEquals(ByteBuffer buffer, int start, int end, byte[] name) {
+        if (end - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (buffer.get(start + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
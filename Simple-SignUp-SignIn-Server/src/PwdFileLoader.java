@@ -0,0 +1,258 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Loads `username:salt:digest[:params]` lines of pwd.txt in parallel. The file is cut into byte ranges ending on line
+ * boundaries, each range is mapped and parsed on a fork-join pool, and the results are merged in file order
+ * so the first occurrence of a duplicate username still wins.
+ */
+public class PwdFileLoader {
+    /**
+     * Ranges smaller than this are not worth a task of their own
+     */
+    private static final long MIN_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Mapped buffers are limited to 2 GB, a range runs past its size to the end of a line, so it is kept to half of that
+     */
+    static final long MAX_CHUNK_SIZE = Integer.MAX_VALUE / 2;
+
+    /**
+     * Parsed records of one range, back to back in the layout of `CredentialStore.RECORD`
+     */
+    private static class Chunk {
+        private byte[] records = new byte[CredentialStore.RECORD * 1024];
+
+        private int count;
+
+        /**
+         * The offset of a fresh record at the end, grown if needed
+         */
+        int append() {
+            if ((count + 1) * CredentialStore.RECORD > records.length) {
+                records = Arrays.copyOf(records, records.length * 2);
+            }
+            return count++ * CredentialStore.RECORD;
+        }
+    }
+
+    private static class ParseTask extends RecursiveTask<Chunk> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+
+        private final long start;
+
+        private final long end;
+
+        ParseTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Chunk compute() {
+            Chunk chunk = new Chunk();
+            MappedByteBuffer buffer;
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            parseLines(buffer, start, chunk);
+            return chunk;
+        }
+    }
+
+    /**
+     * Parse the lines from the start to the limit of `buffer` into the chunk. `start` is the offset of the buffer in
+     * pwd.txt, for the warnings.
+     */
+    private static void parseLines(ByteBuffer buffer, long start, Chunk chunk) {
+        int limit = buffer.limit();
+        int lineStart = 0;
+        while (lineStart < limit) {
+            // find the end of the line and the two separators in one pass
+            int firstColon = -1, secondColon = -1;
+            int lineEnd = lineStart;
+            while (lineEnd < limit) {
+                byte b = buffer.get(lineEnd);
+                if (b == '\n') {
+                    break;
+                } else if (b == ':') {
+                    if (firstColon < 0) {
+                        firstColon = lineEnd;
+                    } else if (secondColon < 0) {
+                        secondColon = lineEnd;
+                    }
+                }
+                lineEnd++;
+            }
+            int contentEnd = lineEnd;
+            if (contentEnd > lineStart && buffer.get(contentEnd - 1) == '\r') {
+                contentEnd--;
+            }
+
+            if (contentEnd == lineStart) {
+                // blank line
+            } else if (secondColon < 0) {
+                AsyncLogger.warn("Malformed line at offset " + (start + lineStart) + " of the pwd file is ignored.");
+            } else {
+                // a third colon starts the hasher params, later fields are ignored as with String.split
+                int pwdEnd = contentEnd, paramsEnd = contentEnd;
+                for (int i = secondColon + 1; i < contentEnd; i++) {
+                    if (buffer.get(i) == ':') {
+                        pwdEnd = i;
+                        break;
+                    }
+                }
+                for (int i = pwdEnd + 1; i < contentEnd; i++) {
+                    if (buffer.get(i) == ':') {
+                        paramsEnd = i;
+                        break;
+                    }
+                }
+                if (!parse(buffer, lineStart, firstColon, secondColon, pwdEnd, paramsEnd, chunk)) {
+                    // such a line can never be matched by a request
+                    AsyncLogger.warn("The line at offset " + (start + lineStart) + " of the pwd file does not fit the credential store and is ignored.");
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Append the record of one line to the chunk, unless a field does not fit its fixed width or the hasher is unknown
+     */
+    private static boolean parse(ByteBuffer buffer, int lineStart, int firstColon, int secondColon, int pwdEnd, int paramsEnd, Chunk chunk) {
+        int userNameLength = firstColon - lineStart;
+        if (userNameLength > CredentialStore.KEY || secondColon - firstColon - 1 != CredentialStore.SALT
+                || pwdEnd - secondColon - 1 != CredentialStore.DIGEST * 2) {
+            return false;
+        }
+        int params = pwdEnd < paramsEnd ? PasswordHashers.parse(buffer, pwdEnd + 1, paramsEnd) : 0;
+        if (params < 0) {
+            return false;
+        }
+        int offset = chunk.append();
+        byte[] records = chunk.records;
+        buffer.get(lineStart, records, offset, userNameLength);
+        Arrays.fill(records, offset + userNameLength, offset + CredentialStore.KEY, (byte) 0);
+        buffer.get(firstColon + 1, records, offset + CredentialStore.KEY, CredentialStore.SALT);
+        if (!SHA256Utils.getHex(buffer, secondColon + 1, records, offset + CredentialStore.KEY + CredentialStore.SALT, CredentialStore.DIGEST)) {
+            chunk.count--;
+            return false;
+        }
+        PasswordHashers.writeParams(records, offset + CredentialStore.KEY + CredentialStore.SALT + CredentialStore.DIGEST, params);
+        return true;
+    }
+
+    /**
+     * Add the records of a chunk to `store`, the first occurrence of a username wins. Returns the number added.
+     */
+    private static int addAll(Chunk chunk, CredentialStore store) {
+        int added = 0;
+        for (int i = 0; i < chunk.count; i++) {
+            if (store.putIfAbsent(chunk.records, i * CredentialStore.RECORD)) {
+                added++;
+            } else {
+                String username = CredentialStore.userName(chunk.records, i * CredentialStore.RECORD);
+                AsyncLogger.warn("\"" + username + "\" already exists. Duplicate ones will be ignored.");
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Load the lines of `path` from `offset` on into `store`, keeping users already present.
+     * Returns the number of users added.
+     */
+    public static int load(Path path, long offset, CredentialStore store, int parallelism) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (offset >= size) {
+                return 0;
+            }
+
+            // cut the file into ranges ending right after a '\n'
+            long chunkSize = chunkSize(size - offset, parallelism);
+            List<ParseTask> tasks = new ArrayList<>();
+            long start = offset;
+            ByteBuffer probe = ByteBuffer.allocate(4096);
+            while (start < size) {
+                long end = nextLineStart(channel, Math.min(start + chunkSize, size), size, probe);
+                tasks.add(new ParseTask(channel, start, end));
+                start = end;
+            }
+
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.submit(() -> ForkJoinTask.invokeAll(tasks)).join();
+            } finally {
+                pool.shutdown();
+            }
+
+            // merge in file order, so the first occurrence of a username wins
+            int added = 0;
+            for (ParseTask task : tasks) {
+                added += addAll(task.join(), store);
+            }
+            return added;
+        }
+    }
+
+    /**
+     * Add the lines from the position to the limit of `buffer` to `store` on the calling thread, keeping users
+     * already present. `offset` is where the lines start in pwd.txt. Returns the number of users added.
+     */
+    public static int apply(ByteBuffer buffer, long offset, CredentialStore store) {
+        Chunk chunk = new Chunk();
+        parseLines(buffer.slice(), offset, chunk);
+        return addAll(chunk, store);
+    }
+
+    /**
+     * The size of the ranges `length` bytes are cut into: a few per thread, none smaller than `MIN_CHUNK_SIZE` unless
+     * the file is, and none larger than `MAX_CHUNK_SIZE` however few the threads
+     */
+    static long chunkSize(long length, int parallelism) {
+        long chunkCount = Math.max(1, Math.min(parallelism * 4L, length / MIN_CHUNK_SIZE));
+        chunkCount = Math.max(chunkCount, (length + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+        return (length + chunkCount - 1) / chunkCount;
+    }
+
+    /**
+     * The offset right after the first '\n' at or after `position - 1`, or `size`
+     */
+    private static long nextLineStart(FileChannel channel, long position, long size, ByteBuffer probe) throws IOException {
+        if (position >= size) {
+            return size;
+        }
+        long cursor = position - 1;
+        while (cursor < size) {
+            probe.clear();
+            int n = channel.read(probe, cursor);
+            if (n <= 0) {
+                return size;
+            }
+            for (int i = 0; i < n; i++) {
+                if (probe.get(i) == '\n') {
+                    return cursor + i + 1;
+                }
+            }
+            cursor += n;
+        }
+        return size;
+    }
+}
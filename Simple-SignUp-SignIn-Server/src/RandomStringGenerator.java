@@ -1,13 +1,56 @@
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.Base64;
 
 public class RandomStringGenerator {
-    public static String generate(int length) {
-        SecureRandom random = new SecureRandom();
-        byte[] bytes = new byte[length];
-        random.nextBytes(bytes);
-        String encoded = Base64.getEncoder().withoutPadding().encodeToString(bytes);
+    /**
+     * the Base64 alphabet, none of its characters is the `:` separating the fields of pwd.txt
+     */
+    private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
 
-        return encoded.substring(0, length);
+    /**
+     * random bytes drawn per call to the SecureRandom. DRBG allocates about 200 bytes per call whatever its length,
+     * the default NativePRNG several bytes per byte, so drawing a block and handing it out slice by slice keeps the
+     * salts nearly free of allocation
+     */
+    private static final int BLOCK = 8192;
+
+    /**
+     * SecureRandom serializes its callers, so every handler thread gets its own, with the block it draws
+     */
+    private static final ThreadLocal<Source> SOURCES = ThreadLocal.withInitial(Source::new);
+
+    private static class Source {
+        private final SecureRandom random;
+
+        private final byte[] block = new byte[BLOCK];
+
+        private int position = BLOCK;
+
+        Source() {
+            SecureRandom drbg;
+            try {
+                drbg = SecureRandom.getInstance("DRBG");
+            } catch (NoSuchAlgorithmException e) {
+                drbg = new SecureRandom();
+            }
+            this.random = drbg;
+        }
+    }
+
+    /**
+     * Fill `length` bytes of `out` at `offset` with random ASCII characters of the Base64 alphabet
+     */
+    public static void generate(byte[] out, int offset, int length) {
+        Source source = SOURCES.get();
+        for (int i = 0; i < length; i++) {
+            if (source.position == BLOCK) {
+                source.random.nextBytes(source.block);
+                source.position = 0;
+            }
+            // 64 characters, so the low 6 bits of a random byte pick each one uniformly
+            out[offset + i] = ALPHABET[source.block[source.position] & 63];
+            // a byte is handed out once
+            source.block[source.position++] = 0;
+        }
     }
 }
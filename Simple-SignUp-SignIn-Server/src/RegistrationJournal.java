@@ -0,0 +1,284 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of registrations in pwd.txt. Pending records are group-committed by a dedicated thread:
+ * one FileChannel write and at most one force() per batch, after which every record of the batch is acknowledged.
+ */
+public class RegistrationJournal implements Runnable {
+    public static class Record {
+        /**
+         * key, salt, digest and hasher params in the layout of `CredentialStore.RECORD`
+         */
+        private final byte[] credentials;
+
+        private final Request request;
+
+        /**
+         * the index of the record in a batch request, -1 for a REG_REQ
+         */
+        private final int index;
+
+        public Record(byte[] credentials, Request request, int index) {
+            this.credentials = credentials;
+            this.request = request;
+            this.index = index;
+        }
+
+        public byte[] getCredentials() {
+            return this.credentials;
+        }
+
+        public Request getRequest() {
+            return this.request;
+        }
+
+        public int getIndex() {
+            return this.index;
+        }
+    }
+
+    /**
+     * the server notified once a batch is durable or failed
+     */
+    private final SimpleSignUpSignInServer server;
+
+    /**
+     * pwd.txt opened for appending
+     */
+    private final FileChannel fileChannel;
+
+    /**
+     * records waiting for the next batch
+     */
+    private final ArrayBlockingQueue<Record> pendingRecords;
+
+    /**
+     * the records of the batch being written, only touched by the journal thread
+     */
+    private final ArrayList<Record> batch;
+
+    /**
+     * reused staging buffer for one batch, grown when a batch does not fit
+     */
+    private ByteBuffer batchBuffer;
+
+    private final int maxBatchSize;
+
+    private final long maxLingerNanos;
+
+    private final boolean force;
+
+    /**
+     * How often a snapshot is written, 0 to write one on shutdown only
+     */
+    private final long checkpointIntervalNanos;
+
+    /**
+     * CRC32C of the whole of pwd.txt, kept up with each batch and stored in the snapshots
+     */
+    private final CRC32C checksum = new CRC32C();
+
+    /**
+     * set on shutdown, the journal thread writes what is queued, checkpoints and exits
+     */
+    private volatile boolean closing;
+
+    /**
+     * the length of pwd.txt up to the end of the last durable batch, what replicas may be sent
+     */
+    private volatile long length;
+
+    /**
+     * notified whenever `length` grows
+     */
+    private final Object lengthLock = new Object();
+
+    public RegistrationJournal(SimpleSignUpSignInServer server, String path, int maxBatchSize, long maxLingerMicros, boolean force,
+                               long checkpointIntervalSeconds) throws IOException {
+        this.server = server;
+        this.fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerNanos = TimeUnit.MICROSECONDS.toNanos(maxLingerMicros);
+        this.force = force;
+        this.checkpointIntervalNanos = TimeUnit.SECONDS.toNanos(checkpointIntervalSeconds);
+        this.pendingRecords = new ArrayBlockingQueue<>(Math.max(maxBatchSize, ServerConfig.handlerQueueCapacity));
+        this.batch = new ArrayList<>(maxBatchSize);
+        this.batchBuffer = ByteBuffer.allocateDirect(maxBatchSize * 128);
+        this.length = fileChannel.size();
+        try (FileChannel readChannel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            CredentialSnapshot.checksum(readChannel, 0, length, checksum);
+        }
+    }
+
+    /**
+     * Queue a record for the next batch. Blocks the calling handler thread while the journal is backed up.
+     */
+    public void append(Record record) throws InterruptedException {
+        pendingRecords.put(record);
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * Wait up to `timeoutMillis` for pwd.txt to grow beyond `known` bytes. Returns its durable length.
+     */
+    public long awaitLength(long known, long timeoutMillis) throws InterruptedException {
+        synchronized (lengthLock) {
+            if (length <= known) {
+                lengthLock.wait(timeoutMillis);
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Stop after writing the queued records and a final snapshot
+     */
+    public void close() {
+        closing = true;
+    }
+
+    /**
+     * Wait up to `timeoutNanos` for the first record, then linger for more until the batch is full or the linger
+     * time is over. Returns false if no record arrived.
+     */
+    private boolean collectBatch(long timeoutNanos) throws InterruptedException {
+        Record first = pendingRecords.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+        if (first == null) {
+            return false;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + maxLingerNanos;
+        while (batch.size() < maxBatchSize) {
+            if (pendingRecords.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            Record record = pendingRecords.poll(remaining, TimeUnit.NANOSECONDS);
+            if (record == null) {
+                break;
+            }
+            batch.add(record);
+        }
+        return true;
+    }
+
+    /**
+     * Append the batch to pwd.txt. Returns the new length of the file.
+     */
+    private long writeBatch() throws IOException {
+        long start = fileChannel.size();
+        batchBuffer.clear();
+        for (Record record : batch) {
+            byte[] credentials = record.getCredentials();
+            int userNameLength = 0;
+            while (userNameLength < CredentialStore.KEY && credentials[userNameLength] != 0) {
+                userNameLength++;
+            }
+            // nothing is added for plain salted SHA-256, so such lines stay readable by older servers
+            String params = PasswordHashers.format(PasswordHashers.readParams(credentials, CredentialStore.KEY + CredentialStore.SALT + CredentialStore.DIGEST));
+            int length = userNameLength + CredentialStore.SALT + CredentialStore.DIGEST * 2 + params.length() + 3;
+            if (batchBuffer.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(batchBuffer.capacity() * 2, batchBuffer.position() + length));
+                batchBuffer.flip();
+                grown.put(batchBuffer);
+                batchBuffer = grown;
+            }
+            // username:salt:digest[:params], all ASCII
+            batchBuffer.put(credentials, 0, userNameLength);
+            batchBuffer.put((byte) ':');
+            batchBuffer.put(credentials, CredentialStore.KEY, CredentialStore.SALT);
+            batchBuffer.put((byte) ':');
+            SHA256Utils.putHex(batchBuffer, credentials, CredentialStore.KEY + CredentialStore.SALT, CredentialStore.DIGEST);
+            batchBuffer.put(params.getBytes(StandardCharsets.US_ASCII));
+            batchBuffer.put((byte) '\n');
+        }
+        batchBuffer.flip();
+        try {
+            while (batchBuffer.hasRemaining()) {
+                fileChannel.write(batchBuffer);
+            }
+            if (force) {
+                fileChannel.force(false);
+            }
+        } catch (IOException e) {
+            // do not leave a torn line behind for the next batch to append to
+            fileChannel.truncate(start);
+            throw e;
+        }
+        batchBuffer.rewind();
+        checksum.update(batchBuffer);
+        return start + batchBuffer.limit();
+    }
+
+    private void checkpoint() {
+        try {
+            server.writeSnapshot(fileChannel.size(), (int) checksum.getValue());
+        } catch (IOException e) {
+            AsyncLogger.warn("Failed to write the snapshot: " + e);
+        }
+    }
+
+    @Override
+    public void run() {
+        // never block for long so checkpoint and shutdown requests are noticed
+        long pollNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        long nextCheckpoint = System.nanoTime() + checkpointIntervalNanos;
+        while (true) {
+            boolean stopping = closing;
+            boolean collected;
+            try {
+                collected = collectBatch(stopping ? 0 : pollNanos);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (collected) {
+                try {
+                    long writeStart = System.nanoTime();
+                    long written = writeBatch();
+                    server.getMetrics().recordPersist(System.nanoTime() - writeStart, batch.size());
+                    for (Record record : batch) {
+                        server.commitRegistration(record);
+                    }
+                    // wake the replication senders
+                    synchronized (lengthLock) {
+                        length = written;
+                        lengthLock.notifyAll();
+                    }
+                } catch (IOException e) {
+                    AsyncLogger.warn("Failed to write " + batch.size() + " registrations to the journal: " + e);
+                    for (Record record : batch) {
+                        server.abortRegistration(record);
+                    }
+                }
+                batch.clear();
+            } else if (stopping) {
+                // everything queued before the shutdown is durable now
+                checkpoint();
+                return;
+            }
+
+            // snapshots are taken between batches, so they match the pwd.txt length exactly
+            long now = System.nanoTime();
+            if (checkpointIntervalNanos > 0 && now - nextCheckpoint >= 0) {
+                checkpoint();
+                nextCheckpoint = now + checkpointIntervalNanos;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames of the replication stream between a primary and its replicas. They have the msg header of the client
+ * protocol, an int total length then an int frame type, followed by a body.
+ * <p>
+ * A replica opens with HELLO: the long offset in the pwd.txt of the primary up to which its store is complete, its
+ * sequence number, then the UTF-8 bytes of the replication secret, none if it has no secret. The primary answers with the records of its snapshot if the replica is behind that snapshot,
+ * as SNAPSHOT_RECORDS frames of `CredentialStore.RECORD` records and one SNAPSHOT_END frame holding the long offset
+ * the snapshot covers. Then it streams pwd.txt as LOG frames: the long offset of the first byte, the long length of
+ * the pwd.txt of the primary when the frame was sent, then whole `username:salt:digest[:params]` lines. A LOG frame
+ * without lines is a heartbeat. ERROR carries an ASCII text and ends the stream for good.
+ */
+public class ReplicationCodec {
+    public static final int HELLO = 1;
+
+    public static final int SNAPSHOT_RECORDS = 2;
+
+    public static final int SNAPSHOT_END = 3;
+
+    public static final int LOG = 4;
+
+    public static final int ERROR = 5;
+
+    /**
+     * The length of the offset and primary length fields starting a LOG frame
+     */
+    public static final int LOG_HEADER = 8 + 8;
+
+    /**
+     * The most bytes of pwd.txt or snapshot records in one frame
+     */
+    public static final int MAX_PAYLOAD = 64 << 10;
+
+    /**
+     * The largest frame a replica accepts
+     */
+    public static final int MAX_FRAME = FieldLength.header + LOG_HEADER + MAX_PAYLOAD;
+
+    /**
+     * Start a frame of `type` in the buffer, its length is set by `finish`
+     */
+    public static void begin(ByteBuffer buffer, int type) {
+        buffer.clear();
+        buffer.putInt(0);
+        buffer.putInt(type);
+    }
+
+    /**
+     * Set the length of the frame in the buffer and flip it for writing
+     */
+    public static void finish(ByteBuffer buffer) {
+        buffer.putInt(0, buffer.position());
+        buffer.flip();
+    }
+
+    /**
+     * Read one whole frame into the buffer, flipped with the position after its header. Returns its type.
+     */
+    public static int read(InputStream in, ByteBuffer buffer) throws IOException {
+        readFully(in, buffer, 0, FieldLength.header);
+        int totalLength = buffer.getInt(0);
+        if (totalLength < FieldLength.header || totalLength > buffer.capacity()) {
+            throw new IOException("invalid replication frame length " + totalLength + ".");
+        }
+        readFully(in, buffer, FieldLength.header, totalLength);
+        buffer.limit(totalLength).position(FieldLength.header);
+        return buffer.getInt(FieldLength.totalLengthField);
+    }
+
+    private static void readFully(InputStream in, ByteBuffer buffer, int from, int to) throws IOException {
+        while (from < to) {
+            int n = in.read(buffer.array(), from, to - from);
+            if (n < 0) {
+                throw new EOFException("The replication stream ended.");
+            }
+            from += n;
+        }
+    }
+}
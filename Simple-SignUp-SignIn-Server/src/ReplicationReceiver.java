@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replica side of replication: keeps the store of a read-only server up with the pwd.txt of its primary. It connects
+ * to the replication port of the primary, tells the offset its store is complete up to, and applies the snapshot
+ * records and pwd.txt lines it is sent, reconnecting after a failure. The offset is kept in the snapshot of the
+ * replica in place of a pwd.txt length, so a restarted replica is only sent what it missed.
+ * <p>
+ * Only this thread inserts into the store, so it also writes the snapshots, between frames.
+ */
+public class ReplicationReceiver implements Runnable {
+    /**
+     * how long to wait before connecting again after the primary was lost
+     */
+    private static final long RETRY_MILLIS = 1000;
+
+    /**
+     * the primary is given up on after this many heartbeats without a frame
+     */
+    private static final int MISSED_HEARTBEATS = 5;
+
+    private final SimpleSignUpSignInServer server;
+
+    private final CredentialStore store;
+
+    private final InetSocketAddress primary;
+
+    /**
+     * the offset in the pwd.txt of the primary up to which the store is complete, the sequence number of the next line
+     */
+    private volatile long offset;
+
+    /**
+     * the length of the pwd.txt of the primary when it sent its last frame
+     */
+    private volatile long primaryLength;
+
+    /**
+     * when the store last held all of the pwd.txt the primary told of, in `System.nanoTime`
+     */
+    private volatile long caughtUpNanos;
+
+    private volatile boolean connected;
+
+    /**
+     * the connection to the primary, closed on shutdown to end a blocked read
+     */
+    private volatile Socket socket;
+
+    /**
+     * set on shutdown, the thread writes a final snapshot and exits
+     */
+    private volatile boolean closing;
+
+    public ReplicationReceiver(SimpleSignUpSignInServer server, CredentialStore store, InetSocketAddress primary, long offset) {
+        this.server = server;
+        this.store = store;
+        this.primary = primary;
+        this.offset = offset;
+        this.primaryLength = offset;
+        this.caughtUpNanos = System.nanoTime();
+    }
+
+    /**
+     * Stop after a final snapshot
+     */
+    public void close() {
+        closing = true;
+        Socket socket = this.socket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // the thread notices the closing flag anyway
+            }
+        }
+    }
+
+    public long getOffset() {
+        return this.offset;
+    }
+
+    public boolean isConnected() {
+        return this.connected;
+    }
+
+    /**
+     * How many bytes of the pwd.txt of the primary were not applied yet, as of its last frame
+     */
+    public long getLagBytes() {
+        return Math.max(0, primaryLength - offset);
+    }
+
+    /**
+     * How long the store has been behind the primary, 0 if it holds all the primary told of
+     */
+    public long getLagMillis() {
+        return getLagBytes() == 0 && connected ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - caughtUpNanos);
+    }
+
+    @Override
+    public void run() {
+        long checkpointIntervalNanos = TimeUnit.SECONDS.toNanos(ServerConfig.snapshotIntervalSeconds);
+        long nextCheckpoint = System.nanoTime() + checkpointIntervalNanos;
+        ByteBuffer frame = ByteBuffer.allocate(ReplicationCodec.MAX_FRAME);
+        long checkpointOffset = offset;
+        // a store holding part of a snapshot is not saved while the snapshot streams, it has records beyond its offset
+        boolean inSnapshot = false;
+        // warn once per outage, not on every attempt
+        boolean lost = false;
+        while (!closing) {
+            try (SocketChannel channel = SocketChannel.open(primary)) {
+                socket = channel.socket();
+                if (closing) {
+                    break;
+                }
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, ServerConfig.replicationHeartbeatMillis * MISSED_HEARTBEATS));
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+
+                ReplicationCodec.begin(frame, ReplicationCodec.HELLO);
+                frame.putLong(offset);
+                frame.put(ServerConfig.replicationSecret.getBytes(StandardCharsets.UTF_8));
+                ReplicationCodec.finish(frame);
+                out.write(frame.array(), 0, frame.limit());
+                connected = true;
+                lost = false;
+                AsyncLogger.info("Replicating from " + primary + " at offset " + offset);
+
+                while (!closing) {
+                    int type = ReplicationCodec.read(in, frame);
+                    if (type == ReplicationCodec.LOG) {
+                        long start = frame.getLong();
+                        long length = frame.getLong();
+                        if (start != offset) {
+                            // should never happen, the primary sends every line once and in order
+                            throw new IOException("Got offset " + start + " while expecting " + offset + ".");
+                        }
+                        int count = frame.remaining();
+                        if (count > 0) {
+                            PwdFileLoader.apply(frame, start, store);
+                            offset = start + count;
+                        }
+                        primaryLength = length;
+                        if (offset >= length) {
+                            caughtUpNanos = System.nanoTime();
+                        }
+                    } else if (type == ReplicationCodec.SNAPSHOT_RECORDS) {
+                        inSnapshot = true;
+                        if (frame.remaining() % CredentialStore.RECORD != 0) {
+                            throw new IOException("Got a torn snapshot record.");
+                        }
+                        for (int position = frame.position(); position < frame.limit(); position += CredentialStore.RECORD) {
+                            store.putIfAbsent(frame.array(), position);
+                        }
+                    } else if (type == ReplicationCodec.SNAPSHOT_END) {
+                        offset = frame.getLong();
+                        inSnapshot = false;
+                        AsyncLogger.info("Loaded the snapshot of the primary, " + store.size() + " users up to offset " + offset);
+                    } else if (type == ReplicationCodec.ERROR) {
+                        String message = new String(frame.array(), frame.position(), frame.remaining(), StandardCharsets.US_ASCII);
+                        AsyncLogger.warn("The primary " + primary + " stopped the replication: " + message);
+                        closing = true;
+                    } else {
+                        throw new IOException("invalid replication frame type " + type + ".");
+                    }
+
+                    // snapshots are taken between frames, so they match the offset exactly
+                    long now = System.nanoTime();
+                    if (checkpointIntervalNanos > 0 && now - nextCheckpoint >= 0 && offset != checkpointOffset && !inSnapshot) {
+                        checkpointOffset = checkpoint();
+                        nextCheckpoint = now + checkpointIntervalNanos;
+                    }
+                }
+            } catch (IOException e) {
+                if (!closing && !lost) {
+                    AsyncLogger.warn("Lost the primary " + primary + ", retrying every " + RETRY_MILLIS + " ms: " + e);
+                    lost = true;
+                }
+            } finally {
+                connected = false;
+                socket = null;
+                // a snapshot torn by the disconnect is not resumed, the primary sends it again or the lines it was
+                // taken of, and the records already applied are kept as those are added over them, so the store can
+                // be saved again
+                inSnapshot = false;
+            }
+
+            // wait before connecting again, noticing a shutdown soon
+            long retryEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS);
+            while (!closing && System.nanoTime() - retryEnd < 0) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    closing = true;
+                }
+            }
+        }
+        checkpoint();
+    }
+
+    /**
+     * Write the snapshot of the replica. Returns the offset it covers.
+     */
+    private long checkpoint() {
+        long snapshotOffset = offset;
+        try {
+            // the replica has no pwd.txt for a checksum to be checked against
+            server.writeSnapshot(snapshotOffset, 0);
+        } catch (IOException e) {
+            AsyncLogger.warn("Failed to write the snapshot: " + e);
+        }
+        return snapshotOffset;
+    }
+}
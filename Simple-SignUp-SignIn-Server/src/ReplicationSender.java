@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Primary side of replication: accepts replicas on the replication port and serves each one on a thread of its own.
+ * A replica far behind the snapshot is sent the snapshot first, then pwd.txt is tailed from the offset of the replica
+ * up to the durable length of the journal. Reading the file instead of queueing batches for every replica keeps a
+ * slow replica from holding memory on the primary, it only falls further behind.
+ * <p>
+ * The stream holds every password hash, so the port listens on loopback unless `server.replication.bindAddress`
+ * says otherwise, and beyond loopback only replicas sending the replication secret are served.
+ */
+public class ReplicationSender implements Runnable {
+    private final ServerSocketChannel serverSocketChannel;
+
+    private final RegistrationJournal journal;
+
+    /**
+     * the secret replicas must send in their HELLO, empty to serve any replica
+     */
+    private final byte[] secret;
+
+    /**
+     * the replicas streaming now
+     */
+    private final Set<Replica> replicas = ConcurrentHashMap.newKeySet();
+
+    /**
+     * A connected replica and the offset of pwd.txt it has been sent up to
+     */
+    private class Replica implements Runnable {
+        private final SocketChannel socketChannel;
+
+        private final SocketAddress address;
+
+        private volatile long sent;
+
+        Replica(SocketChannel socketChannel) throws IOException {
+            this.socketChannel = socketChannel;
+            this.address = socketChannel.getRemoteAddress();
+        }
+
+        @Override
+        public void run() {
+            try (SocketChannel channel = socketChannel;
+                 FileChannel pwdChannel = FileChannel.open(Paths.get(ServerConfig.pwdFile), StandardOpenOption.READ)) {
+                InputStream in = channel.socket().getInputStream();
+                OutputStream out = channel.socket().getOutputStream();
+                ByteBuffer frame = ByteBuffer.allocate(ReplicationCodec.MAX_FRAME);
+
+                // the replica starts with the offset its store is complete up to
+                channel.socket().setSoTimeout((int) Math.min(Integer.MAX_VALUE, ServerConfig.slowReadTimeoutMillis));
+                if (ReplicationCodec.read(in, frame) != ReplicationCodec.HELLO) {
+                    throw new IOException("The replica did not say hello.");
+                }
+                long offset = frame.getLong();
+                byte[] hello = new byte[frame.remaining()];
+                frame.get(hello);
+                if (secret.length > 0 && !MessageDigest.isEqual(hello, secret)) {
+                    error(out, frame, "The replica did not send the replication secret of the primary.");
+                    AsyncLogger.warn("Refused the replica " + address + ", it did not send the replication secret.");
+                    return;
+                }
+                long length = journal.getLength();
+                if (offset < 0 || offset > length) {
+                    // a replica of another primary, or of a pwd.txt since replaced
+                    error(out, frame, "The replica is at offset " + offset + " but the primary has " + length
+                            + " bytes, restart it without its snapshot.");
+                    AsyncLogger.warn("Refused the replica " + address + " at offset " + offset + ", beyond the "
+                            + length + " bytes of " + ServerConfig.pwdFile + ".");
+                    return;
+                }
+                offset = sendSnapshot(out, frame, offset);
+                sent = offset;
+                replicas.add(this);
+                AsyncLogger.info("Replica " + address + " is streaming from offset " + offset + ".");
+
+                while (true) {
+                    // an idle primary still sends heartbeats, so the replica knows it is not behind
+                    length = journal.awaitLength(offset, ServerConfig.replicationHeartbeatMillis);
+                    ReplicationCodec.begin(frame, ReplicationCodec.LOG);
+                    frame.putLong(offset);
+                    frame.putLong(length);
+                    int count = (int) Math.min(length - offset, ReplicationCodec.MAX_PAYLOAD);
+                    if (count > 0) {
+                        int start = frame.position();
+                        readFully(pwdChannel, frame.array(), start, count, offset);
+                        if (offset + count < length) {
+                            // only whole lines, the rest goes with the next frame
+                            while (count > 0 && frame.array()[start + count - 1] != '\n') {
+                                count--;
+                            }
+                            if (count == 0) {
+                                throw new IOException("A line at offset " + offset + " of " + ServerConfig.pwdFile + " is too long to replicate.");
+                            }
+                        }
+                        frame.position(start + count);
+                    }
+                    ReplicationCodec.finish(frame);
+                    out.write(frame.array(), 0, frame.limit());
+                    offset += count;
+                    sent = offset;
+                }
+            } catch (IOException e) {
+                AsyncLogger.warn("Replica " + address + " disconnected: " + e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                replicas.remove(this);
+            }
+        }
+
+        /**
+         * Send the records of the snapshot if the replica is so far behind it that they are fewer bytes than the lines
+         * it misses. Returns the offset the replica is at after.
+         */
+        private long sendSnapshot(OutputStream out, ByteBuffer frame, long offset) throws IOException {
+            Path path = Paths.get(ServerConfig.snapshotFile);
+            if (!Files.exists(path)) {
+                return offset;
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                // the journal replaces the snapshot atomically, so this one stays whole while it is sent
+                long size = channel.size();
+                if (size < CredentialSnapshot.HEADER) {
+                    return offset;
+                }
+                ByteBuffer header = ByteBuffer.allocate(CredentialSnapshot.HEADER);
+                readFully(channel, header.array(), 0, CredentialSnapshot.HEADER, 0);
+                int count = header.getInt(8);
+                long pwdOffset = header.getLong(12);
+                if (header.getInt(0) != CredentialSnapshot.MAGIC || header.getInt(4) != CredentialSnapshot.VERSION
+                        || size != CredentialSnapshot.HEADER + (long) count * CredentialSnapshot.RECORD
+                        || pwdOffset > journal.getLength()) {
+                    // an older snapshot, the lines are sent instead
+                    return offset;
+                }
+                if (pwdOffset - offset <= size - CredentialSnapshot.HEADER) {
+                    // the lines the replica misses are fewer bytes than the whole table
+                    return offset;
+                }
+
+                AsyncLogger.info("Sending the snapshot of " + count + " users to the replica " + address + ".");
+                int recordsPerFrame = ReplicationCodec.MAX_PAYLOAD / CredentialSnapshot.RECORD;
+                long position = CredentialSnapshot.HEADER;
+                while (position < size) {
+                    int n = (int) Math.min(size - position, (long) recordsPerFrame * CredentialSnapshot.RECORD);
+                    ReplicationCodec.begin(frame, ReplicationCodec.SNAPSHOT_RECORDS);
+                    readFully(channel, frame.array(), frame.position(), n, position);
+                    frame.position(frame.position() + n);
+                    ReplicationCodec.finish(frame);
+                    out.write(frame.array(), 0, frame.limit());
+                    position += n;
+                }
+                ReplicationCodec.begin(frame, ReplicationCodec.SNAPSHOT_END);
+                frame.putLong(pwdOffset);
+                ReplicationCodec.finish(frame);
+                out.write(frame.array(), 0, frame.limit());
+                return pwdOffset;
+            }
+        }
+    }
+
+    public ReplicationSender(String bindAddress, int port, String secret, RegistrationJournal journal) throws IOException {
+        InetAddress address = InetAddress.getByName(bindAddress);
+        if (secret.isEmpty() && !address.isLoopbackAddress()) {
+            throw new IOException("The replication port listens on " + bindAddress
+                    + ", serving the password hashes beyond loopback needs -Dserver.replication.secret.");
+        }
+        this.journal = journal;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.serverSocketChannel = ServerSocketChannel.open();
+        this.serverSocketChannel.socket().bind(new InetSocketAddress(address, port));
+    }
+
+    @Override
+    public void run() {
+        AsyncLogger.info("Serving replicas on " + serverSocketChannel.socket().getLocalSocketAddress());
+        while (true) {
+            try {
+                SocketChannel socketChannel = serverSocketChannel.accept();
+                socketChannel.socket().setTcpNoDelay(true);
+                Replica replica = new Replica(socketChannel);
+                Thread thread = new Thread(replica, "replication-" + replica.address);
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                AsyncLogger.warn("Failed to accept a replica: " + e);
+            }
+        }
+    }
+
+    private static void error(OutputStream out, ByteBuffer frame, String message) throws IOException {
+        ReplicationCodec.begin(frame, ReplicationCodec.ERROR);
+        frame.put(message.getBytes(StandardCharsets.US_ASCII));
+        ReplicationCodec.finish(frame);
+        out.write(frame.array(), 0, frame.limit());
+    }
+
+    private static void readFully(FileChannel channel, byte[] bytes, int offset, int length, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - offset) < 0) {
+                throw new IOException("The file ended at " + (position + buffer.position() - offset) + ".");
+            }
+        }
+    }
+
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    /**
+     * How many bytes of pwd.txt the replica furthest behind has not been sent yet
+     */
+    public long getMaxBehindBytes() {
+        long length = journal.getLength();
+        long behind = 0;
+        for (Replica replica : replicas) {
+            behind = Math.max(behind, length - replica.sent);
+        }
+        return behind;
+    }
+}
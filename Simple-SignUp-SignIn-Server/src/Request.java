@@ -0,0 +1,235 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A decoded request. Instances are pooled by their event loop, or kept by their blocking connection, and reused once
+ * the response has been sent, so the fields below are reset by `reset` rather than final.
+ */
+public class Request implements Runnable {
+    private final SimpleSignUpSignInServer server;
+
+    /**
+     * the event loop or blocking connection that decoded this request and will send its response
+     */
+    private final ResponseSink sink;
+
+    /**
+     * the connection this request arrived on
+     */
+    private Connection connection;
+
+    private int commandID;
+
+    /**
+     * `System.nanoTime()` when the request was read, the start of its latency
+     */
+    private long startNanos;
+
+    /**
+     * the username field as a zero padded store key, see `MessageCodec.decodeCredentials`
+     */
+    private final byte[] userName;
+
+    /**
+     * the trimmed password, its length is `passwdLength`
+     */
+    private final byte[] passwd;
+
+    private int passwdLength;
+
+    /**
+     * whether a LOGIN_REQ_V2 asked for a session token
+     */
+    private boolean tokenRequested;
+
+    /**
+     * scratch space of the handler thread for the stored salt, digest and hasher params
+     */
+    private final byte[] entry;
+
+    /**
+     * scratch space of the handler thread for the computed digest
+     */
+    private final byte[] digest;
+
+    /**
+     * the undecoded username and passwd fields of a batch, null for a single-credential request
+     */
+    private byte[] records;
+
+    private int recordCount;
+
+    /**
+     * records of a batch whose status is not final yet, the handler finishing the last one completes the request
+     */
+    private final AtomicInteger unfinishedRecords;
+
+    /**
+     * encoded response msg, one of the shared `MessageCodec` templates set by the handler thread,
+     * or for a batch its own msg whose statuses the handlers fill in
+     */
+    private byte[] response;
+
+    /**
+     * whether the handler threw, in which case the connection is closed instead of answered
+     */
+    private boolean failed;
+
+    /**
+     * whether the request has been handed to the handler pool, only touched by the loop thread
+     */
+    private boolean dispatched;
+
+    /**
+     * set by the event loop once the completion has been drained, only touched by the loop thread
+     */
+    private boolean completed;
+
+    /**
+     * the next request on the completion stack of the event loop
+     */
+    private Request nextCompleted;
+
+    public Request(SimpleSignUpSignInServer server, ResponseSink sink) {
+        this.server = server;
+        this.sink = sink;
+        this.userName = new byte[CredentialStore.KEY];
+        this.passwd = new byte[FieldLength.regReqPasswd];
+        this.entry = new byte[CredentialStore.ENTRY];
+        this.digest = new byte[CredentialStore.DIGEST];
+        this.unfinishedRecords = new AtomicInteger();
+    }
+
+    /**
+     * Prepare a pooled request for a newly decoded msg
+     */
+    public void reset(Connection connection, int commandID) {
+        this.connection = connection;
+        this.commandID = commandID;
+        this.passwdLength = 0;
+        this.tokenRequested = false;
+        this.records = null;
+        this.recordCount = 0;
+        this.response = null;
+        this.failed = false;
+        this.dispatched = false;
+        this.completed = false;
+        this.nextCompleted = null;
+    }
+
+    /**
+     * Handle the request on the handler pool
+     */
+    @Override
+    public void run() {
+        server.execute(this);
+    }
+
+    public ResponseSink getSink() {
+        return this.sink;
+    }
+
+    public Connection getConnection() {
+        return this.connection;
+    }
+
+    public int getCommandID() {
+        return this.commandID;
+    }
+
+    public long getStartNanos() {
+        return this.startNanos;
+    }
+
+    public void setStartNanos(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    public byte[] getUserName() {
+        return this.userName;
+    }
+
+    public byte[] getPasswd() {
+        return this.passwd;
+    }
+
+    public int getPasswdLength() {
+        return this.passwdLength;
+    }
+
+    public void setPasswdLength(int passwdLength) {
+        this.passwdLength = passwdLength;
+    }
+
+    public boolean isTokenRequested() {
+        return this.tokenRequested;
+    }
+
+    public void setTokenRequested(boolean tokenRequested) {
+        this.tokenRequested = tokenRequested;
+    }
+
+    public byte[] getRecords() {
+        return this.records;
+    }
+
+    public int getRecordCount() {
+        return this.recordCount;
+    }
+
+    public void setRecords(byte[] records, int recordCount) {
+        this.records = records;
+        this.recordCount = recordCount;
+    }
+
+    public AtomicInteger getUnfinishedRecords() {
+        return this.unfinishedRecords;
+    }
+
+    public byte[] getEntry() {
+        return this.entry;
+    }
+
+    public byte[] getDigest() {
+        return this.digest;
+    }
+
+    public byte[] getResponse() {
+        return this.response;
+    }
+
+    public void setResponse(byte[] response) {
+        this.response = response;
+    }
+
+    public boolean isFailed() {
+        return this.failed;
+    }
+
+    public void setFailed(boolean failed) {
+        this.failed = failed;
+    }
+
+    public boolean isDispatched() {
+        return this.dispatched;
+    }
+
+    public void setDispatched(boolean dispatched) {
+        this.dispatched = dispatched;
+    }
+
+    public boolean isCompleted() {
+        return this.completed;
+    }
+
+    public void setCompleted(boolean completed) {
+        this.completed = completed;
+    }
+
+    public Request getNextCompleted() {
+        return this.nextCompleted;
+    }
+
+    public void setNextCompleted(Request nextCompleted) {
+        this.nextCompleted = nextCompleted;
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * Where a handled request goes to have its response sent: the event loop that decoded it, or the thread of its
+ * blocking connection. Called once per request, from whichever thread finished it.
+ */
+public interface ResponseSink {
+    void complete(Request request);
+}
@@ -1,9 +1,25 @@
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class SHA256Utils {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * One digest per thread, getInstance is far more expensive than the hash of a short password
+     */
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // should never happen, every JVM ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    });
+
     public static byte[] getSHA(String input) throws NoSuchAlgorithmException
     {
         // Static getInstance method is called with hashing SHA
@@ -31,4 +47,44 @@ public class SHA256Utils {
 
         return hexString.toString();
     }
+
+    /**
+     * The same digest as getSHA(passwd + salt) without building the Strings, written to `out` at `outOffset`
+     */
+    public static void getSHA(byte[] passwd, int passwdOffset, int passwdLength, byte[] salt, int saltOffset, int saltLength,
+                              byte[] out, int outOffset) throws DigestException
+    {
+        MessageDigest md = DIGESTS.get();
+        md.update(passwd, passwdOffset, passwdLength);
+        md.update(salt, saltOffset, saltLength);
+        md.digest(out, outOffset, CredentialStore.DIGEST);
+    }
+
+    /**
+     * Put `length` bytes as lowercase hex digits, the same text as toHexString for a digest
+     */
+    public static void putHex(ByteBuffer out, byte[] bytes, int offset, int length)
+    {
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i] & 0xff;
+            out.put((byte) HEX_DIGITS[b >>> 4]);
+            out.put((byte) HEX_DIGITS[b & 0x0f]);
+        }
+    }
+
+    /**
+     * Parse `length` bytes from the hex digits at `index`. Returns false on a non-hex digit.
+     */
+    public static boolean getHex(ByteBuffer in, int index, byte[] out, int offset, int length)
+    {
+        for (int i = 0; i < length; i++) {
+            int high = Character.digit(in.get(index + i * 2), 16);
+            int low = Character.digit(in.get(index + i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return false;
+            }
+            out[offset + i] = (byte) ((high << 4) | low);
+        }
+        return true;
+    }
 }
@@ -0,0 +1,28 @@
+import java.security.GeneralSecurityException;
+
+/**
+ * SHA256(passwd + salt), the scheme the server always used. Records without params are hashed this way.
+ */
+public class SaltedSHA256Hasher implements PasswordHasher {
+    @Override
+    public int scheme() {
+        return 0;
+    }
+
+    @Override
+    public String name() {
+        return "sha256";
+    }
+
+    @Override
+    public boolean isIterated() {
+        return false;
+    }
+
+    @Override
+    public void hash(byte[] passwd, int passwdOffset, int passwdLength, byte[] salt, int saltOffset, int iterations,
+                     byte[] out, int outOffset) throws GeneralSecurityException {
+        // a digest per thread, see SHA256Utils
+        SHA256Utils.getSHA(passwd, passwdOffset, passwdLength, salt, saltOffset, CredentialStore.SALT, out, outOffset);
+    }
+}
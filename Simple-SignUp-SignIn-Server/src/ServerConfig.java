@@ -0,0 +1,227 @@
+public class ServerConfig {
+    /**
+     * How connections are served: `selector` for the worker event loops, `blocking` for a thread per connection doing
+     * blocking reads and writes, virtual where the runtime has them. Set with `-Dserver.engine=name`
+     */
+    public static final String engine = System.getProperty("server.engine", "selector");
+
+    /**
+     * The number of worker event loops serving client connections, defaults to the number of cores.
+     * Set with `-Dserver.workers=N`
+     */
+    public static final int workerCount = Math.max(1, Integer.getInteger("server.workers", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The number of connections the kernel may hold before they are accepted, the JDK default of 50 drops the connects
+     * of a burst of clients. Set with `-Dserver.acceptBacklog=N`
+     */
+    public static final int acceptBacklog = Math.max(1, Integer.getInteger("server.acceptBacklog", 4096));
+
+    /**
+     * The number of handler threads doing hashing and pwd.txt writes, defaults to the number of cores.
+     * Set with `-Dserver.handlerThreads=N`
+     */
+    public static final int handlerThreads = Math.max(1, Integer.getInteger("server.handlerThreads", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The number of decoded requests allowed to wait for a handler thread before new ones are answered as busy.
+     * Set with `-Dserver.handlerQueueCapacity=N`
+     */
+    public static final int handlerQueueCapacity = Math.max(1, Integer.getInteger("server.handlerQueueCapacity", 4096));
+
+    /**
+     * The text file holding `username:salt:sha256` lines. Set with `-Dserver.pwdFile=path`
+     */
+    public static final String pwdFile = System.getProperty("server.pwdFile", "pwd.txt");
+
+    /**
+     * The max number of registrations written to pwd.txt in one batch. Set with `-Dserver.journal.maxBatchSize=N`
+     */
+    public static final int journalMaxBatchSize = Math.max(1, Integer.getInteger("server.journal.maxBatchSize", 256));
+
+    /**
+     * How long the first registration of a batch may wait for others to join it, in microseconds.
+     * Set with `-Dserver.journal.maxLingerMicros=N`
+     */
+    public static final long journalMaxLingerMicros = Math.max(0L, Long.getLong("server.journal.maxLingerMicros", 200L));
+
+    /**
+     * Whether each batch is forced to the disk before the registrations are acknowledged.
+     * Set with `-Dserver.journal.force=false` to trade durability for throughput
+     */
+    public static final boolean journalForce = Boolean.parseBoolean(System.getProperty("server.journal.force", "true"));
+
+    /**
+     * The binary snapshot of the credential table. Set with `-Dserver.snapshotFile=path`
+     */
+    public static final String snapshotFile = System.getProperty("server.snapshotFile", "pwd.snapshot");
+
+    /**
+     * How often the snapshot is rewritten in seconds, 0 to write it on shutdown only.
+     * Set with `-Dserver.snapshot.intervalSeconds=N`
+     */
+    public static final long snapshotIntervalSeconds = Math.max(0L, Long.getLong("server.snapshot.intervalSeconds", 300L));
+
+    /**
+     * The port a primary streams pwd.txt to its replicas on, 0 for no replication. Set with `-Dserver.replication.port=N`
+     */
+    public static final int replicationPort = Integer.getInteger("server.replication.port", 0);
+
+    /**
+     * The address the replication port listens on, loopback by default so the password hashes are not served to other
+     * hosts unless asked for. Set with `-Dserver.replication.bindAddress=host`
+     */
+    public static final String replicationBindAddress = System.getProperty("server.replication.bindAddress", "127.0.0.1");
+
+    /**
+     * The secret a replica must send to be served, the same on the primary and its replicas. Required when the
+     * replication port listens beyond loopback. Set with `-Dserver.replication.secret=text`
+     */
+    public static final String replicationSecret = System.getProperty("server.replication.secret", "");
+
+    /**
+     * `host:port` of the replication port of the primary, which makes this server a read-only replica keeping no
+     * pwd.txt of its own, only its snapshot. Empty for a primary. Set with `-Dserver.replicaOf=host:port`
+     */
+    public static final String replicaOf = System.getProperty("server.replicaOf", "");
+
+    /**
+     * How often an idle primary tells its replicas its pwd.txt length, so they can tell their lag, in milliseconds.
+     * Set with `-Dserver.replication.heartbeatMillis=N`
+     */
+    public static final long replicationHeartbeatMillis = Math.max(1L, Long.getLong("server.replication.heartbeatMillis", 1000L));
+
+    /**
+     * The number of threads parsing pwd.txt at startup, defaults to the number of cores.
+     * Set with `-Dserver.loader.parallelism=N`
+     */
+    public static final int loaderParallelism = Math.max(1, Integer.getInteger("server.loader.parallelism", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The number of response bytes waiting for a slow client above which the server stops reading from it,
+     * reading resumes once half of them are drained. Set with `-Dserver.outbound.highWaterMark=N`
+     */
+    public static final int outboundHighWaterMark = Math.max(1, Integer.getInteger("server.outbound.highWaterMark", 64 << 10));
+
+    /**
+     * The number of requests of one connection waiting to be answered, such as those held behind a registration, above
+     * which the server stops reading from it, reading resumes once half of them are answered.
+     * Set with `-Dserver.pending.highWaterMark=N`
+     */
+    public static final int pendingHighWaterMark = Math.max(1, Integer.getInteger("server.pending.highWaterMark", 1024));
+
+    /**
+     * How long a connection may stay silent before it is closed, in milliseconds.
+     * Set with `-Dserver.timeout.idleMillis=N`
+     */
+    public static final long idleTimeoutMillis = Math.max(1L, Long.getLong("server.timeout.idleMillis", 300_000L));
+
+    /**
+     * How long a client may take to finish sending a started request, or leave its responses unread without
+     * any progress, before it is closed, in milliseconds. Set with `-Dserver.timeout.slowReadMillis=N`
+     */
+    public static final long slowReadTimeoutMillis = Math.max(1L, Long.getLong("server.timeout.slowReadMillis", 10_000L));
+
+    /**
+     * The resolution of the timeouts above, in milliseconds. Set with `-Dserver.timeout.tickMillis=N`
+     */
+    public static final long timeoutTickMillis = Math.max(1L, Long.getLong("server.timeout.tickMillis", 100L));
+
+    /**
+     * The longest msg accepted from a client in bytes, a longer `totalLength` closes the connection.
+     * Set with `-Dserver.maxFrameLength=N`
+     */
+    public static final int maxFrameLength = Math.max(FieldLength.header, Integer.getInteger("server.maxFrameLength", 64 << 10));
+
+    /**
+     * The hasher of new registrations, `sha256` or `pbkdf2_sha256`. Existing users keep the hasher they registered with.
+     * Set with `-Dserver.hasher=name`
+     */
+    public static final String hasher = System.getProperty("server.hasher", "sha256");
+
+    /**
+     * The iteration count of an iterated hasher, 0 to calibrate it to `hasherBudgetMicros` at startup.
+     * Set with `-Dserver.hasher.iterations=N`
+     */
+    public static final int hasherIterations = Math.max(0, Integer.getInteger("server.hasher.iterations", 0));
+
+    /**
+     * The CPU time a login may spend hashing when the iteration count is calibrated, in microseconds.
+     * Set with `-Dserver.hasher.budgetMicros=N`
+     */
+    public static final long hasherBudgetMicros = Math.max(1L, Long.getLong("server.hasher.budgetMicros", 20_000L));
+
+    /**
+     * The number of recently verified logins remembered so a repeated one skips the hasher, such as 65536, 0 to leave
+     * the cache off as it is by default. A remembered password is accepted until `cacheTtlSeconds` pass even if it was
+     * changed in pwd.txt meanwhile. Set with `-Dserver.cache.entries=N`
+     */
+    public static final int cacheEntries = Math.max(0, Integer.getInteger("server.cache.entries", 0));
+
+    /**
+     * How long a verified login is remembered, in seconds. Set with `-Dserver.cache.ttlSeconds=N`
+     */
+    public static final long cacheTtlSeconds = Math.max(1L, Long.getLong("server.cache.ttlSeconds", 300L));
+
+    /**
+     * The number of session tokens kept for v2 logins asking for one, 0 to issue none. Tokens are dropped before their
+     * TTL once more than about `tokenEntries / tokenTtlSeconds` logins a second ask for one, 73 with the defaults, so
+     * it should be above that rate times the TTL. The dropped ones are counted as `token_live_evictions`.
+     * Set with `-Dserver.token.entries=N`
+     */
+    public static final int tokenEntries = Math.max(0, Integer.getInteger("server.token.entries", 262144));
+
+    /**
+     * How long a session token stays valid, in seconds. Set with `-Dserver.token.ttlSeconds=N`
+     */
+    public static final long tokenTtlSeconds = Math.max(1L, Long.getLong("server.token.ttlSeconds", 3600L));
+
+    /**
+     * The number of buckets per row of each login throttle table, such as 65536, 0 to leave throttling off as it is
+     * by default. Set with `-Dserver.throttle.buckets=N`
+     */
+    public static final int throttleBuckets = Math.max(0, Integer.getInteger("server.throttle.buckets", 0));
+
+    /**
+     * Login attempts per second allowed from one client host, 0 for no limit. Set with `-Dserver.throttle.addressRate=N`
+     */
+    public static final double throttleAddressRate = Math.max(0.0, Double.parseDouble(System.getProperty("server.throttle.addressRate", "100")));
+
+    /**
+     * Login attempts one client host may make at once above its rate. Set with `-Dserver.throttle.addressBurst=N`
+     */
+    public static final int throttleAddressBurst = Math.max(1, Integer.getInteger("server.throttle.addressBurst", 200));
+
+    /**
+     * Login attempts per second allowed for one username, 0 for no limit. Set with `-Dserver.throttle.userRate=N`
+     */
+    public static final double throttleUserRate = Math.max(0.0, Double.parseDouble(System.getProperty("server.throttle.userRate", "5")));
+
+    /**
+     * Login attempts for one username allowed at once above its rate. Set with `-Dserver.throttle.userBurst=N`
+     */
+    public static final int throttleUserBurst = Math.max(1, Integer.getInteger("server.throttle.userBurst", 20));
+
+    /**
+     * Comma separated hosts exempt from the per-host limit, such as a gateway logging in on behalf of many users.
+     * Their logins are still limited per username. Set with `-Dserver.throttle.exemptHosts=host,host`
+     */
+    public static final String throttleExemptHosts = System.getProperty("server.throttle.exemptHosts", "");
+
+    /**
+     * Whether METRICS_REQ is answered for clients on other hosts too, by default only local ones get the metrics.
+     * Set with `-Dserver.metrics.remote=true`
+     */
+    public static final boolean metricsRemote = Boolean.parseBoolean(System.getProperty("server.metrics.remote", "false"));
+
+    /**
+     * The lowest level logged, one of `DEBUG`, `INFO`, `WARN`, `ERROR` or `OFF`. Set with `-Dserver.log.level=LEVEL`
+     */
+    public static final AsyncLogger.Level logLevel = AsyncLogger.Level.valueOf(System.getProperty("server.log.level", "INFO").toUpperCase());
+
+    /**
+     * The number of log events waiting to be printed above which new ones are dropped.
+     * Set with `-Dserver.log.bufferSize=N`
+     */
+    public static final int logBufferSize = Math.max(2, Integer.getInteger("server.log.bufferSize", 8192));
+}
@@ -0,0 +1,190 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the server, updated by the event loops, the handler threads and the journal
+ * thread without locks or allocation. Rendered as `name value` text lines for METRICS_REQ, latencies in microseconds.
+ */
+public class ServerMetrics {
+    /**
+     * the name of every `CommandID` constant by value
+     */
+    private static final String[] COMMAND_NAMES = commandNames();
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    /**
+     * requests answered per command ID, failed ones included
+     */
+    private final LongAdder[] requests = new LongAdder[COMMAND_NAMES.length];
+
+    /**
+     * requests per command ID whose handling failed, their connections were closed instead of answered
+     */
+    private final LongAdder[] errors = new LongAdder[COMMAND_NAMES.length];
+
+    /**
+     * from the read of a request to its response being queued for the socket, per command ID
+     */
+    private final LatencyHistogram[] latencies = new LatencyHistogram[COMMAND_NAMES.length];
+
+    /**
+     * one password hash of a registration or a login
+     */
+    private final LatencyHistogram hashLatency = new LatencyHistogram();
+
+    /**
+     * one journal batch written to pwd.txt and forced
+     */
+    private final LatencyHistogram persistLatency = new LatencyHistogram();
+
+    private final LongAdder persistedRecords = new LongAdder();
+
+    private final LongAdder connectionsOpened = new LongAdder();
+
+    private final LongAdder connectionsClosed = new LongAdder();
+
+    /**
+     * connections closed after a malformed msg, a failed request or a socket error
+     */
+    private final LongAdder connectionErrors = new LongAdder();
+
+    private final LongAdder bytesIn = new LongAdder();
+
+    private final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * requests and batch records answered as busy or throttled
+     */
+    private final LongAdder busy = new LongAdder();
+
+    private final LongAdder throttled = new LongAdder();
+
+    private final long startNanos = System.nanoTime();
+
+    public ServerMetrics() {
+        for (int i = 0; i < COMMAND_NAMES.length; i++) {
+            if (COMMAND_NAMES[i] != null && MessageCodec.isRequest(i)) {
+                requests[i] = new LongAdder();
+                errors[i] = new LongAdder();
+                latencies[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    private static String[] commandNames() {
+        String[] names = new String[0];
+        for (Field field : CommandID.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == int.class) {
+                try {
+                    int commandID = field.getInt(null);
+                    if (commandID >= names.length) {
+                        names = Arrays.copyOf(names, commandID + 1);
+                    }
+                    names[commandID] = field.getName();
+                } catch (IllegalAccessException e) {
+                    // should never happen, the fields are public
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Count a request whose response is queued, or which failed, `nanos` after it was read
+     */
+    public void recordRequest(int commandID, long nanos, boolean failed) {
+        requests[commandID].increment();
+        latencies[commandID].record(nanos);
+        if (failed) {
+            errors[commandID].increment();
+        }
+    }
+
+    public void recordHash(long nanos) {
+        hashLatency.record(nanos);
+    }
+
+    public void recordPersist(long nanos, int records) {
+        persistLatency.record(nanos);
+        persistedRecords.add(records);
+    }
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public void connectionClosed(boolean error) {
+        connectionsClosed.increment();
+        if (error) {
+            connectionErrors.increment();
+        }
+    }
+
+    public void addBytesIn(int bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void addBytesOut(int bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void addBusy(int count) {
+        busy.add(count);
+    }
+
+    public void addThrottled(int count) {
+        throttled.add(count);
+    }
+
+    /**
+     * Append the counters and histograms as `name value` lines
+     */
+    public void appendTo(StringBuilder text) {
+        append(text, "uptime_seconds", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos));
+        long opened = connectionsOpened.sum();
+        long closed = connectionsClosed.sum();
+        append(text, "connections_active", opened - closed);
+        append(text, "connections_opened", opened);
+        append(text, "connections_errors", connectionErrors.sum());
+        append(text, "bytes_in", bytesIn.sum());
+        append(text, "bytes_out", bytesOut.sum());
+        append(text, "responses_busy", busy.sum());
+        append(text, "responses_throttled", throttled.sum());
+        for (int i = 0; i < COMMAND_NAMES.length; i++) {
+            if (requests[i] != null) {
+                String label = "command=\"" + COMMAND_NAMES[i] + "\"";
+                append(text, "requests{" + label + "}", requests[i].sum());
+                append(text, "requests_errors{" + label + "}", errors[i].sum());
+                appendLatency(text, "request_latency_us", label, latencies[i]);
+            }
+        }
+        appendLatency(text, "hash_latency_us", null, hashLatency);
+        appendLatency(text, "persist_latency_us", null, persistLatency);
+        append(text, "persist_batches", persistLatency.getCount());
+        append(text, "persist_records", persistedRecords.sum());
+    }
+
+    /**
+     * The quantiles, max and mean of a histogram, `label` is added to every line unless null
+     */
+    private static void appendLatency(StringBuilder text, String name, String label, LatencyHistogram histogram) {
+        // merged once, every quantile is read from the same counts
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        String labels = label == null ? "{" : "{" + label + ",";
+        for (double quantile : QUANTILES) {
+            append(text, name + labels + "quantile=\"" + quantile + "\"}", TimeUnit.NANOSECONDS.toMicros(snapshot.getValueAtQuantile(quantile)));
+        }
+        String suffix = label == null ? "" : "{" + label + "}";
+        append(text, name + "_max" + suffix, TimeUnit.NANOSECONDS.toMicros(snapshot.getMaxNanos()));
+        append(text, name + "_mean" + suffix, TimeUnit.NANOSECONDS.toMicros(snapshot.getMeanNanos()));
+    }
+
+    public static void append(StringBuilder text, String name, long value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+}
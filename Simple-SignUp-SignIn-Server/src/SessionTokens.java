@@ -0,0 +1,142 @@
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Session tokens issued to v2 logins, checked by TOKEN_VERIFY_REQ without any hashing.
+ * <p>
+ * A token is 16 random bytes, so its low bits pick a 4-way set directly and a lookup is four compares under a
+ * striped lock. Tokens live `ttlMillis` after they are issued. Expired entries are dropped lazily, a lookup ignores
+ * them and an issue reuses them, and a set full of live tokens gives up the one closest to expiry. Those live
+ * evictions are counted and logged, the client of such a token is told it is invalid before its time.
+ */
+public class SessionTokens {
+    private static final int WAYS = 4;
+
+    /**
+     * longs per entry: the two halves of the token and its expiry
+     */
+    private static final int ENTRY_LONGS = 3;
+
+    private static final int LOCK_STRIPES = 256;
+
+    /**
+     * live evictions are logged at most this often
+     */
+    private static final long WARN_INTERVAL_MILLIS = 60_000;
+
+    /**
+     * SecureRandom serializes its callers, so every handler thread gets its own
+     */
+    private static final ThreadLocal<SecureRandom> RANDOMS = ThreadLocal.withInitial(SecureRandom::new);
+
+    private final long[] table;
+
+    /**
+     * the store key of the user of each entry
+     */
+    private final byte[] userNames;
+
+    private final int setMask;
+
+    private final Object[] locks;
+
+    private final long ttlMillis;
+
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * tokens dropped before their expiry to make room for new ones
+     */
+    private final LongAdder liveEvictions = new LongAdder();
+
+    /**
+     * when the next live eviction may be logged, in `currentMillis`
+     */
+    private final AtomicLong nextWarnMillis = new AtomicLong();
+
+    public SessionTokens(int maxTokens, long ttlMillis) {
+        int sets = Math.max(1, Integer.highestOneBit(Math.max(1, maxTokens / WAYS - 1)) << 1);
+        this.table = new long[sets * WAYS * ENTRY_LONGS];
+        this.userNames = new byte[sets * WAYS * CredentialStore.KEY];
+        this.setMask = sets - 1;
+        this.locks = new Object[Math.min(LOCK_STRIPES, sets)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Issue a new token for the user of `key` and write it to `out`
+     */
+    public void issue(byte[] key, byte[] out, int outOffset) {
+        byte[] token = new byte[FieldLength.sessionToken];
+        RANDOMS.get().nextBytes(token);
+        System.arraycopy(token, 0, out, outOffset, token.length);
+        ByteBuffer tokenBuffer = ByteBuffer.wrap(token);
+        long high = tokenBuffer.getLong(0);
+        long low = tokenBuffer.getLong(8);
+
+        int set = (int) low & setMask;
+        long now = currentMillis();
+        boolean live;
+        synchronized (locks[set % locks.length]) {
+            // an expired entry, else the one expiring first
+            int victim = set * WAYS;
+            for (int way = 1; way < WAYS; way++) {
+                if (table[(set * WAYS + way) * ENTRY_LONGS + 2] < table[victim * ENTRY_LONGS + 2]) {
+                    victim = set * WAYS + way;
+                }
+            }
+            live = table[victim * ENTRY_LONGS + 2] > now;
+            table[victim * ENTRY_LONGS] = high;
+            table[victim * ENTRY_LONGS + 1] = low;
+            table[victim * ENTRY_LONGS + 2] = now + ttlMillis;
+            System.arraycopy(key, 0, userNames, victim * CredentialStore.KEY, CredentialStore.KEY);
+        }
+        if (live) {
+            liveEvictions.increment();
+            long next = nextWarnMillis.get();
+            if (now >= next && nextWarnMillis.compareAndSet(next, now + WARN_INTERVAL_MILLIS)) {
+                AsyncLogger.warn("Dropped a session token before it expired to make room, " + liveEvictions.sum()
+                        + " so far. Raise -Dserver.token.entries above the token logins per second times -Dserver.token.ttlSeconds.");
+            }
+        }
+    }
+
+    /**
+     * The number of tokens dropped before their expiry
+     */
+    public long getLiveEvictions() {
+        return liveEvictions.sum();
+    }
+
+    /**
+     * Look up the token at `index` and copy the store key of its user to `key`. Returns false if the token is
+     * unknown or expired.
+     */
+    public boolean verify(ByteBuffer buffer, int index, byte[] key) {
+        long high = buffer.getLong(index);
+        long low = buffer.getLong(index + 8);
+        int set = (int) low & setMask;
+        long now = currentMillis();
+        synchronized (locks[set % locks.length]) {
+            for (int entry = set * WAYS; entry < (set + 1) * WAYS; entry++) {
+                int offset = entry * ENTRY_LONGS;
+                if (table[offset] == high && table[offset + 1] == low && table[offset + 2] > now) {
+                    System.arraycopy(userNames, entry * CredentialStore.KEY, key, 0, CredentialStore.KEY);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private long currentMillis() {
+        // starts at 1, an expiry of 0 is always in the past
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + 1;
+    }
+}
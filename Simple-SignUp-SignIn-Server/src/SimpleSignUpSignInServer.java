@@ -1,20 +1,26 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SimpleSignUpSignInServer {
     /**
-     * common capacity for all self-defined byte buffer
+     * the smallest pooled per-connection buffer, larger frames use the next size classes
      */
     private int bufferSize = 1 << 10;
 
@@ -24,289 +30,656 @@ public class SimpleSignUpSignInServer {
     private ServerSocketChannel serverSocketChannel;
 
     /**
-     * Selector for server
+     * Selector for the acceptor, only interested in OP_ACCEPT
      */
     private Selector selector;
 
+    /**
+     * Worker event loops serving accepted connections
+     */
+    private EventLoop[] eventLoops;
+
+    /**
+     * Round-robin cursor over `eventLoops`, only touched by the acceptor thread
+     */
+    private int nextEventLoop = 0;
+
+    /**
+     * Bounded pool running hashing and pwd.txt writes off the event loops
+     */
+    private ThreadPoolExecutor handlerPool;
+
     /**
      * TCP port number for server process
      */
     private static int portNumber = 11451;
 
     /**
-     * username-pwd-salt table in runtime
+     * username-pwd-salt table in runtime, shared by all event loops and handler threads without a global lock
+     */
+    private CredentialStore credentialStore;
+
+    /**
+     * Recently verified logins, null if disabled
+     */
+    private CredentialCache credentialCache;
+
+    /**
+     * Rate limits of login attempts, null if disabled
+     */
+    private LoginThrottle loginThrottle;
+
+    /**
+     * Session tokens of v2 logins, null if disabled
+     */
+    private SessionTokens sessionTokens;
+
+    /**
+     * Counters and latency histograms, exposed through METRICS_REQ
+     */
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    /**
+     * Group-commit log appending registrations to pwd.txt
      */
-    private HashMap<String, PasswordEntry> userPasswordDictionary;
+    private RegistrationJournal registrationJournal;
 
     /**
-     * Map client socket channel to its byte buffer
+     * Scratch space of a thread handling the records of batch requests
      */
-    private HashMap<SocketChannel, ByteBuffer> socket2BufferDictionary;
+    private static class BatchScratch {
+        private final byte[] userName = new byte[CredentialStore.KEY];
+
+        private final byte[] passwd = new byte[FieldLength.regReqPasswd];
+
+        private final byte[] entry = new byte[CredentialStore.ENTRY];
+
+        private final byte[] digest = new byte[CredentialStore.DIGEST];
+    }
+
+    private static final ThreadLocal<BatchScratch> BATCH_SCRATCH = ThreadLocal.withInitial(BatchScratch::new);
 
     /**
      * Default length when generating the password salt
      */
     private final int saltLength = 8;
 
-    public SimpleSignUpSignInServer(int port) throws IOException {
+    /**
+     * Hasher of new registrations
+     */
+    private PasswordHasher passwordHasher;
+
+    /**
+     * Params stored with new registrations: the scheme of `passwordHasher` and its iteration count
+     */
+    private int passwordHasherParams;
+
+    /**
+     * Streams pwd.txt to the replicas, null unless this is a primary with a replication port
+     */
+    private ReplicationSender replicationSender;
+
+    /**
+     * Applies the registrations of the primary, null unless this is a replica
+     */
+    private ReplicationReceiver replicationReceiver;
+
+    public SimpleSignUpSignInServer(int port) throws IOException, GeneralSecurityException {
+        if (!ServerConfig.engine.equals("selector") && !ServerConfig.engine.equals("blocking")) {
+            throw new IOException("Unknown server engine \"" + ServerConfig.engine + "\".");
+        }
         serverSocketChannel = ServerSocketChannel.open();
-        serverSocketChannel.socket().bind(new InetSocketAddress(port));
-        serverSocketChannel.configureBlocking(false);
-
-        selector = Selector.open();
-        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-
-        // read user passwords from file
-        FileReader reader = new FileReader("pwd.txt");
-        BufferedReader bufferedReader = new BufferedReader(reader);
-        String line;
-        userPasswordDictionary = new HashMap<>();
-        while ((line = bufferedReader.readLine()) != null) {
-            String[] parts = line.split(":");
-            String username = parts[0];
-            String salt = parts[1];
-            String pwd = parts[2];
-            PasswordEntry entry = new PasswordEntry(pwd, salt);
-            if (!userPasswordDictionary.containsKey(username)) {
-                userPasswordDictionary.put(username, entry);
-            } else {
-                System.out.println("[" + new Date() + "] \"" + username + "\" already exists. Duplicate ones will be ignored." );
+        serverSocketChannel.socket().bind(new InetSocketAddress(port), ServerConfig.acceptBacklog);
+        if (isSelectorEngine()) {
+            serverSocketChannel.configureBlocking(false);
+
+            selector = Selector.open();
+            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        long startTime = System.nanoTime();
+        Path snapshotPath = Paths.get(ServerConfig.snapshotFile);
+        if (!ServerConfig.replicaOf.isEmpty()) {
+            if (ServerConfig.replicationPort > 0) {
+                throw new IOException("A replica cannot serve replicas of its own.");
             }
+            // a replica keeps no pwd.txt, its snapshot tells up to which offset of the pwd.txt of the primary it holds
+            credentialStore = new CredentialStore(CredentialSnapshot.count(snapshotPath));
+            long offset = CredentialSnapshot.load(snapshotPath, credentialStore, null);
+            replicationReceiver = new ReplicationReceiver(this, credentialStore, parseAddress(ServerConfig.replicaOf), offset);
+            AsyncLogger.info("Loaded " + credentialStore.size() + " users from the snapshot, up to offset " + offset
+                    + " of the primary, in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
+        } else {
+            // read user passwords from the snapshot, then the lines appended to pwd.txt after it
+            Path pwdPath = Paths.get(ServerConfig.pwdFile);
+            // size the store for the snapshot plus roughly 90 bytes per text line
+            credentialStore = new CredentialStore((int) Math.min(Integer.MAX_VALUE / 2,
+                    CredentialSnapshot.count(snapshotPath) + Files.size(pwdPath) / 90));
+            long pwdOffset = CredentialSnapshot.load(snapshotPath, credentialStore, pwdPath);
+            int snapshotCount = credentialStore.size();
+            PwdFileLoader.load(pwdPath, pwdOffset, credentialStore, ServerConfig.loaderParallelism);
+            AsyncLogger.info("Loaded " + credentialStore.size() + " users (" + snapshotCount + " from the snapshot) in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
         }
-        bufferedReader.close();
-        reader.close();
 
-        socket2BufferDictionary = new HashMap<>();
+        passwordHasher = PasswordHashers.forName(ServerConfig.hasher);
+        if (passwordHasher == null) {
+            throw new IOException("Unknown password hasher \"" + ServerConfig.hasher + "\".");
+        }
+        int iterations = 0;
+        if (passwordHasher.isIterated()) {
+            iterations = Math.min(ServerConfig.hasherIterations, PasswordHashers.MAX_ITERATIONS);
+            if (iterations == 0) {
+                iterations = HasherCalibrator.calibrate(passwordHasher, ServerConfig.hasherBudgetMicros);
+                AsyncLogger.info("Calibrated " + passwordHasher.name() + " to " + iterations
+                        + " iterations for " + ServerConfig.hasherBudgetMicros + " us of CPU time per login");
+            }
+        }
+        passwordHasherParams = PasswordHashers.params(passwordHasher, iterations);
+        AsyncLogger.info("New passwords are hashed with " + passwordHasher.name()
+                + (passwordHasher.isIterated() ? ", " + iterations + " iterations" : ""));
+
+        if (ServerConfig.cacheEntries > 0) {
+            credentialCache = new CredentialCache(ServerConfig.cacheEntries, TimeUnit.SECONDS.toMillis(ServerConfig.cacheTtlSeconds));
+        }
+        if (ServerConfig.throttleBuckets > 0) {
+            Set<InetAddress> exemptHosts = new HashSet<>();
+            for (String host : ServerConfig.throttleExemptHosts.split(",")) {
+                if (!host.isBlank()) {
+                    exemptHosts.addAll(Arrays.asList(InetAddress.getAllByName(host.trim())));
+                }
+            }
+            loginThrottle = new LoginThrottle(ServerConfig.throttleBuckets, ServerConfig.throttleAddressRate, ServerConfig.throttleAddressBurst,
+                    ServerConfig.throttleUserRate, ServerConfig.throttleUserBurst, exemptHosts);
+        }
+        if (ServerConfig.tokenEntries > 0) {
+            sessionTokens = new SessionTokens(ServerConfig.tokenEntries, TimeUnit.SECONDS.toMillis(ServerConfig.tokenTtlSeconds));
+        }
+
+        if (replicationReceiver == null) {
+            registrationJournal = new RegistrationJournal(this, ServerConfig.pwdFile,
+                    ServerConfig.journalMaxBatchSize, ServerConfig.journalMaxLingerMicros, ServerConfig.journalForce,
+                    ServerConfig.snapshotIntervalSeconds);
+            if (ServerConfig.replicationPort > 0) {
+                replicationSender = new ReplicationSender(ServerConfig.replicationBindAddress, ServerConfig.replicationPort,
+                        ServerConfig.replicationSecret, registrationJournal);
+            }
+        }
+
+        AtomicInteger handlerThreadCount = new AtomicInteger();
+        handlerPool = new ThreadPoolExecutor(ServerConfig.handlerThreads, ServerConfig.handlerThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(ServerConfig.handlerQueueCapacity),
+                runnable -> new Thread(runnable, "handler-" + handlerThreadCount.getAndIncrement()),
+                new ThreadPoolExecutor.AbortPolicy());
+
+        // the blocking engine serves each connection on a thread of its own instead
+        eventLoops = new EventLoop[isSelectorEngine() ? ServerConfig.workerCount : 0];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(this, bufferSize);
+        }
     }
 
     private void accept() throws IOException {
         SocketChannel socketChannel = serverSocketChannel.accept();
 
         // print log info
-        System.out.println("[" + (new Date()).toString() + "] " + socketChannel.getRemoteAddress() + " connected to the server.");
+        AsyncLogger.log(LogEvent.CONNECTED, socketChannel.getRemoteAddress());
 
-        socketChannel.configureBlocking(false);
-        socketChannel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        // hand the connection over to a worker event loop
+        eventLoops[nextEventLoop].register(socketChannel);
+        nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+    }
 
-        // allocate a buffer for the socket
-        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-        if (!userPasswordDictionary.containsKey(socketChannel)) {
-            socket2BufferDictionary.put(socketChannel, buffer);
-        } else {
-            // should never happen
-            throw new IOException("Duplicate socket channel was added to the dictionary.");
+    private static InetSocketAddress parseAddress(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        try {
+            return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid address \"" + address + "\", expected host:port.");
         }
     }
 
-    private void read(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
+    private static boolean isSelectorEngine() {
+        return ServerConfig.engine.equals("selector");
+    }
 
-        // retrieve the buffer from the dictionary
-        ByteBuffer buffer = socket2BufferDictionary.get(socketChannel);
-        if (buffer == null) {
-            // should never happen
-            throw new IOException("The given socket channel does not have a buffer.");
-        } else {
-            // in write mode now
-            socketChannel.read(buffer); // bulk read
-            // switch to read mode
-            buffer.flip();
+    /**
+     * Accept loop of the blocking engine: each connection gets a thread doing blocking reads and writes
+     */
+    private void acceptBlocking() throws IOException {
+        while (true) {
+            SocketChannel socketChannel = serverSocketChannel.accept();
+            AsyncLogger.log(LogEvent.CONNECTED, socketChannel.getRemoteAddress());
+            try {
+                // responses are written one by one, Nagle would hold back all but the first of a pipeline
+                socketChannel.socket().setTcpNoDelay(true);
+                new BlockingConnection(this, socketChannel).start();
+            } catch (IOException | OutOfMemoryError e) {
+                // out of threads, or the client already left
+                AsyncLogger.log(LogEvent.CONNECTION_ERROR, e);
+                socketChannel.close();
+            }
         }
     }
 
-    private void process(SelectionKey key) throws IOException, NoSuchAlgorithmException {
-        // find corresponding socket channel by selection key
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        // find corresponding byte buffer by socket channel
-        ByteBuffer buffer = socket2BufferDictionary.get(socketChannel);
-        // test the buffer
-        if (buffer == null) {
-            // should never happen
-            throw new IOException("The given socket channel does not have a buffer.");
+    /**
+     * Queue a decoded request on the handler pool. Returns false if the pool is saturated.
+     */
+    boolean dispatch(Request request) {
+        try {
+            handlerPool.execute(request);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
         }
+    }
 
-        // process all requests in one go
-        while (true) {
-            // in read mode now
-            // read the msg header
-            byte[] header = new byte[FieldLength.header];
-            if (buffer.remaining() >= FieldLength.header) {
-                buffer.get(header);
+    /**
+     * Called on a handler thread by `Request.run`
+     */
+    void execute(Request request) {
+        boolean completed = true;
+        try {
+            completed = handle(request);
+        } catch (Exception e) {
+            AsyncLogger.log(LogEvent.HANDLER_ERROR, e);
+            request.setFailed(true);
+        }
+        if (completed) {
+            request.getSink().complete(request);
+        }
+    }
+
+    /**
+     * Run the business logic of one request on a handler thread and set its response.
+     * Returns false if the response will be set later, once the registration is durable or the batch is done.
+     */
+    private boolean handle(Request request) throws IOException, GeneralSecurityException, InterruptedException {
+        byte[] userName = request.getUserName();
+
+        // a replica only serves logins, registrations go to the primary
+        if (replicationReceiver != null && MessageCodec.isRegistration(request.getCommandID())) {
+            if (request.getCommandID() == CommandID.BATCH_REG_REQ) {
+                byte[] response = request.getResponse();
+                Arrays.fill(response, MessageCodec.batchStatusOffset(0), response.length, MessageCodec.BATCH_STATUS_READ_ONLY);
+            } else {
+                request.setResponse(MessageCodec.response(request.getCommandID(), StatusCode.READ_ONLY));
             }
-            else {
-                // the msg header is not complete
-                // switch to the write mode
-                buffer.compact();
-                return;
+            return true;
+        }
+
+        // select the operation
+        switch (request.getCommandID()) {
+            case CommandID.REG_REQ:
+            case CommandID.REG_REQ_V2: {// reg req, respond with reg resp
+                if (!register(request, -1, userName, request.getPasswd(), request.getPasswdLength())) {
+                    request.setResponse(MessageCodec.response(request.getCommandID(), StatusCode.DUPLICATE_USERNAME));
+                    return true;
+                }
+                // the response is sent once the journal is durable
+                return false;
             }
+            case CommandID.LOGIN_REQ:
+            case CommandID.LOGIN_REQ_V2: {// login req
+                boolean valid = login(userName, request.getPasswd(), request.getPasswdLength(), request.getEntry(), request.getDigest());
+                if (valid && request.isTokenRequested() && sessionTokens != null) {
+                    // the session token follows the status
+                    byte[] response = MessageCodec.loginResponseWithToken();
+                    sessionTokens.issue(userName, response, MessageCodec.loginResponseTokenOffset());
+                    request.setResponse(response);
+                } else {
+                    request.setResponse(MessageCodec.response(request.getCommandID(), valid ? StatusCode.SUCCESS : StatusCode.INVALID_CREDENTIALS));
+                }
+                return true;
+            }
+            case CommandID.BATCH_REG_REQ:
+            case CommandID.BATCH_LOGIN_REQ: {
+                handleBatch(request);
+                return false;
+            }
+            default: {// should never happen
+                throw new IOException("invalid command ID.");
+            }
+        }
+    }
 
-            // parse the msg header
-            int totalLength = ByteBuffer.wrap(header, 0, FieldLength.totalLengthField).getInt();
-            int commandID = ByteBuffer.wrap(header, FieldLength.totalLengthField, FieldLength.commandIDField).getInt();
-
-            // test whether the msg body is complete
-            if (buffer.remaining() < totalLength - FieldLength.header) {
-                // body is not complete
-                // put header back to the buffer
-                buffer.position(buffer.position() - FieldLength.header);
-                // switch to the write mode
-                buffer.compact();
-                return;
+    /**
+     * Split a batch into one slice per handler thread and handle the slices in parallel, this thread taking the first.
+     * The request is completed by whoever finishes its last record.
+     */
+    private void handleBatch(Request request) {
+        int count = request.getRecordCount();
+        request.getUnfinishedRecords().set(count);
+        int slices = Math.min(ServerConfig.handlerThreads, count);
+        for (int slice = 1; slice < slices; slice++) {
+            int from = (int) ((long) count * slice / slices);
+            int to = (int) ((long) count * (slice + 1) / slices);
+            Runnable task = () -> handleBatchRecords(request, from, to);
+            try {
+                handlerPool.execute(task);
+            } catch (RejectedExecutionException e) {
+                // the pool is saturated, the slice is only slower on this thread
+                task.run();
             }
+        }
+        handleBatchRecords(request, 0, count / slices);
+    }
 
-            // read the msg body
-            byte[] body = new byte[totalLength - FieldLength.header];
-            buffer.get(body);
-
-            // initialize an output buffer
-            ByteBuffer outputBuffer = ByteBuffer.allocate(bufferSize);
-
-            // common local variables
-            String status, description;
-
-            // select the operation
-            switch (commandID) {
-                case CommandID.REG_REQ: {// reg req, respond with reg resp
-                    // parse the msg body
-                    // parse username
-                    byte[] userNameBytes = new byte[FieldLength.regReqUserName];
-                    System.arraycopy(body, 0, userNameBytes, 0, userNameBytes.length);
-                    String userName = new String(userNameBytes, StandardCharsets.US_ASCII).trim();
-
-                    // parse pwd
-                    byte[] passwdBytes = new byte[FieldLength.regReqPasswd];
-                    System.arraycopy(body, 20, passwdBytes, 0, passwdBytes.length);
-                    String passwd = new String(passwdBytes, StandardCharsets.US_ASCII).trim();
-
-                    // test whether username is duplicate
-                    if (userPasswordDictionary.containsKey(userName)) {
-                        System.out.println("[" + new Date() + "] " + socketChannel.getRemoteAddress() + " uses a duplicate username \"" + userName + "\".");
-
-                        // encapsulate the response msg body
-                        status = "0";
-                        description = "duplicate username";
-                    } else {
-                        // generate the salt
-                        String salt = RandomStringGenerator.generate(saltLength);
-                        // generate SHA256 value
-                        String sha256 = SHA256Utils.toHexString(SHA256Utils.getSHA(passwd + salt));
-                        String line = userName + ":" + salt + ":" + sha256;
-                        // add the user pwd info to the file
-                        FileWriter writer = new FileWriter("pwd.txt", true);
-                        writer.write(line + '\n');
-                        writer.close();
-                        // add the user pwd info to the memory for realtime purpose
-                        userPasswordDictionary.put(userName, new PasswordEntry(sha256, salt));
-
-                        // encapsulate the msg body to a byte array
-                        status = "1";
-                        description = "ok";
-
-                        System.out.println("[" + new Date() + "] " + socketChannel.getRemoteAddress() + " registered successfully with the username \"" + userName + "\".");
+    private void handleBatchRecords(Request request, int from, int to) {
+        // slices run concurrently, so each thread has its own scratch space
+        BatchScratch scratch = BATCH_SCRATCH.get();
+        byte[] userName = scratch.userName;
+        byte[] passwd = scratch.passwd;
+        byte[] entry = scratch.entry;
+        byte[] digest = scratch.digest;
+        ByteBuffer records = ByteBuffer.wrap(request.getRecords());
+        byte[] response = request.getResponse();
+        boolean registration = request.getCommandID() == CommandID.BATCH_REG_REQ;
+
+        int finished = 0;
+        for (int i = from; i < to; i++) {
+            int passwdLength = MessageCodec.decodeCredentials(records, i * FieldLength.batchReqRecord, userName, passwd);
+            try {
+                if (registration) {
+                    if (!register(request, i, userName, passwd, passwdLength)) {
+                        response[MessageCodec.batchStatusOffset(i)] = MessageCodec.BATCH_STATUS_FAILED;
+                        finished++;
                     }
-
-                    // encapsulate the response msg body into byte array
-                    byte[] effectiveResponseBody = (status + description).getBytes(StandardCharsets.US_ASCII);
-                    byte[] responseBodyBytes = new byte[FieldLength.regRespStatus + FieldLength.regRespDescription];
-                    System.arraycopy(effectiveResponseBody, 0, responseBodyBytes, 0, effectiveResponseBody.length);
-                    Arrays.fill(responseBodyBytes, effectiveResponseBody.length, responseBodyBytes.length, (byte) 0);
-
-                    // encapsulate the response msg header into byte array
-                    byte[] responseHeaderBytes = new byte[FieldLength.header];
-                    ByteBuffer responseHeaderBytesBuffer = ByteBuffer.allocate(FieldLength.header);
-                    int responseMsgTotalLength = responseHeaderBytes.length + responseBodyBytes.length;
-                    int responseMsgCommandID = CommandID.REG_RESP;
-                    responseHeaderBytesBuffer.putInt(responseMsgTotalLength);
-                    responseHeaderBytesBuffer.putInt(responseMsgCommandID);
-                    responseHeaderBytesBuffer.flip();
-                    responseHeaderBytesBuffer.get(responseHeaderBytes);
-
-                    // concatenate the msg header and body
-                    byte[] msg = new byte[responseMsgTotalLength];
-                    System.arraycopy(responseHeaderBytes, 0, msg, 0, responseHeaderBytes.length);
-                    System.arraycopy(responseBodyBytes, 0, msg, responseHeaderBytes.length, responseBodyBytes.length);
-
-                    // wrap the msg with ByteBuffer
-                    outputBuffer.put(msg);
-                    outputBuffer.flip();
-
-                    // send the msg
-                    socketChannel.write(outputBuffer);
-                    break;
+                    // otherwise the journal finishes the record
+                } else if (loginThrottle != null && !loginThrottle.admitUser(userName)) {
+                    // the batch took its token from the address, each record takes one from its username
+                    response[MessageCodec.batchStatusOffset(i)] = MessageCodec.BATCH_STATUS_THROTTLED;
+                    metrics.addThrottled(1);
+                    finished++;
+                } else {
+                    boolean valid = login(userName, passwd, passwdLength, entry, digest);
+                    response[MessageCodec.batchStatusOffset(i)] = valid ? MessageCodec.BATCH_STATUS_OK : MessageCodec.BATCH_STATUS_FAILED;
+                    finished++;
                 }
-                case CommandID.LOGIN_REQ: {// login req
-                    // parse the msg body
-                    // parse the username
-                    byte[] userNameBytes = new byte[FieldLength.loginReqUserName];
-                    System.arraycopy(body, 0, userNameBytes, 0, userNameBytes.length);
-                    String userName = new String(userNameBytes, StandardCharsets.US_ASCII).trim();
-
-                    // parse the passwd
-                    byte[] passwdBytes = new byte[FieldLength.loginReqPasswd];
-                    System.arraycopy(body, userNameBytes.length, passwdBytes, 0, passwdBytes.length);
-                    String passwd = new String(passwdBytes, StandardCharsets.US_ASCII).trim();
-
-                    // find the username from dictionary
-                    if (!userPasswordDictionary.containsKey(userName)) {
-                        // username does not exist
-                        status = "0";
-                        description = "Invalid username or password.";
-                    } else {
-                        // compare the password
-                        PasswordEntry entry = userPasswordDictionary.get(userName);
-                        String sha256InDatabase = entry.getPwd();
-                        String salt = entry.getSalt();
-                        String sha256FromUser = SHA256Utils.toHexString(SHA256Utils.getSHA(passwd + salt));
-                        if (sha256InDatabase.equals(sha256FromUser)) {
-                            // the passwords match
-                            status = "1";
-                            description = "ok";
-                        } else {
-                            // the passwords not match
-                            status = "0";
-                            description = "Invalid username or password.";
-                        }
-                    }
+            } catch (Exception e) {
+                AsyncLogger.log(LogEvent.HANDLER_ERROR, e);
+                request.setFailed(true);
+                finished++;
+            }
+        }
+        finishBatchRecords(request, finished);
+    }
 
-                    // encapsulate the response msg body into byte array
-                    byte[] effectiveResponseBody = (status + description).getBytes(StandardCharsets.US_ASCII);
-                    byte[] responseBodyBytes = new byte[FieldLength.loginRespStatus + FieldLength.loginRespDescription];
-                    System.arraycopy(effectiveResponseBody, 0, responseBodyBytes, 0, effectiveResponseBody.length);
-                    Arrays.fill(responseBodyBytes, effectiveResponseBody.length, responseBodyBytes.length, (byte) 0);
-
-                    // encapsulate the response msg header into byte array
-                    byte[] responseHeaderBytes = new byte[FieldLength.header];
-                    ByteBuffer responseHeaderBytesBuffer = ByteBuffer.allocate(FieldLength.header);
-                    int responseMsgTotalLength = responseHeaderBytes.length + responseBodyBytes.length;
-                    int responseMsgCommandID = CommandID.LOGIN_RESP;
-                    responseHeaderBytesBuffer.putInt(responseMsgTotalLength);
-                    responseHeaderBytesBuffer.putInt(responseMsgCommandID);
-                    responseHeaderBytesBuffer.flip();
-                    responseHeaderBytesBuffer.get(responseHeaderBytes);
-
-                    // concatenate the msg header and body
-                    byte[] msg = new byte[responseMsgTotalLength];
-                    System.arraycopy(responseHeaderBytes, 0, msg, 0, responseHeaderBytes.length);
-                    System.arraycopy(responseBodyBytes, 0, msg, responseHeaderBytes.length, responseBodyBytes.length);
-
-                    // wrap the msg with ByteBuffer
-                    outputBuffer.put(msg);
-                    outputBuffer.flip();
-
-                    // send the msg
-                    socketChannel.write(outputBuffer);
-
-                    break;
-                }
-                default: {// should never happen
-                    throw new IOException("invalid command ID.");
-                }
+    /**
+     * Count records of a batch as final and complete the batch after its last one
+     */
+    private void finishBatchRecords(Request request, int finished) {
+        if (finished > 0 && request.getUnfinishedRecords().addAndGet(-finished) == 0) {
+            request.getSink().complete(request);
+        }
+    }
+
+    /**
+     * Reserve the username, hash the password and queue the registration for the journal, which commits it later.
+     * Returns false if the username is taken. `index` is the record of a batch request, -1 for a REG_REQ.
+     */
+    private boolean register(Request request, int index, byte[] userName, byte[] passwd, int passwdLength)
+            throws GeneralSecurityException, InterruptedException {
+        // test whether username is duplicate, reserving it until the journal is done
+        if (!credentialStore.reserve(userName, 0)) {
+            AsyncLogger.log(LogEvent.DUPLICATE_USERNAME, request.getConnection().getRemoteAddress(), userName, 0);
+            return false;
+        }
+
+        try {
+            // the record is handed to the journal thread and kept until the batch is committed, so it is not reused
+            byte[] credentials = new byte[CredentialStore.RECORD];
+            System.arraycopy(userName, 0, credentials, 0, CredentialStore.KEY);
+            // generate the salt in place
+            RandomStringGenerator.generate(credentials, CredentialStore.KEY, saltLength);
+            // hash the password with the configured hasher and remember which one it was
+            int digestOffset = CredentialStore.KEY + CredentialStore.SALT;
+            long hashStart = System.nanoTime();
+            passwordHasher.hash(passwd, 0, passwdLength, credentials, CredentialStore.KEY,
+                    PasswordHashers.iterations(passwordHasherParams), credentials, digestOffset);
+            metrics.recordHash(System.nanoTime() - hashStart);
+            PasswordHashers.writeParams(credentials, digestOffset + CredentialStore.DIGEST, passwordHasherParams);
+
+            // add the user pwd info to the file, the registration is acknowledged once the batch is durable
+            registrationJournal.append(new RegistrationJournal.Record(credentials, request, index));
+            return true;
+        } catch (Exception e) {
+            credentialStore.abort(userName, 0);
+            throw e;
+        }
+    }
+
+    /**
+     * Check a password against the stored digest, `entry` and `digest` are scratch space of the calling thread
+     */
+    private boolean login(byte[] userName, byte[] passwd, int passwdLength, byte[] entry, byte[] digest)
+            throws IOException, GeneralSecurityException {
+        // a login verified moments ago needs no hashing
+        if (credentialCache != null && credentialCache.verify(userName, passwd, passwdLength)) {
+            return true;
+        }
+
+        // find the username from dictionary
+        if (!credentialStore.get(userName, 0, entry, 0)) {
+            // username does not exist
+            return false;
+        }
+
+        // compare the password, hashed the way the stored one was
+        int params = PasswordHashers.readParams(entry, CredentialStore.SALT + CredentialStore.DIGEST);
+        PasswordHasher hasher = PasswordHashers.forParams(params);
+        if (hasher == null) {
+            // should never happen, unknown schemes are rejected when loading
+            throw new IOException("unknown password hasher.");
+        }
+        long hashStart = System.nanoTime();
+        hasher.hash(passwd, 0, passwdLength, entry, 0, PasswordHashers.iterations(params), digest, 0);
+        metrics.recordHash(System.nanoTime() - hashStart);
+        if (!digestEquals(digest, entry, CredentialStore.SALT)) {
+            // the passwords not match
+            return false;
+        }
+        // the passwords match
+        if (credentialCache != null) {
+            credentialCache.put(userName, passwd, passwdLength);
+        }
+        return true;
+    }
+
+    /**
+     * Called on the connection thread for a decoded request. Whether it is within the login rate limits, taking tokens
+     * if it is, else it gets its THROTTLED response. A login is charged to its address and its username, a batch of
+     * logins once to its address here and per record to the usernames by the handlers.
+     */
+    boolean admit(Request request) {
+        int commandID = request.getCommandID();
+        if (loginThrottle == null) {
+            return true;
+        }
+        if (MessageCodec.isLogin(commandID)) {
+            if (loginThrottle.admit(request.getConnection().getAddressHash(), request.getUserName())) {
+                return true;
             }
+            request.setResponse(MessageCodec.response(commandID, StatusCode.THROTTLED));
+            metrics.addThrottled(1);
+            return false;
+        }
+        if (commandID == CommandID.BATCH_LOGIN_REQ) {
+            if (loginThrottle.admitAddress(request.getConnection().getAddressHash())) {
+                return true;
+            }
+            byte[] response = request.getResponse();
+            Arrays.fill(response, MessageCodec.batchStatusOffset(0), response.length, MessageCodec.BATCH_STATUS_THROTTLED);
+            metrics.addThrottled(request.getRecordCount());
+            return false;
+        }
+        return true;
+    }
+
+    long hashAddress(SocketAddress address) {
+        return loginThrottle == null ? 0 : loginThrottle.hashAddress(address);
+    }
+
+    /**
+     * Called on an event loop for a TOKEN_VERIFY_REQ, `key` is scratch space of the loop thread
+     */
+    byte[] verifyToken(ByteBuffer buffer, int index, byte[] key) {
+        if (sessionTokens == null || !sessionTokens.verify(buffer, index, key)) {
+            return MessageCodec.tokenVerifyResponse(null);
+        }
+        return MessageCodec.tokenVerifyResponse(key);
+    }
+
+    ServerMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Called on an event loop for a METRICS_REQ: the counters of `metrics` followed by the state of the tables
+     */
+    byte[] metricsResponse(Connection connection) {
+        SocketAddress address = connection.getRemoteAddress();
+        if (!ServerConfig.metricsRemote && !(address instanceof InetSocketAddress
+                && ((InetSocketAddress) address).getAddress() != null && ((InetSocketAddress) address).getAddress().isLoopbackAddress())) {
+            return MessageCodec.metricsResponse(StatusCode.FORBIDDEN, "");
+        }
+        StringBuilder text = new StringBuilder(4096);
+        metrics.appendTo(text);
+        ServerMetrics.append(text, "users", credentialStore.size());
+        if (credentialCache != null) {
+            ServerMetrics.append(text, "cache_hits", credentialCache.getHits());
+            ServerMetrics.append(text, "cache_misses", credentialCache.getMisses());
+        }
+        if (sessionTokens != null) {
+            ServerMetrics.append(text, "token_live_evictions", sessionTokens.getLiveEvictions());
+        }
+        long bufferPoolBytes = 0;
+        for (EventLoop eventLoop : eventLoops) {
+            bufferPoolBytes += eventLoop.getBufferPoolBytes();
+        }
+        ServerMetrics.append(text, "buffer_pool_bytes", bufferPoolBytes);
+        ServerMetrics.append(text, "handler_queue", handlerPool.getQueue().size());
+        ServerMetrics.append(text, "handler_active", handlerPool.getActiveCount());
+        ServerMetrics.append(text, "log_dropped", AsyncLogger.getDropped());
+        if (replicationSender != null) {
+            ServerMetrics.append(text, "replication_offset", registrationJournal.getLength());
+            ServerMetrics.append(text, "replicas", replicationSender.getReplicaCount());
+            ServerMetrics.append(text, "replication_max_behind_bytes", replicationSender.getMaxBehindBytes());
         }
+        if (replicationReceiver != null) {
+            ServerMetrics.append(text, "replication_offset", replicationReceiver.getOffset());
+            ServerMetrics.append(text, "replication_connected", replicationReceiver.isConnected() ? 1 : 0);
+            ServerMetrics.append(text, "replication_lag_bytes", replicationReceiver.getLagBytes());
+            ServerMetrics.append(text, "replication_lag_millis", replicationReceiver.getLagMillis());
+        }
+        return MessageCodec.metricsResponse(StatusCode.SUCCESS, text.toString());
+    }
+
+    /**
+     * Compare a computed digest with the stored one in constant time
+     */
+    private static boolean digestEquals(byte[] digest, byte[] stored, int storedOffset) {
+        int diff = 0;
+        for (int i = 0; i < CredentialStore.DIGEST; i++) {
+            diff |= digest[i] ^ stored[storedOffset + i];
+        }
+        return diff == 0;
     }
 
-    private void launch() throws IOException, NoSuchAlgorithmException {
-        System.out.println("[" + new Date() + "] " + "Server started successfully on the port " + portNumber);
+    /**
+     * Called by the journal thread once the batch holding the record is durable
+     */
+    void commitRegistration(RegistrationJournal.Record record) {
+        byte[] credentials = record.getCredentials();
+        Request request = record.getRequest();
+
+        // add the user pwd info to the memory for realtime purpose
+        credentialStore.commit(credentials, 0);
+        if (credentialCache != null) {
+            credentialCache.invalidate(credentials);
+        }
+
+        AsyncLogger.log(LogEvent.REGISTERED, request.getConnection().getRemoteAddress(), credentials, 0);
+
+        if (record.getIndex() < 0) {
+            request.setResponse(MessageCodec.response(request.getCommandID(), StatusCode.SUCCESS));
+            request.getSink().complete(request);
+        } else {
+            request.getResponse()[MessageCodec.batchStatusOffset(record.getIndex())] = MessageCodec.BATCH_STATUS_OK;
+            finishBatchRecords(request, 1);
+        }
+    }
+
+    /**
+     * Called by the journal thread between batches, when the dictionary holds exactly the first `pwdOffset` bytes of pwd.txt,
+     * whose CRC32C is `pwdChecksum`. On a replica it is called by the replication receiver between frames, with an offset
+     * of the pwd.txt of the primary and no checksum.
+     */
+    void writeSnapshot(long pwdOffset, int pwdChecksum) throws IOException {
+        long startTime = System.nanoTime();
+        int count = CredentialSnapshot.write(Paths.get(ServerConfig.snapshotFile), credentialStore, pwdOffset, pwdChecksum);
+        AsyncLogger.info("Wrote a snapshot of " + count + " users in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
+    }
+
+    /**
+     * Called by the journal thread if the batch holding the record could not be written
+     */
+    void abortRegistration(RegistrationJournal.Record record) {
+        credentialStore.abort(record.getCredentials(), 0);
+        Request request = record.getRequest();
+        request.setFailed(true);
+        if (record.getIndex() < 0) {
+            request.getSink().complete(request);
+        } else {
+            finishBatchRecords(request, 1);
+        }
+    }
+
+    private void launch() throws IOException {
+        // a primary appends registrations to pwd.txt, a replica applies those of its primary
+        Thread journalThread = replicationReceiver == null ? new Thread(registrationJournal, "registration-journal")
+                : new Thread(replicationReceiver, "replication-receiver");
+        journalThread.start();
+        if (replicationSender != null) {
+            Thread senderThread = new Thread(replicationSender, "replication-sender");
+            senderThread.setDaemon(true);
+            senderThread.start();
+        }
+
+        // flush the journal and leave a fresh snapshot behind for the next start
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (credentialCache != null) {
+                AsyncLogger.info("Credential cache: " + credentialCache.getHits() + " hits, "
+                        + credentialCache.getMisses() + " misses");
+            }
+            if (replicationReceiver != null) {
+                replicationReceiver.close();
+            } else {
+                registrationJournal.close();
+            }
+            try {
+                journalThread.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            AsyncLogger.close();
+        }, "shutdown"));
+
+        // start the worker event loops
+        for (int i = 0; i < eventLoops.length; i++) {
+            Thread thread = new Thread(eventLoops[i], "event-loop-" + i);
+            thread.start();
+        }
+
+        if (!isSelectorEngine()) {
+            AsyncLogger.info("Server started successfully on the port " + portNumber + " with a "
+                    + (BlockingConnection.isVirtual() ? "virtual" : "platform") + " thread per connection");
+            acceptBlocking();
+            return;
+        }
+        AsyncLogger.info("Server started successfully on the port " + portNumber + " with " + eventLoops.length + " event loops");
         while (true) {
             selector.select();
             Set<SelectionKey> selectionKeySet = selector.selectedKeys();
@@ -318,9 +691,6 @@ public class SimpleSignUpSignInServer {
 
                 if (key.isAcceptable()) {
                     accept();
-                } else if (key.isReadable()) {
-                    read(key);
-                    process(key);
                 }
             }
         }
@@ -341,6 +711,8 @@ public class SimpleSignUpSignInServer {
             SimpleSignUpSignInServer server = new SimpleSignUpSignInServer(portNumber);
             server.launch();
         } catch (Exception e) {
+            // print what was logged before the failure
+            AsyncLogger.close();
             e.printStackTrace();
         }
     }
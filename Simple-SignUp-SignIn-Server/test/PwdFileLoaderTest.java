@@ -0,0 +1,56 @@
+/**
+ * Checks how `PwdFileLoader` cuts pwd.txt into ranges: none may pass the 2 GB a buffer can map, whatever the number
+ * of threads. Run from the server module, it exits with status 1 on a failure:
+ * <pre>
+ * javac -d test-out src/*.java test/*.java
+ * java -cp test-out PwdFileLoaderTest
+ * </pre>
+ */
+public class PwdFileLoaderTest {
+    private static final long MB = 1L << 20;
+
+    private static final long GB = 1L << 30;
+
+    private static int failures;
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("FAILED " + message);
+            failures++;
+        }
+    }
+
+    private static void checkChunkSize(long length, int parallelism) {
+        long chunkSize = PwdFileLoader.chunkSize(length, parallelism);
+        String cell = "length " + length + " with " + parallelism + " threads, chunk size " + chunkSize;
+        check(chunkSize > 0, cell + ": empty chunks");
+        check(chunkSize <= PwdFileLoader.MAX_CHUNK_SIZE, cell + ": larger than " + PwdFileLoader.MAX_CHUNK_SIZE);
+        long chunkCount = (length + chunkSize - 1) / chunkSize;
+        long mapLimited = (length + PwdFileLoader.MAX_CHUNK_SIZE - 1) / PwdFileLoader.MAX_CHUNK_SIZE;
+        check(chunkCount <= Math.max(parallelism * 4L, mapLimited), cell + ": " + chunkCount + " chunks");
+        if (length >= 4L * parallelism * MB) {
+            // a large file gives every thread work
+            check(chunkCount >= Math.min(parallelism * 4L, length / MB), cell + ": only " + chunkCount + " chunks");
+        }
+    }
+
+    public static void main(String[] args) {
+        // a single core on a 10 GB file used to ask for 2.5 GB chunks
+        check(PwdFileLoader.chunkSize(10 * GB, 1) <= PwdFileLoader.MAX_CHUNK_SIZE, "10 GB with one thread");
+
+        long[] lengths = {1, MB - 1, MB, 100 * MB, PwdFileLoader.MAX_CHUNK_SIZE, PwdFileLoader.MAX_CHUNK_SIZE + 1,
+                4 * GB, 10 * GB, 1L << 40, Long.MAX_VALUE / 2};
+        int[] parallelisms = {1, 2, 3, 8, 64, 1024};
+        for (long length : lengths) {
+            for (int parallelism : parallelisms) {
+                checkChunkSize(length, parallelism);
+            }
+        }
+
+        if (failures > 0) {
+            System.out.println(failures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("PwdFileLoaderTest passed");
+    }
+}
@@ -0,0 +1,373 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Runs a primary and a replica as separate server processes on this host, with a relay of the replication stream in
+ * between that the test can break:
+ * <ul>
+ * <li>the first connection of the replica is cut partway through the snapshot of the primary, which is restarted
+ * without its snapshot meanwhile, so the replica has to reconnect, catch up from the lines of pwd.txt and keep writing
+ * snapshots of its own</li>
+ * <li>a user registered on the primary can log in on the replica once it has caught up</li>
+ * <li>while the relay holds the stream back the replica reports itself disconnected and lagging, and catches up
+ * once the stream flows again</li>
+ * <li>the final snapshot of the replica covers all of the pwd.txt of the primary</li>
+ * </ul>
+ * Run from the server module, it exits with status 1 on a failure:
+ * <pre>
+ * javac -d test-out src/*.java test/*.java
+ * java -cp test-out ReplicationTest
+ * </pre>
+ */
+public class ReplicationTest {
+    /**
+     * the line the server logs once it accepts connections
+     */
+    private static final String STARTED = "Server started successfully";
+
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    /**
+     * users in the pwd.txt of the primary, enough for the snapshot to span many frames
+     */
+    private static final int USERS = 50_000;
+
+    /**
+     * bytes of the first replication connection let through before it is cut, a part of the snapshot
+     */
+    private static final int CUT_AFTER = 256 << 10;
+
+    private static final String PASSWD = "secret";
+
+    private final List<Process> processes = new ArrayList<>();
+
+    private int failures;
+
+    /**
+     * Forwards replication connections to the primary. The first one is cut after `CUT_AFTER` bytes of the primary,
+     * which sets `holding`, and while `holding` the bytes of the primary are held back.
+     */
+    private static class Relay implements Runnable {
+        private final ServerSocket serverSocket;
+
+        private final int primaryPort;
+
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private volatile boolean holding;
+
+        Relay(int primaryPort) throws IOException {
+            this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            this.primaryPort = primaryPort;
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Socket replica;
+                try {
+                    replica = serverSocket.accept();
+                } catch (IOException e) {
+                    // closed
+                    return;
+                }
+                try {
+                    Socket primary = new Socket(InetAddress.getLoopbackAddress(), primaryPort);
+                    long limit = connections.incrementAndGet() == 1 ? CUT_AFTER : Long.MAX_VALUE;
+                    start(() -> pump(replica, primary, Long.MAX_VALUE, false));
+                    start(() -> pump(primary, replica, limit, true));
+                } catch (IOException e) {
+                    // the primary is restarting, the replica tries again
+                    try {
+                        replica.close();
+                    } catch (IOException closeFailure) {
+                        // gone already
+                    }
+                }
+            }
+        }
+
+        private void pump(Socket from, Socket to, long limit, boolean holdable) {
+            byte[] buffer = new byte[8192];
+            long sent = 0;
+            try (from; to) {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                int n;
+                while (sent < limit && (n = in.read(buffer, 0, (int) Math.min(buffer.length, limit - sent))) > 0) {
+                    while (holdable && holding) {
+                        Thread.sleep(10);
+                    }
+                    out.write(buffer, 0, n);
+                    sent += n;
+                }
+                if (sent >= limit) {
+                    holding = true;
+                }
+            } catch (IOException | InterruptedException e) {
+                // the other side went away, closing both ends tells the other pump
+            }
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    private static void start(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("FAILED " + message);
+            failures++;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Start a server in `directory` on `port`, waiting until it accepts connections
+     */
+    private Process startServer(Path directory, int port, String... properties) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(Arrays.asList(properties));
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "SimpleSignUpSignInServer"));
+        Path log = directory.resolve("server.log");
+        // a restarted server appends to the log of its last run
+        int started = count(log(directory), STARTED);
+        Process server = new ProcessBuilder(command).directory(directory.toFile()).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(log.toFile())).start();
+        processes.add(server);
+        // the port is asked for on stdin, which stays open for the life of the server
+        OutputStream stdin = server.getOutputStream();
+        stdin.write((port + "\n").getBytes(StandardCharsets.US_ASCII));
+        stdin.flush();
+        await(() -> count(log(directory), STARTED) > started || !server.isAlive(), "the server in " + directory + " to start");
+        if (!server.isAlive()) {
+            throw new IOException("The server in " + directory + " exited, see " + log);
+        }
+        return server;
+    }
+
+    /**
+     * Stop a server the way an operator does, so it writes its final snapshot
+     */
+    private static void stopServer(Process server) throws InterruptedException {
+        server.destroy();
+        if (!server.waitFor(30, TimeUnit.SECONDS)) {
+            server.destroyForcibly().waitFor();
+        }
+    }
+
+    private static String log(Path directory) throws IOException {
+        Path log = directory.resolve("server.log");
+        return Files.exists(log) ? Files.readString(log, StandardCharsets.ISO_8859_1) : "";
+    }
+
+    private static int count(String text, String part) {
+        return text.split(part, -1).length - 1;
+    }
+
+    private interface Condition {
+        boolean holds() throws IOException;
+    }
+
+    private static void await(Condition condition, String what) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Timed out waiting for " + what + ".");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Send a v1 request of `commandID` with a username and password, returns whether its status is success
+     */
+    private static boolean request(int port, int commandID, String userName, String passwd) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            ByteBuffer frame = ByteBuffer.allocate(FieldLength.header + FieldLength.regReqUserName + FieldLength.regReqPasswd);
+            frame.putInt(frame.capacity()).putInt(commandID);
+            frame.put(Arrays.copyOf(userName.getBytes(StandardCharsets.US_ASCII), FieldLength.regReqUserName));
+            frame.put(Arrays.copyOf(passwd.getBytes(StandardCharsets.US_ASCII), FieldLength.regReqPasswd));
+            socket.getOutputStream().write(frame.array());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] response = new byte[in.readInt() - FieldLength.totalLengthField];
+            in.readFully(response);
+            return response[FieldLength.commandIDField] == '1';
+        }
+    }
+
+    /**
+     * The numeric lines of the metrics text of the server on `port`
+     */
+    private static Map<String, Long> metrics(int port) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            ByteBuffer frame = ByteBuffer.allocate(FieldLength.header);
+            frame.putInt(FieldLength.header).putInt(CommandID.METRICS_REQ);
+            socket.getOutputStream().write(frame.array());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] response = new byte[in.readInt() - FieldLength.totalLengthField];
+            in.readFully(response);
+            Map<String, Long> metrics = new HashMap<>();
+            for (String line : new String(response, StandardCharsets.ISO_8859_1).split("\n")) {
+                String[] fields = line.split(" ");
+                if (fields.length == 2 && fields[1].matches("-?\\d+")) {
+                    metrics.put(fields[0], Long.parseLong(fields[1]));
+                }
+            }
+            return metrics;
+        }
+    }
+
+    /**
+     * Whether the replica on `port` is connected and holds all of the pwd.txt of the primary
+     */
+    private static boolean caughtUp(int port, Path primaryPwd) throws IOException {
+        Map<String, Long> metrics = metrics(port);
+        return metrics.getOrDefault("replication_connected", 0L) == 1
+                && metrics.getOrDefault("replication_offset", -1L) == Files.size(primaryPwd)
+                && metrics.getOrDefault("replication_lag_bytes", -1L) == 0;
+    }
+
+    private static void writePwdFile(Path path) throws Exception {
+        String salt = "AbCdEfGh";
+        String digest = SHA256Utils.toHexString(SHA256Utils.getSHA(PASSWD + salt));
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.US_ASCII))) {
+            for (int i = 0; i < USERS; i++) {
+                writer.print("user" + i + ":" + salt + ":" + digest + "\n");
+            }
+        }
+    }
+
+    private void run(Path directory) throws Exception {
+        Path primaryDirectory = Files.createDirectory(directory.resolve("primary"));
+        Path replicaDirectory = Files.createDirectory(directory.resolve("replica"));
+        Path primaryPwd = primaryDirectory.resolve("pwd.txt");
+        Files.createFile(replicaDirectory.resolve("pwd.txt"));
+        writePwdFile(primaryPwd);
+
+        // a first run leaves the snapshot a replica this far behind is sent
+        int primaryPort = freePort();
+        stopServer(startServer(primaryDirectory, primaryPort));
+        check(Files.exists(primaryDirectory.resolve("pwd.snapshot")), "the primary wrote no snapshot");
+
+        int replicationPort = freePort();
+        String[] primaryProperties = {"-Dserver.replication.port=" + replicationPort, "-Dserver.replication.heartbeatMillis=200"};
+        Process primary = startServer(primaryDirectory, primaryPort, primaryProperties);
+        Relay relay = new Relay(replicationPort);
+        start(relay);
+
+        int replicaPort = freePort();
+        Process replica = startServer(replicaDirectory, replicaPort, "-Dserver.replicaOf=127.0.0.1:" + relay.getPort(),
+                "-Dserver.replication.heartbeatMillis=200", "-Dserver.snapshot.intervalSeconds=1");
+
+        // the snapshot is cut, and the restarted primary has none, so the replica is sent the lines of pwd.txt
+        await(() -> relay.holding, "the snapshot to be cut");
+        check(log(primaryDirectory).contains("Sending the snapshot"), "the primary did not send its snapshot");
+        stopServer(primary);
+        Files.delete(primaryDirectory.resolve("pwd.snapshot"));
+        startServer(primaryDirectory, primaryPort, primaryProperties);
+        relay.holding = false;
+        await(() -> caughtUp(replicaPort, primaryPwd), "the replica to catch up after the cut snapshot");
+        check(relay.connections.get() >= 2, "the replica did not reconnect");
+        String reconnected = log(replicaDirectory).substring(Math.max(0, log(replicaDirectory).lastIndexOf("Lost the primary")));
+        check(reconnected.startsWith("Lost the primary"), "the replica did not notice the cut");
+        check(request(replicaPort, CommandID.LOGIN_REQ, "user" + (USERS - 1), PASSWD), "a user of pwd.txt cannot log in on the replica");
+
+        // the replica writes snapshots again once the torn one is behind it
+        check(request(primaryPort, CommandID.REG_REQ, "newuser", PASSWD), "the registration on the primary failed");
+        await(() -> caughtUp(replicaPort, primaryPwd), "the replica to apply the registration");
+        check(request(replicaPort, CommandID.LOGIN_REQ, "newuser", PASSWD), "the new user cannot log in on the replica");
+        await(() -> log(replicaDirectory).substring(log(replicaDirectory).lastIndexOf("Lost the primary")).contains("Wrote a snapshot"),
+                "the replica to write a snapshot after the reconnect");
+
+        // a stream held back is reported as lag, the replica catches up once it flows again
+        relay.holding = true;
+        check(request(primaryPort, CommandID.REG_REQ, "lateuser", PASSWD), "the registration on the primary failed");
+        await(() -> {
+            Map<String, Long> metrics = metrics(replicaPort);
+            return metrics.getOrDefault("replication_connected", 1L) == 0 && metrics.getOrDefault("replication_lag_millis", 0L) > 0;
+        }, "the replica to report the lost primary");
+        check(!request(replicaPort, CommandID.LOGIN_REQ, "lateuser", PASSWD), "the replica knew a user it was not sent");
+        relay.holding = false;
+        await(() -> caughtUp(replicaPort, primaryPwd), "the replica to catch up after the stream was held");
+        check(metrics(replicaPort).getOrDefault("replication_lag_millis", -1L) == 0, "the caught up replica reports lag");
+        check(request(replicaPort, CommandID.LOGIN_REQ, "lateuser", PASSWD), "the late user cannot log in on the replica");
+
+        // the final snapshot covers the whole pwd.txt of the primary
+        stopServer(replica);
+        try (FileChannel channel = FileChannel.open(replicaDirectory.resolve("pwd.snapshot"), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(CredentialSnapshot.HEADER);
+            channel.read(header, 0);
+            check(header.getInt(8) == USERS + 2, "the final snapshot of the replica has " + header.getInt(8) + " users");
+            check(header.getLong(12) == Files.size(primaryPwd), "the final snapshot of the replica is at offset "
+                    + header.getLong(12) + " of " + Files.size(primaryPwd));
+        }
+        relay.close();
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ReplicationTest test = new ReplicationTest();
+        Path directory = Files.createTempDirectory("replication-test");
+        try {
+            test.run(directory);
+        } catch (IOException e) {
+            System.out.println("FAILED " + e.getMessage());
+            test.failures++;
+        } finally {
+            for (Process process : test.processes) {
+                stopServer(process);
+            }
+        }
+        if (test.failures > 0) {
+            System.out.println(test.failures + " checks failed, the logs are kept in " + directory);
+            System.exit(1);
+        }
+        delete(directory);
+        System.out.println("ReplicationTest passed");
+    }
+}